@@ -3,6 +3,7 @@ package net.binarypaper.springbootframework;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.jms.annotation.EnableJms;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 /**
  * Main class to bootstrap Spring Boot application
@@ -12,6 +13,7 @@ import org.springframework.jms.annotation.EnableJms;
 // Spring annotations
 @SpringBootApplication
 @EnableJms
+@EnableScheduling
 public class Application {
 
     /**
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.annotation.PostConstruct;
+import javax.jms.ConnectionFactory;
+import lombok.extern.java.Log;
+import net.binarypaper.springbootframework.context.RequestContextTaskDecorator;
+import org.apache.coyote.AbstractProtocol;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jms.DefaultJmsListenerContainerFactoryConfigurer;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.jms.config.DefaultJmsListenerContainerFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * Configures the threads that handle HTTP requests, JMS messages and the tasks
+ * of the taskExecutor.
+ * <p>
+ * When the threads.virtual property is set to true and the Java runtime
+ * supports virtual threads (Java 21 or later), Tomcat, the JMS listener
+ * containers and the taskExecutor run every task on a new virtual thread.
+ * Blocking on JDBC, SMTP or JMS then no longer holds on to a pooled platform
+ * thread. On older Java runtimes a warning is logged and the platform thread
+ * pools are used. The virtual threads are created by reflection, because the
+ * application is compiled for Java 8.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@Configuration
+// Lombok annotations
+@Log
+public class ThreadingConfig {
+
+    @Value("${threads.virtual:false}")
+    private boolean virtualThreadsEnabled;
+
+    @Value("${threads.executor.core-size:8}")
+    private int executorCoreSize;
+
+    @Value("${threads.executor.max-size:32}")
+    private int executorMaxSize;
+
+    @Value("${threads.executor.queue-capacity:1000}")
+    private int executorQueueCapacity;
+
+    private boolean virtualThreads;
+
+    @PostConstruct
+    public void init() {
+        if (virtualThreadsEnabled) {
+            virtualThreads = newVirtualThreadFactory("virtual-") != null;
+            if (!virtualThreads) {
+                log.warning("Virtual threads are not supported by Java " + System.getProperty("java.version")
+                        + ", using platform threads");
+            }
+        }
+    }
+
+    /**
+     * Runs the HTTP requests handled by Tomcat on virtual threads.
+     *
+     * @return The Tomcat web server factory customizer
+     */
+    @Bean
+    public WebServerFactoryCustomizer<TomcatServletWebServerFactory> virtualThreadTomcatCustomizer() {
+        return factory -> {
+            if (virtualThreads) {
+                factory.addConnectorCustomizers(connector -> {
+                    if (connector.getProtocolHandler() instanceof AbstractProtocol) {
+                        ((AbstractProtocol<?>) connector.getProtocolHandler()).setExecutor(newVirtualThreadExecutor("http-virtual-"));
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * The JMS listener container factory configured by Spring Boot, with the
+     * listeners running on virtual threads.
+     *
+     * @param configurer The Spring Boot JMS listener container factory
+     * configurer
+     * @param connectionFactory The JMS connection factory
+     * @return The JMS listener container factory
+     */
+    @Bean
+    public DefaultJmsListenerContainerFactory jmsListenerContainerFactory(
+            DefaultJmsListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory) {
+        DefaultJmsListenerContainerFactory factory = new DefaultJmsListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        if (virtualThreads) {
+            factory.setTaskExecutor(newVirtualThreadExecutor("jms-virtual-"));
+        }
+        return factory;
+    }
+
+    /**
+     * The executor for internal asynchronous tasks, which run in the request
+     * context of the thread that submitted them.
+     *
+     * @param requestContextTaskDecorator The task decorator that propagates
+     * the request context
+     * @return The task executor
+     */
+    @Bean
+    public AsyncTaskExecutor taskExecutor(RequestContextTaskDecorator requestContextTaskDecorator) {
+        if (virtualThreads) {
+            TaskExecutorAdapter taskExecutor = new TaskExecutorAdapter(newVirtualThreadExecutor("task-virtual-"));
+            taskExecutor.setTaskDecorator(requestContextTaskDecorator);
+            return taskExecutor;
+        }
+        ThreadPoolTaskExecutor taskExecutor = new ThreadPoolTaskExecutor();
+        taskExecutor.setThreadNamePrefix("task-");
+        taskExecutor.setCorePoolSize(executorCoreSize);
+        taskExecutor.setMaxPoolSize(executorMaxSize);
+        taskExecutor.setQueueCapacity(executorQueueCapacity);
+        taskExecutor.setTaskDecorator(requestContextTaskDecorator);
+        return taskExecutor;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor(String namePrefix) {
+        ThreadFactory threadFactory = newVirtualThreadFactory(namePrefix);
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, threadFactory);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("A virtual thread executor could not be created", ex);
+        }
+    }
+
+    /**
+     * Create a factory of virtual threads with
+     * Thread.ofVirtual().name(namePrefix, 0).factory().
+     *
+     * @param namePrefix The prefix of the thread names
+     * @return The thread factory, or null if virtual threads are not supported
+     */
+    private static ThreadFactory newVirtualThreadFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = Class.forName("java.lang.Thread$Builder$OfVirtual")
+                    .getMethod("name", String.class, long.class)
+                    .invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory")
+                    .invoke(builder);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+}
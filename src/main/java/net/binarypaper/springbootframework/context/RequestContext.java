@@ -0,0 +1,235 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.context;
+
+import java.io.Serializable;
+import java.security.Principal;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * The context of the request that is being processed by the current thread,
+ * such as the logged in user principal used by the Hibernate Envers
+ * RevisionListener.
+ * <p>
+ * A request context is only available inside a scope. A scope is opened with
+ * one of the open methods and must be closed with a try-with-resources
+ * statement, which restores the previous request context of the thread. Pooled
+ * threads therefore never keep the request context of a previous request.
+ * <p>
+ * The request context is not inherited by other threads. It is propagated
+ * explicitly to tasks submitted to executors by wrapping them with the wrap
+ * methods or the RequestContextTaskDecorator.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public final class RequestContext {
+
+    private static final ThreadLocal<RequestContext> CURRENT = new ThreadLocal<>();
+
+    private final Principal principal;
+
+    private RequestContext(Principal principal) {
+        this.principal = principal;
+    }
+
+    public Principal getPrincipal() {
+        return principal;
+    }
+
+    /**
+     * Get the request context of the current thread.
+     *
+     * @return The request context, or null outside of a scope
+     */
+    public static RequestContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Get the user principal of the request context of the current thread.
+     *
+     * @return The user principal, or null outside of a scope
+     */
+    public static Principal currentPrincipal() {
+        RequestContext requestContext = CURRENT.get();
+        return (requestContext == null) ? null : requestContext.principal;
+    }
+
+    /**
+     * Open a scope with a request context for a user principal.
+     *
+     * @param principal The user principal
+     * @return The scope to close
+     */
+    public static Scope open(Principal principal) {
+        return open(new RequestContext(principal));
+    }
+
+    /**
+     * Open a scope with a request context for a user name, such as the user
+     * name sent with a JMS message.
+     *
+     * @param userName The user name
+     * @return The scope to close
+     */
+    public static Scope open(String userName) {
+        return open(new RequestContext(new UserNamePrincipal(userName)));
+    }
+
+    /**
+     * Open a scope with a request context captured on another thread.
+     *
+     * @param requestContext The request context, which may be null
+     * @return The scope to close
+     */
+    public static Scope open(RequestContext requestContext) {
+        RequestContext previous = CURRENT.get();
+        CURRENT.set(requestContext);
+        return () -> {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Make sure the user principal is in the request context until the
+     * current transaction completes.
+     * <p>
+     * Hibernate Envers only creates the audit revision of a transaction when
+     * the transaction commits, so callers without a scope for the user
+     * principal, such as batch workers, get a scope that is closed when the
+     * transaction completes. The audit revision of a transaction has a single
+     * user, so a transaction can only be opened for one user principal.
+     *
+     * @param principal The user principal
+     * @throws IllegalStateException If there is no transaction, or the
+     * transaction is already open for another user principal
+     */
+    public static void openForTransaction(Principal principal) {
+        Objects.requireNonNull(principal, "principal");
+        Principal currentPrincipal = currentPrincipal();
+        if ((currentPrincipal != null) && (Objects.equals(currentPrincipal.getName(), principal.getName()))) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("A request context can only be opened for a transaction in a transaction");
+        }
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            if (synchronization instanceof TransactionScope) {
+                String userName = ((TransactionScope) synchronization).userName;
+                if (Objects.equals(userName, principal.getName())) {
+                    return;
+                }
+                throw new IllegalStateException("The transaction already has a request context for user " + userName);
+            }
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionScope(principal));
+    }
+
+    /**
+     * Wrap a task to run with the request context of the current thread.
+     *
+     * @param task The task to wrap
+     * @return The wrapped task
+     */
+    @SuppressWarnings("try")
+    public static Runnable wrap(Runnable task) {
+        RequestContext requestContext = CURRENT.get();
+        return () -> {
+            try (Scope scope = open(requestContext)) {
+                task.run();
+            }
+        };
+    }
+
+    /**
+     * Wrap a task to run with the request context of the current thread.
+     *
+     * @param <V> The result type of the task
+     * @param task The task to wrap
+     * @return The wrapped task
+     */
+    @SuppressWarnings("try")
+    public static <V> Callable<V> wrap(Callable<V> task) {
+        RequestContext requestContext = CURRENT.get();
+        return () -> {
+            try (Scope scope = open(requestContext)) {
+                return task.call();
+            }
+        };
+    }
+
+    /**
+     * A scope of a request context, which restores the previous request
+     * context of the thread when closed.
+     */
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+
+    /**
+     * The scope of a request context opened for a transaction, which restores
+     * the request context from before the transaction when the transaction
+     * completes.
+     */
+    private static final class TransactionScope extends TransactionSynchronizationAdapter {
+
+        private final String userName;
+
+        private final Scope scope;
+
+        private TransactionScope(Principal principal) {
+            this.userName = principal.getName();
+            this.scope = open(principal);
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            scope.close();
+        }
+    }
+
+    private static final class UserNamePrincipal implements Principal, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        private UserNamePrincipal(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
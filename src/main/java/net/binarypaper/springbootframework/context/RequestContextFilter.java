@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.context;
+
+import java.io.IOException;
+import java.security.Principal;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Opens a request context scope with the logged in user principal for the
+ * processing of each HTTP request.
+ * <p>
+ * The filter has the lowest precedence, so it runs after the Spring Security
+ * filter chain has authenticated the user.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@Component
+public class RequestContextFilter extends OncePerRequestFilter {
+
+    @Override
+    @SuppressWarnings("try")
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        Principal principal = request.getUserPrincipal();
+        if (principal == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        try (RequestContext.Scope scope = RequestContext.open(principal)) {
+            filterChain.doFilter(request, response);
+        }
+    }
+}
@@ -37,4 +37,10 @@ public class EmailMessage implements Serializable {
 
     private String body;
 
+    /**
+     * The Base64 encoded plain text alternative of an HTML body. An email with
+     * a text body is sent as multipart/alternative.
+     */
+    private String textBody;
+
 }
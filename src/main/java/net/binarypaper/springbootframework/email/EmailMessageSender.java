@@ -22,6 +22,7 @@ import java.util.logging.Level;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 import lombok.extern.java.Log;
+import net.binarypaper.springbootframework.context.RequestContext;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jms.annotation.JmsListener;
 import org.springframework.mail.javamail.JavaMailSender;
@@ -48,16 +49,29 @@ public class EmailMessageSender {
     // Spring annotations
     @JmsListener(destination = "email_queue")
     @Transactional
+    @SuppressWarnings("try")
     public void sendEmail(String message) throws Exception {
+        EmailMessage emailMessage;
         try {
-            EmailMessage emailMessage = objectMapper.readValue(message, EmailMessage.class);
+            emailMessage = objectMapper.readValue(message, EmailMessage.class);
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, null, ex);
+            throw ex;
+        }
+        // Process the message in the request context of the user that sent it
+        try (RequestContext.Scope scope = RequestContext.open(emailMessage.getUserName())) {
             MimeMessage mimeMessage = emailSender.createMimeMessage();
             MimeMessageHelper mimeMessageHelper = new MimeMessageHelper(mimeMessage, true);
             mimeMessageHelper.setFrom("admin@emample.com");
             mimeMessageHelper.setTo(emailMessage.getToAddress());
             mimeMessageHelper.setSubject(emailMessage.getSubject());
             String body = new String(Base64.getDecoder().decode(emailMessage.getBody()), "utf-8");
-            mimeMessageHelper.setText(body, true);
+            if (emailMessage.getTextBody() == null) {
+                mimeMessageHelper.setText(body, true);
+            } else {
+                String textBody = new String(Base64.getDecoder().decode(emailMessage.getTextBody()), "utf-8");
+                mimeMessageHelper.setText(textBody, body);
+            }
             emailSender.send(mimeMessage);
         } catch (IOException | MessagingException ex) {
             log.log(Level.SEVERE, null, ex);
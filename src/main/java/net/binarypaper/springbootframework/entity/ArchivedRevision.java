@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import java.util.Map;
+import lombok.Data;
+
+/**
+ * A revision of an audited entity as it is stored in the data of an
+ * AuditArchive.
+ * <p>
+ * Associated entities in the state of the entity are stored as their id and
+ * collections are not stored.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Lombok annotations
+@Data
+public class ArchivedRevision {
+
+    private long rev;
+
+    /**
+     * The Envers revision type name, which would be either ADD, MOD or DEL.
+     */
+    private String revisionType;
+
+    private long revisionTimestamp;
+
+    private String userName;
+
+    private String operation;
+
+    private String details;
+
+    private Integer itemCount;
+
+    /**
+     * The audited attribute values of the entity by attribute name.
+     */
+    private Map<String, Object> state;
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import java.io.Serializable;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import lombok.extern.java.Log;
+import net.binarypaper.springbootframework.context.RequestContext;
+import org.hibernate.engine.internal.ForeignKeys;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.envers.RevisionType;
+import org.hibernate.envers.boot.internal.EnversService;
+import org.hibernate.envers.event.spi.EnversListener;
+import org.hibernate.event.service.spi.EventListenerGroup;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * A Hibernate event listener that replaces the Hibernate Envers event listeners
+ * when the audit.mode property is set to async.
+ * <p>
+ * Instead of writing the audit tables in the same transaction as the audited
+ * entities, the changes made to audited entities are captured as audit records
+ * and inserted as a single AuditOutboxEntry per transaction, just before the
+ * transaction commits. The entry is committed or rolled back together with the
+ * audited changes, so no audit records are lost when the application stops.
+ * The AsyncAuditWriter writes the audit records to the audit tables in the
+ * background.
+ * <p>
+ * Changes to audited collections are not captured, so the application does not
+ * start when an audited entity has an audited collection.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@Component
+@ConditionalOnProperty(name = "audit.mode", havingValue = "async")
+// Lombok annotations
+@Log
+public class AsyncAuditEventListener implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+
+    private static final long serialVersionUID = 1L;
+
+    @PersistenceUnit
+    private transient EntityManagerFactory emf;
+
+    private transient EnversService enversService;
+
+    @PostConstruct
+    public void init() {
+        SessionFactoryImplementor sessionFactory = emf.unwrap(SessionFactoryImplementor.class);
+        enversService = sessionFactory.getServiceRegistry().getService(EnversService.class);
+        EnversAuditWorkUnits.checkAuditedCollections(emf, enversService);
+        EventListenerRegistry registry = sessionFactory.getServiceRegistry().getService(EventListenerRegistry.class);
+        for (EventType<?> eventType : EventType.values()) {
+            removeEnversListeners(registry.getEventListenerGroup(eventType));
+        }
+        registry.appendListeners(EventType.POST_INSERT, this);
+        registry.appendListeners(EventType.POST_UPDATE, this);
+        registry.appendListeners(EventType.POST_DELETE, this);
+        log.info("Audit records are written asynchronously from the audit outbox");
+    }
+
+    private <T> void removeEnversListeners(EventListenerGroup<T> group) {
+        List<T> listeners = new ArrayList<>();
+        for (T listener : group.listeners()) {
+            if (!(listener instanceof EnversListener)) {
+                listeners.add(listener);
+            }
+        }
+        if (listeners.size() != group.count()) {
+            group.clear();
+            for (T listener : listeners) {
+                group.appendListener(listener);
+            }
+        }
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        addAuditRecord(event.getSession(), event.getPersister(), event.getId(), RevisionType.ADD,
+                event.getState(), null);
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        Object[] state = event.getState();
+        Object[] oldState = event.getOldState();
+        if (oldState != null) {
+            // Use the database state of the properties that are not updatable,
+            // the same as the Envers post update listener
+            state = state.clone();
+            boolean[] updatability = event.getPersister().getPropertyUpdateability();
+            for (int i = 0; i < state.length; i++) {
+                if (!updatability[i]) {
+                    state[i] = oldState[i];
+                }
+            }
+        }
+        addAuditRecord(event.getSession(), event.getPersister(), event.getId(), RevisionType.MOD,
+                state, oldState);
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        addAuditRecord(event.getSession(), event.getPersister(), event.getId(), RevisionType.DEL,
+                event.getDeletedState(), null);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public boolean requiresPostCommitHanding(EntityPersister persister) {
+        return false;
+    }
+
+    private void addAuditRecord(EventSource session, EntityPersister persister,
+            Serializable id, RevisionType revisionType, Object[] state, Object[] oldState) {
+        String entityName = persister.getEntityName();
+        if (!enversService.getEntitiesConfigurations().isVersioned(entityName)) {
+            return;
+        }
+        AuditRecord auditRecord = new AuditRecord(entityName, id, revisionType.name(),
+                toJsonState(session, persister, state), toJsonState(session, persister, oldState));
+        getAuditTransaction(session).getRecords().add(auditRecord);
+    }
+
+    private Map<String, Object> toJsonState(SessionImplementor session, EntityPersister persister, Object[] state) {
+        if (state == null) {
+            return null;
+        }
+        String[] propertyNames = persister.getPropertyNames();
+        Type[] types = persister.getPropertyTypes();
+        Map<String, Object> jsonState = new LinkedHashMap<>();
+        for (int i = 0; i < state.length; i++) {
+            Object value = state[i];
+            if ((value == null) || (types[i].isCollectionType())) {
+                continue;
+            }
+            if (types[i].isEntityType()) {
+                String associatedEntityName = ((EntityType) types[i]).getAssociatedEntityName();
+                value = ForeignKeys.getEntityIdentifierIfNotUnsaved(associatedEntityName, value, session);
+            }
+            jsonState.put(propertyNames[i], value);
+        }
+        return jsonState;
+    }
+
+    private AuditTransaction getAuditTransaction(EventSource session) {
+        AuditTransaction auditTransaction = (AuditTransaction) TransactionSynchronizationManager.getResource(this);
+        if (auditTransaction != null) {
+            return auditTransaction;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("Audited entities can only be changed in a transaction");
+        }
+        AuditTransaction newAuditTransaction = new AuditTransaction();
+        Principal principal = RequestContext.currentPrincipal();
+        if (principal == null) {
+            throw new IllegalStateException("There is no user principal in the request context to audit the changes");
+        }
+        newAuditTransaction.setUserName(principal.getName());
+        newAuditTransaction.setRevisionTimestamp(System.currentTimeMillis());
+        newAuditTransaction.setOperation(CurrentOperation.getOperation());
+        newAuditTransaction.setDetails(CurrentOperation.getDetails());
+        TransactionSynchronizationManager.bindResource(this, newAuditTransaction);
+        // Insert the outbox entry after the session has been flushed before
+        // the commit, the same as the Envers audit process, so that it holds
+        // every change of the transaction
+        session.getActionQueue().registerProcess(sessionImplementor -> insertOutboxEntry(sessionImplementor, newAuditTransaction));
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(AsyncAuditEventListener.this);
+            }
+        });
+        return newAuditTransaction;
+    }
+
+    private void insertOutboxEntry(SessionImplementor session, AuditTransaction auditTransaction) {
+        AuditOutboxEntry auditOutboxEntry = new AuditOutboxEntry();
+        auditOutboxEntry.setCreatedTimestamp(System.currentTimeMillis());
+        auditOutboxEntry.setData(auditTransaction.toJson());
+        // Any failure to insert the entry rolls back the audited changes
+        session.save(auditOutboxEntry);
+    }
+}
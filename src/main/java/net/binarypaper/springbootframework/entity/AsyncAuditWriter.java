@@ -0,0 +1,230 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Writes the audit records inserted in the audit outbox by the
+ * AsyncAuditEventListener to the audit tables when the audit.mode property is
+ * set to async.
+ * <p>
+ * A single scheduled thread reads up to audit.async.batch-size outbox entries
+ * at a time in the order of their ids. The entries are deleted and their
+ * transactions written in the same database transaction, with an audit
+ * revision per transaction, using the EnversAuditWorkUnits. Revision numbers
+ * are therefore assigned in the order in which the changes to every row were
+ * made, across batches and restarts. Another writer that reads the same
+ * entries fails to delete them and rolls back instead of writing them twice.
+ * The time between the commit of a transaction and the writing of its audit
+ * records is recorded by the audit.async.lag timer.
+ * <p>
+ * When a batch fails, its entries are written one at a time. An entry that
+ * still fails is moved to the AUDIT_OUTBOX_ERROR table and counted by the
+ * audit.async.errors counter, so that it does not stop the entries after it.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@Component
+@ConditionalOnProperty(name = "audit.mode", havingValue = "async")
+// Lombok annotations
+@Log
+public class AsyncAuditWriter {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${audit.async.batch-size:100}")
+    private int batchSize;
+
+    private TransactionTemplate transactionTemplate;
+
+    private Timer lagTimer;
+
+    private Counter recordCounter;
+
+    private Counter errorCounter;
+
+    private final AtomicLong lastLag = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        lagTimer = Timer.builder("audit.async.lag")
+                .description("The time between the commit of a transaction and the writing of its audit records")
+                .register(meterRegistry);
+        meterRegistry.gauge("audit.async.lag.last", lastLag);
+        recordCounter = Counter.builder("audit.async.records")
+                .description("The number of audit records written")
+                .register(meterRegistry);
+        errorCounter = Counter.builder("audit.async.errors")
+                .description("The number of audit outbox entries moved to the AUDIT_OUTBOX_ERROR table")
+                .register(meterRegistry);
+    }
+
+    // Spring annotations
+    @Scheduled(fixedDelayString = "${audit.async.poll-interval:200}")
+    public void writeAuditRecords() {
+        // Keep writing batches until the queue is empty
+        while (writeBatch() == batchSize) {
+            log.fine("Writing the next batch of audit records");
+        }
+    }
+
+    private int writeBatch() {
+        List<AuditOutboxEntry> auditOutboxEntries = transactionTemplate.execute(status
+                -> em.createNamedQuery("AuditOutboxEntry.findAll", AuditOutboxEntry.class)
+                        .setMaxResults(batchSize)
+                        .getResultList());
+        if (auditOutboxEntries.isEmpty()) {
+            return 0;
+        }
+        try {
+            recordLag(transactionTemplate.execute(status -> write(status, auditOutboxEntries)));
+        } catch (RuntimeException ex) {
+            // Write the entries one at a time, so that an entry that can not be
+            // written does not stop the others
+            log.log(Level.WARNING, "The batch of audit outbox entries could not be written, "
+                    + "writing the entries one at a time", ex);
+            for (AuditOutboxEntry auditOutboxEntry : auditOutboxEntries) {
+                writeEntry(auditOutboxEntry);
+            }
+        }
+        return auditOutboxEntries.size();
+    }
+
+    private void writeEntry(AuditOutboxEntry auditOutboxEntry) {
+        try {
+            recordLag(transactionTemplate.execute(status -> write(status, Collections.singletonList(auditOutboxEntry))));
+        } catch (RuntimeException ex) {
+            moveToErrors(auditOutboxEntry, ex);
+        }
+    }
+
+    /**
+     * Deletes the outbox entries and writes their transactions.
+     *
+     * @return The written transactions or null if another writer is writing
+     * the entries
+     */
+    private List<AuditTransaction> write(TransactionStatus status, List<AuditOutboxEntry> auditOutboxEntries) {
+        List<Long> ids = new ArrayList<>();
+        List<AuditTransaction> auditTransactions = new ArrayList<>();
+        for (AuditOutboxEntry auditOutboxEntry : auditOutboxEntries) {
+            ids.add(auditOutboxEntry.getId());
+            auditTransactions.add(AuditTransaction.fromJson(auditOutboxEntry.getData()));
+        }
+        // Delete the entries before writing them, so that another writer that
+        // read the same entries waits for this transaction and fails
+        if (deleteEntries(ids) != ids.size()) {
+            log.fine("The audit outbox entries " + ids + " are being written by another writer");
+            status.setRollbackOnly();
+            return null;
+        }
+        for (AuditTransaction auditTransaction : auditTransactions) {
+            write(auditTransaction);
+        }
+        return auditTransactions;
+    }
+
+    private void write(AuditTransaction auditTransaction) {
+        EnversAuditWorkUnits workUnits = new EnversAuditWorkUnits(em);
+        for (AuditRecord auditRecord : auditTransaction.getRecords()) {
+            workUnits.add(auditRecord);
+        }
+        if (workUnits.size() == 0) {
+            return;
+        }
+        AuditRevision auditRevision = new AuditRevision();
+        auditRevision.setUserName(auditTransaction.getUserName());
+        auditRevision.setRevisionTimestamp(auditTransaction.getRevisionTimestamp());
+        if (auditTransaction.getOperation() != null) {
+            auditRevision.setOperation(auditTransaction.getOperation());
+            auditRevision.setDetails(auditTransaction.getDetails());
+            auditRevision.setItemCount(workUnits.size());
+        }
+        em.persist(auditRevision);
+        workUnits.write(auditRevision);
+        recordCounter.increment(workUnits.size());
+    }
+
+    private void moveToErrors(AuditOutboxEntry auditOutboxEntry, RuntimeException ex) {
+        log.log(Level.SEVERE, "The audit outbox entry " + auditOutboxEntry.getId()
+                + " could not be written and is moved to the AUDIT_OUTBOX_ERROR table", ex);
+        transactionTemplate.execute(status -> {
+            if (deleteEntries(Collections.singletonList(auditOutboxEntry.getId())) == 0) {
+                // Another writer has written the entry
+                return null;
+            }
+            String error = String.valueOf(ex);
+            AuditOutboxError auditOutboxError = new AuditOutboxError();
+            auditOutboxError.setId(auditOutboxEntry.getId());
+            auditOutboxError.setCreatedTimestamp(auditOutboxEntry.getCreatedTimestamp());
+            auditOutboxError.setFailedTimestamp(System.currentTimeMillis());
+            auditOutboxError.setError((error.length() > AuditOutboxError.MAX_ERROR_LENGTH)
+                    ? error.substring(0, AuditOutboxError.MAX_ERROR_LENGTH) : error);
+            auditOutboxError.setData(auditOutboxEntry.getData());
+            em.persist(auditOutboxError);
+            errorCounter.increment();
+            return null;
+        });
+    }
+
+    private int deleteEntries(List<Long> ids) {
+        return em.createNamedQuery("AuditOutboxEntry.deleteByIds")
+                .setParameter("ids", ids)
+                .executeUpdate();
+    }
+
+    private void recordLag(List<AuditTransaction> auditTransactions) {
+        if (auditTransactions == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (AuditTransaction auditTransaction : auditTransactions) {
+            long lag = now - auditTransaction.getRevisionTimestamp();
+            lagTimer.record(lag, TimeUnit.MILLISECONDS);
+            lastLag.set(lag);
+        }
+    }
+}
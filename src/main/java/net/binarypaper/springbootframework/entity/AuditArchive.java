@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import java.io.Serializable;
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Lob;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+/**
+ * A chunk of archived audit revisions of a single entity.
+ * <p>
+ * Each run of the AuditArchiver moves the revisions of an entity that were
+ * superseded before the archive horizon into a new chunk. The revisions are
+ * stored as a GZIP compressed JSON array of ArchivedRevision objects.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// JPA annotations
+@Entity
+@Table(name = "AUDIT_ARCHIVE", indexes = {
+    @Index(name = "IDX_AUDIT_ARCHIVE_ENTITY", columnList = "ENTITY_NAME, ENTITY_ID")
+})
+@NamedQueries({
+    @NamedQuery(
+            name = "AuditArchive.findByEntity",
+            query = "SELECT aa FROM AuditArchive aa WHERE aa.entityName = :entityName AND aa.entityId = :entityId ORDER BY aa.firstRev"
+    )
+    ,@NamedQuery(
+            name = "AuditArchive.findByEntities",
+            query = "SELECT aa FROM AuditArchive aa WHERE aa.entityName = :entityName AND aa.entityId IN :entityIds ORDER BY aa.entityId, aa.firstRev"
+    )
+    ,@NamedQuery(
+            name = "AuditArchive.findHorizon",
+            query = "SELECT MAX(aa.horizonTimestamp) FROM AuditArchive aa WHERE aa.entityName = :entityName"
+    )
+})
+// Lombok annotations
+@Data
+@EqualsAndHashCode(exclude = "data")
+@ToString(exclude = "data")
+public class AuditArchive implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // JPA annotations
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "AUDIT_ARCHIVE_ID")
+    private Long id;
+
+    /**
+     * The class name of the audited entity.
+     */
+    // JPA annotations
+    @Column(name = "ENTITY_NAME", nullable = false, updatable = false)
+    private String entityName;
+
+    /**
+     * The id of the audited entity as a string.
+     */
+    // JPA annotations
+    @Column(name = "ENTITY_ID", nullable = false, updatable = false, length = 100)
+    private String entityId;
+
+    // JPA annotations
+    @Column(name = "FIRST_REV", nullable = false, updatable = false)
+    private long firstRev;
+
+    // JPA annotations
+    @Column(name = "LAST_REV", nullable = false, updatable = false)
+    private long lastRev;
+
+    // JPA annotations
+    @Column(name = "REVISION_COUNT", nullable = false, updatable = false)
+    private int revisionCount;
+
+    /**
+     * The time at which the revisions were archived.
+     */
+    // JPA annotations
+    @Column(name = "ARCHIVE_TIMESTAMP", nullable = false, updatable = false)
+    private long archiveTimestamp;
+
+    /**
+     * The horizon of the run that archived the revisions. The archived
+     * revisions were superseded by other revisions made before the horizon.
+     */
+    // JPA annotations
+    @Column(name = "HORIZON_TIMESTAMP", nullable = false, updatable = false)
+    private long horizonTimestamp;
+
+    /**
+     * The GZIP compressed JSON array of the archived revisions.
+     */
+    // JPA annotations
+    @Lob
+    @Basic(fetch = FetchType.LAZY)
+    @Column(name = "DATA", nullable = false, updatable = false)
+    private byte[] data;
+}
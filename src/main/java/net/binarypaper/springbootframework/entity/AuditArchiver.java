@@ -0,0 +1,222 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnit;
+import javax.persistence.metamodel.EntityType;
+import lombok.extern.java.Log;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.envers.boot.internal.EnversService;
+import org.hibernate.envers.configuration.internal.AuditEntitiesConfiguration;
+import org.hibernate.envers.strategy.ValidityAuditStrategy;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Moves old audit revisions from the audit tables to the AUDIT_ARCHIVE table
+ * when the audit.archive.enabled property is set to true.
+ * <p>
+ * On the audit.archive.cron schedule the revisions of every audited entity
+ * that were superseded by another revision more than audit.archive.horizon-days
+ * ago are moved to compressed AuditArchive chunks, audit.archive.batch-size
+ * entities per transaction. The audit revisions that are no longer used by any
+ * audit table are then deleted. The latest revision of each entity before the
+ * horizon is kept, so that entities can still be read at any date after the
+ * horizon.
+ * <p>
+ * The number of rows in the audit tables is published by the audit.table.rows
+ * gauges after each run.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@Component
+@ConditionalOnProperty(name = "audit.archive.enabled", havingValue = "true")
+// Lombok annotations
+@Log
+public class AuditArchiver {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @PersistenceUnit
+    private EntityManagerFactory emf;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${audit.archive.horizon-days:365}")
+    private int horizonDays;
+
+    @Value("${audit.archive.batch-size:500}")
+    private int batchSize;
+
+    private TransactionTemplate transactionTemplate;
+
+    private Timer runTimer;
+
+    private Counter archivedCounter;
+
+    private Counter deletedCounter;
+
+    private final Map<String, AtomicLong> tableRows = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        runTimer = Timer.builder("audit.archive.run")
+                .description("The duration of the audit archive runs")
+                .register(meterRegistry);
+        archivedCounter = Counter.builder("audit.archive.records")
+                .description("The number of audit records moved to the audit archive")
+                .register(meterRegistry);
+        deletedCounter = Counter.builder("audit.archive.revisions.deleted")
+                .description("The number of audit revisions deleted after their audit records were archived")
+                .register(meterRegistry);
+    }
+
+    // Spring annotations
+    @Scheduled(cron = "${audit.archive.cron:0 0 2 * * *}")
+    public void archiveAuditRevisions() {
+        Date horizon = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(horizonDays));
+        runTimer.record(() -> archiveAuditRevisions(horizon));
+    }
+
+    /**
+     * Move the audit revisions that were superseded before the horizon to the
+     * audit archive.
+     *
+     * @param horizon The date before which superseded revisions are archived
+     */
+    public void archiveAuditRevisions(Date horizon) {
+        for (Class<?> entityClass : getAuditedEntityClasses()) {
+            int archived = archiveAuditRevisions(entityClass, horizon);
+            log.info("Archived " + archived + " audit records of " + entityClass.getName());
+        }
+        Integer deleted = transactionTemplate.execute(status -> deleteUnusedRevisions(horizon));
+        deletedCounter.increment(deleted);
+        log.info("Deleted " + deleted + " audit revisions");
+        transactionTemplate.execute(status -> {
+            updateTableRows();
+            return null;
+        });
+    }
+
+    private <T> int archiveAuditRevisions(Class<T> entityClass, Date horizon) {
+        AuditRevisionHelper<T> auditRevisionHelper = new AuditRevisionHelper<>(entityClass);
+        int total = 0;
+        Object afterId = null;
+        List<Object> ids;
+        do {
+            Object lastId = afterId;
+            ids = transactionTemplate.execute(status -> auditRevisionHelper.getIdsWithRevisionsBefore(em, horizon, lastId, batchSize));
+            if (ids.isEmpty()) {
+                break;
+            }
+            List<Object> batch = ids;
+            Integer archived = transactionTemplate.execute(status -> auditRevisionHelper.archiveAuditRevisions(em, batch, horizon));
+            archivedCounter.increment(archived);
+            total += archived;
+            afterId = ids.get(ids.size() - 1);
+        } while (ids.size() == batchSize);
+        return total;
+    }
+
+    private List<Class<?>> getAuditedEntityClasses() {
+        EnversService enversService = getEnversService();
+        List<Class<?>> entityClasses = new ArrayList<>();
+        for (EntityType<?> entityType : emf.getMetamodel().getEntities()) {
+            Class<?> entityClass = entityType.getJavaType();
+            if ((entityClass != null) && (enversService.getEntitiesConfigurations().isVersioned(entityClass.getName()))) {
+                entityClasses.add(entityClass);
+            }
+        }
+        return entityClasses;
+    }
+
+    private int deleteUnusedRevisions(Date horizon) {
+        EnversService enversService = getEnversService();
+        AuditEntitiesConfiguration configuration = enversService.getAuditEntitiesConfiguration();
+        boolean validityAuditStrategy = enversService.getAuditStrategy() instanceof ValidityAuditStrategy;
+        StringBuilder query = new StringBuilder("DELETE FROM AuditRevision ar WHERE ar.revisionTimestamp < :timestamp");
+        for (Class<?> entityClass : getAuditedEntityClasses()) {
+            String auditEntityName = configuration.getAuditEntityName(entityClass.getName());
+            String revisionType = configuration.getRevisionTypePropName();
+            query.append(" AND NOT EXISTS (SELECT a.").append(revisionType).append(" FROM ").append(auditEntityName)
+                    .append(" a WHERE a.").append(configuration.getRevisionNumberPath()).append(" = ar.rev)");
+            if (validityAuditStrategy) {
+                query.append(" AND NOT EXISTS (SELECT a.").append(revisionType).append(" FROM ").append(auditEntityName)
+                        .append(" a WHERE a.").append(configuration.getRevisionEndFieldName()).append(".id = ar.rev)");
+            }
+        }
+        return em.createQuery(query.toString())
+                .setParameter("timestamp", horizon.getTime())
+                .executeUpdate();
+    }
+
+    private void updateTableRows() {
+        EnversService enversService = getEnversService();
+        AuditEntitiesConfiguration configuration = enversService.getAuditEntitiesConfiguration();
+        Map<String, String> countQueries = new LinkedHashMap<>();
+        countQueries.put(getTableName(AuditRevision.class.getName()), "SELECT COUNT(ar) FROM AuditRevision ar");
+        countQueries.put(getTableName(AuditArchive.class.getName()), "SELECT COUNT(aa) FROM AuditArchive aa");
+        for (Class<?> entityClass : getAuditedEntityClasses()) {
+            String auditEntityName = configuration.getAuditEntityName(entityClass.getName());
+            countQueries.put(getTableName(auditEntityName), "SELECT COUNT(a." + configuration.getRevisionTypePropName()
+                    + ") FROM " + auditEntityName + " a");
+        }
+        for (Map.Entry<String, String> countQuery : countQueries.entrySet()) {
+            long rows = ((Number) em.createQuery(countQuery.getValue()).getSingleResult()).longValue();
+            tableRows.computeIfAbsent(countQuery.getKey(),
+                    table -> meterRegistry.gauge("audit.table.rows", Tags.of("table", table), new AtomicLong()))
+                    .set(rows);
+        }
+    }
+
+    private String getTableName(String entityName) {
+        SessionFactoryImplementor sessionFactory = emf.unwrap(SessionFactoryImplementor.class);
+        return ((AbstractEntityPersister) sessionFactory.getMetamodel().entityPersister(entityName)).getTableName();
+    }
+
+    private EnversService getEnversService() {
+        return emf.unwrap(SessionFactoryImplementor.class).getServiceRegistry().getService(EnversService.class);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import java.io.Serializable;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+/**
+ * The audit records of a committed transaction that still have to be written
+ * to the audit tables by the AsyncAuditWriter.
+ * <p>
+ * The entry is inserted by the AsyncAuditEventListener in the same database
+ * transaction as the audited changes, after the last change of the
+ * transaction. A transaction that changes a row changed by another
+ * transaction can only do so after the other transaction has committed, so the
+ * order of the entry ids is the order in which the changes to every row were
+ * made.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// JPA annotations
+@Entity
+@Table(name = "AUDIT_OUTBOX")
+@NamedQueries({
+    @NamedQuery(
+            name = "AuditOutboxEntry.findAll",
+            query = "SELECT aoe FROM AuditOutboxEntry aoe ORDER BY aoe.id"
+    )
+    ,@NamedQuery(
+            name = "AuditOutboxEntry.deleteByIds",
+            query = "DELETE FROM AuditOutboxEntry aoe WHERE aoe.id IN :ids"
+    )
+})
+// Lombok annotations
+@Data
+@EqualsAndHashCode(exclude = "data")
+@ToString(exclude = "data")
+public class AuditOutboxEntry implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // JPA annotations
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "AUDIT_OUTBOX_ID")
+    private Long id;
+
+    /**
+     * The time at which the entry was inserted.
+     */
+    // JPA annotations
+    @Column(name = "CREATED_TIMESTAMP", nullable = false, updatable = false)
+    private long createdTimestamp;
+
+    /**
+     * The AuditTransaction as JSON.
+     */
+    // JPA annotations
+    @Lob
+    @Column(name = "DATA", length = Integer.MAX_VALUE, nullable = false, updatable = false)
+    private String data;
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import java.io.Serializable;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+/**
+ * An audit outbox entry that the AsyncAuditWriter could not write to the audit
+ * tables.
+ * <p>
+ * The entry is moved here from the audit outbox with the error that stopped
+ * it, so that the entries after it are still written. It keeps the id of the
+ * outbox entry, so that it can be moved back to the audit outbox when the
+ * error has been fixed.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// JPA annotations
+@Entity
+@Table(name = "AUDIT_OUTBOX_ERROR")
+// Lombok annotations
+@Data
+@EqualsAndHashCode(exclude = "data")
+@ToString(exclude = "data")
+public class AuditOutboxError implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int MAX_ERROR_LENGTH = 4000;
+
+    // JPA annotations
+    @Id
+    @Column(name = "AUDIT_OUTBOX_ID")
+    private Long id;
+
+    /**
+     * The time at which the outbox entry was inserted.
+     */
+    // JPA annotations
+    @Column(name = "CREATED_TIMESTAMP", nullable = false, updatable = false)
+    private long createdTimestamp;
+
+    /**
+     * The time at which the outbox entry failed.
+     */
+    // JPA annotations
+    @Column(name = "FAILED_TIMESTAMP", nullable = false, updatable = false)
+    private long failedTimestamp;
+
+    /**
+     * The error that stopped the outbox entry.
+     */
+    // JPA annotations
+    @Column(name = "ERROR", length = MAX_ERROR_LENGTH, nullable = false, updatable = false)
+    private String error;
+
+    /**
+     * The AuditTransaction as JSON.
+     */
+    // JPA annotations
+    @Lob
+    @Column(name = "DATA", length = Integer.MAX_VALUE, nullable = false, updatable = false)
+    private String data;
+}
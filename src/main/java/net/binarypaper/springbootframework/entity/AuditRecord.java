@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import java.util.Map;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The change to an audited entity captured when the entity is inserted,
+ * updated or deleted, to be written to the audit tables later.
+ * <p>
+ * The state of the entity is kept as JSON values by property name, so that a
+ * record captured before a change to the entity class can still be written
+ * after it. Associated entities are replaced by their id and collections are
+ * not captured.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Lombok annotations
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AuditRecord {
+
+    private String entityName;
+
+    private Object id;
+
+    /**
+     * The Envers revision type name, which would be either ADD, MOD or DEL.
+     */
+    private String revisionType;
+
+    private Map<String, Object> state;
+
+    private Map<String, Object> oldState;
+}
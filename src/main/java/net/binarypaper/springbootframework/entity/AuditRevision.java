@@ -18,11 +18,13 @@ package net.binarypaper.springbootframework.entity;
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonFormat.Shape;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import io.swagger.annotations.ApiModelProperty;
 import java.io.Serializable;
 import java.util.Date;
+import java.util.Map;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
@@ -47,7 +49,11 @@ import org.hibernate.envers.RevisionTimestamp;
     "rev",
     "revisionDate",
     "userName",
-    "revisionType"
+    "revisionType",
+    "changes",
+    "operation",
+    "details",
+    "itemCount"
 })
 // Lombok annotations
 @Data
@@ -138,6 +144,98 @@ public class AuditRevision implements Serializable {
     )
     private String revisionType;
 
+    /**
+     * The values of the entity attributes that were changed by the revision.
+     * <p>
+     * The changes are only determined when the changes of the revisions of an
+     * entity are requested and are not persisted. Therefore the field is marked
+     * as @Transient.
+     *
+     * @param changes The changed attribute values by attribute name
+     * @return The changed attribute values by attribute name
+     */
+    // JPA annotations
+    @Transient
+    // Jackson annotations
+    @JsonProperty("changes")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The values of the entity attributes that were changed by the revision",
+            readOnly = true,
+            position = 5
+    )
+    private Map<String, Object> changes;
+
+    /**
+     * The operation that created the revision, such as a bulk import.
+     * <p>
+     * Only set for operations that change many entities in a single revision.
+     *
+     * @param operation The operation that created the revision
+     * @return The operation that created the revision
+     */
+    // JPA annotations
+    @Column(name = "OPERATION", length = 50, updatable = false)
+    // Jackson annotations
+    @JsonProperty("operation")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The operation that created the revision",
+            readOnly = true,
+            example = "CSV_UPLOAD",
+            position = 6
+    )
+    private String operation;
+
+    /**
+     * The details of the operation that created the revision, such as the name
+     * of the imported file.
+     *
+     * @param details The details of the operation
+     * @return The details of the operation
+     */
+    // JPA annotations
+    @Column(name = "DETAILS", updatable = false)
+    // Jackson annotations
+    @JsonProperty("details")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The details of the operation that created the revision",
+            readOnly = true,
+            example = "lookup-values.csv",
+            position = 7
+    )
+    private String details;
+
+    /**
+     * The number of entities changed by the operation that created the
+     * revision.
+     * <p>
+     * Every audited entity changed in the revision is counted once, however
+     * often it changed. A CSV upload adds a lookup value per row, so its count
+     * is the number of rows.
+     *
+     * @param itemCount The number of entities changed in the revision
+     * @return The number of entities changed in the revision
+     */
+    // JPA annotations
+    @Column(name = "ITEM_COUNT")
+    // Jackson annotations
+    @JsonProperty("items")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The number of entities changed by the operation that created the revision, "
+            + "every changed entity is counted once, so a CSV upload counts its rows",
+            readOnly = true,
+            example = "12",
+            position = 8
+    )
+    private Integer itemCount;
+
     /**
      * Return the date and time of revision based on the revisionTimestamp
      *
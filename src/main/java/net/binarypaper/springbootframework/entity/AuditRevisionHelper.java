@@ -15,15 +15,50 @@
  */
 package net.binarypaper.springbootframework.entity;
 
-import java.lang.reflect.InvocationTargetException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import javax.persistence.EntityManager;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.metamodel.Attribute.PersistentAttributeType;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.EntityType;
 import lombok.extern.java.Log;
+import net.binarypaper.springbootframework.exception.BusinessLogicException;
+import org.hibernate.engine.spi.SessionImplementor;
 import org.hibernate.envers.AuditReader;
 import org.hibernate.envers.AuditReaderFactory;
+import org.hibernate.envers.NotAudited;
+import org.hibernate.envers.RevisionType;
+import org.hibernate.envers.boot.internal.EnversService;
+import org.hibernate.envers.configuration.internal.AuditEntitiesConfiguration;
+import org.hibernate.envers.exception.RevisionDoesNotExistException;
 import org.hibernate.envers.query.AuditEntity;
+import org.hibernate.envers.query.AuditQuery;
+import org.hibernate.envers.query.criteria.AuditCriterion;
+import org.hibernate.envers.query.order.AuditOrder;
 
 /**
  * Helper class to perform some common tasks on audit revisions of a database
@@ -36,19 +71,40 @@ import org.hibernate.envers.query.AuditEntity;
 @Log
 public class AuditRevisionHelper<T> {
 
+    // The method handles of the AuditRevision set methods by entity class
+    private static final Map<Class<?>, MethodHandle> REVISION_SET_METHODS = new ConcurrentHashMap<>();
+
+    // The names of the audited basic attributes by entity class
+    private static final Map<Class<?>, List<String>> AUDITED_ATTRIBUTES = new ConcurrentHashMap<>();
+
+    // The audited id, basic and to-one attributes stored in the audit archive
+    // by entity class
+    private static final Map<Class<?>, List<SingularAttribute<?, ?>>> ARCHIVED_ATTRIBUTES = new ConcurrentHashMap<>();
+
+    private static final ObjectMapper ARCHIVE_MAPPER = new ObjectMapper().findAndRegisterModules();
+
+    private static final TypeReference<List<ArchivedRevision>> ARCHIVED_REVISIONS_TYPE = new TypeReference<List<ArchivedRevision>>() {
+    };
+
+    // The maximum number of ids in the IN list of a query
+    private static final int IN_CHUNK_SIZE = 500;
+
+    // The positions of the revision details in a projected revision
+    private static final int REV = 0;
+    private static final int REVISION_TYPE = 1;
+    private static final int REVISION_TIMESTAMP = 2;
+    private static final int USER_NAME = 3;
+    private static final int FIRST_ATTRIBUTE = 4;
+
     private final Class<T> entityClass;
-    private final String revisionSetMethodName;
+    private final MethodHandle revisionSetMethod;
 
     public AuditRevisionHelper(Class<T> entityClass) {
         this.entityClass = entityClass;
-        revisionSetMethodName = getAuditRevisionSetMethod();
-        if (revisionSetMethodName == null) {
-            throw new RuntimeException("The entity class " + entityClass.getName()
-                    + " does not have a set method to set an AuditRevision");
-        }
+        revisionSetMethod = REVISION_SET_METHODS.computeIfAbsent(entityClass, AuditRevisionHelper::getAuditRevisionSetMethod);
     }
 
-    private String getAuditRevisionSetMethod() {
+    private static MethodHandle getAuditRevisionSetMethod(Class<?> entityClass) {
         // Get all the methods of the entity class
         Method[] methods = entityClass.getDeclaredMethods();
         // Loop through the array of methods
@@ -58,13 +114,29 @@ public class AuditRevisionHelper<T> {
             // Only consider methods with 1 input parameter
             if (parameterTypes.length == 1) {
                 if (parameterTypes[0].getName().equals(AuditRevision.class.getName())) {
-                    return method.getName();
+                    try {
+                        return MethodHandles.publicLookup().unreflect(method);
+                    } catch (IllegalAccessException ex) {
+                        log.severe(ex.getMessage());
+                        break;
+                    }
                 }
             }
         }
-        return null;
+        throw new RuntimeException("The entity class " + entityClass.getName()
+                + " does not have a set method to set an AuditRevision");
     }
 
+    /**
+     * Get all the audit revisions of an entity, oldest first.
+     * <p>
+     * The revisions moved to the audit archive are included before the
+     * revisions in the audit tables.
+     *
+     * @param em The entity manager
+     * @param id The id of the entity
+     * @return The entity at each revision with its audit revision set
+     */
     public List<T> getAllAuditRevisions(EntityManager em, Object id) {
         AuditReader reader = AuditReaderFactory.get(em);
         @SuppressWarnings("unchecked")
@@ -73,29 +145,628 @@ public class AuditRevisionHelper<T> {
                 .forRevisionsOfEntity(entityClass, false, true)
                 .add(AuditEntity.id().eq(id))
                 .getResultList();
-        List<T> entityList = new ArrayList<>();
-        for (Object[] revision : revisions) {
+        List<T> entityList = getArchivedAuditRevisions(em, id);
+        entityList.addAll(toEntityList(revisions));
+        return entityList;
+    }
+
+    /**
+     * Get all the audit revisions of a set of entities, oldest first per
+     * entity.
+     * <p>
+     * The revisions are selected with a single query per chunk of ids instead
+     * of a query per entity.
+     *
+     * @param em The entity manager
+     * @param ids The ids of the entities
+     * @return The entity at each revision with its audit revision set, grouped
+     * by id in the order of the ids
+     */
+    public Map<Object, List<T>> getAllAuditRevisions(EntityManager em, Collection<?> ids) {
+        Map<Object, List<T>> revisionsById = new LinkedHashMap<>();
+        Map<String, Object> idsByEntityId = new HashMap<>();
+        for (Object id : ids) {
+            revisionsById.put(id, new ArrayList<>());
+            idsByEntityId.put(id.toString(), id);
+        }
+        List<Object> idList = new ArrayList<>(revisionsById.keySet());
+        AuditReader reader = AuditReaderFactory.get(em);
+        PersistenceUnitUtil persistenceUnitUtil = em.getEntityManagerFactory().getPersistenceUnitUtil();
+        for (int i = 0; i < idList.size(); i += IN_CHUNK_SIZE) {
+            List<Object> chunk = idList.subList(i, Math.min(i + IN_CHUNK_SIZE, idList.size()));
+            // The archived revisions are older than the revisions in the audit
+            // tables
+            List<String> entityIds = new ArrayList<>(chunk.size());
+            for (Object id : chunk) {
+                entityIds.add(id.toString());
+            }
+            List<AuditArchive> auditArchives = em.createNamedQuery("AuditArchive.findByEntities", AuditArchive.class)
+                    .setParameter("entityName", entityClass.getName())
+                    .setParameter("entityIds", entityIds)
+                    .getResultList();
+            for (AuditArchive auditArchive : auditArchives) {
+                List<SingularAttribute<?, ?>> attributes = ARCHIVED_ATTRIBUTES.computeIfAbsent(entityClass, entity -> getArchivedAttributes(em));
+                List<T> entityList = revisionsById.get(idsByEntityId.get(auditArchive.getEntityId()));
+                for (ArchivedRevision archivedRevision : decompress(auditArchive.getData())) {
+                    entityList.add(toEntity(em, archivedRevision, attributes));
+                }
+            }
             @SuppressWarnings("unchecked")
-            T entity = (T) revision[0];
-            AuditRevision dbAuditRevision = (AuditRevision) revision[1];
-            dbAuditRevision.setRevisionType(revision[2].toString());
+            List<Object[]> revisions = (List<Object[]>) reader
+                    .createQuery()
+                    .forRevisionsOfEntity(entityClass, false, true)
+                    .add(AuditEntity.id().in(chunk))
+                    .addOrder(AuditEntity.revisionNumber().asc())
+                    .getResultList();
+            for (T entity : toEntityList(revisions)) {
+                revisionsById.get(persistenceUnitUtil.getIdentifier(entity)).add(entity);
+            }
+        }
+        return revisionsById;
+    }
+
+    /**
+     * Get the ids of the entities that have audit revisions made before a
+     * date, in order of id.
+     *
+     * @param em The entity manager
+     * @param date The date before which the revisions were made
+     * @param afterId Only return ids after this id, if specified
+     * @param maxResults The maximum number of ids to return
+     * @return The ids of the entities
+     */
+    public List<Object> getIdsWithRevisionsBefore(EntityManager em, Date date, Object afterId, int maxResults) {
+        AuditQuery query = AuditReaderFactory.get(em)
+                .createQuery()
+                .forRevisionsOfEntity(entityClass, false, true)
+                .addProjection(AuditEntity.id().distinct())
+                .add(AuditEntity.revisionProperty("revisionTimestamp").lt(date.getTime()))
+                .addOrder(AuditEntity.id().asc())
+                .setMaxResults(maxResults);
+        if (afterId != null) {
+            @SuppressWarnings("unchecked")
+            AuditCriterion afterIdCriterion = AuditEntity.id().gt(afterId);
+            query.add(afterIdCriterion);
+        }
+        @SuppressWarnings("unchecked")
+        List<Object> ids = (List<Object>) query.getResultList();
+        return ids;
+    }
+
+    /**
+     * Move the audit revisions of entities that were superseded by another
+     * revision made before a date to the audit archive.
+     * <p>
+     * The superseded revisions of each entity are stored in a new AuditArchive
+     * and deleted from the audit table. The latest revision of each entity
+     * made before the date is kept, so the entities can still be read at any
+     * date after it.
+     *
+     * @param em The entity manager
+     * @param ids The ids of the entities
+     * @param date The date before which the revisions were made
+     * @return The number of revisions moved to the audit archive
+     */
+    public int archiveAuditRevisions(EntityManager em, Collection<?> ids, Date date) {
+        @SuppressWarnings("unchecked")
+        List<Object[]> revisions = (List<Object[]>) AuditReaderFactory.get(em)
+                .createQuery()
+                .forRevisionsOfEntity(entityClass, false, true)
+                .add(AuditEntity.id().in(ids))
+                .add(AuditEntity.revisionProperty("revisionTimestamp").lt(date.getTime()))
+                .addOrder(AuditEntity.id().asc())
+                .addOrder(AuditEntity.revisionNumber().asc())
+                .getResultList();
+        PersistenceUnitUtil persistenceUnitUtil = em.getEntityManagerFactory().getPersistenceUnitUtil();
+        Map<Object, List<Object[]>> revisionsById = new LinkedHashMap<>();
+        for (Object[] revision : revisions) {
+            revisionsById.computeIfAbsent(persistenceUnitUtil.getIdentifier(revision[0]), key -> new ArrayList<>()).add(revision);
+        }
+        List<SingularAttribute<?, ?>> attributes = ARCHIVED_ATTRIBUTES.computeIfAbsent(entityClass, entity -> getArchivedAttributes(em));
+        String deleteQuery = getDeleteRevisionsQuery(em);
+        long archiveTimestamp = System.currentTimeMillis();
+        int archived = 0;
+        for (Map.Entry<Object, List<Object[]>> entry : revisionsById.entrySet()) {
+            List<Object[]> superseded = entry.getValue().subList(0, entry.getValue().size() - 1);
+            if (superseded.isEmpty()) {
+                continue;
+            }
+            List<ArchivedRevision> archivedRevisions = new ArrayList<>(superseded.size());
+            List<Long> revs = new ArrayList<>(superseded.size());
+            for (Object[] revision : superseded) {
+                ArchivedRevision archivedRevision = toArchivedRevision(persistenceUnitUtil, revision, attributes);
+                archivedRevisions.add(archivedRevision);
+                revs.add(archivedRevision.getRev());
+            }
+            AuditArchive auditArchive = new AuditArchive();
+            auditArchive.setEntityName(entityClass.getName());
+            auditArchive.setEntityId(entry.getKey().toString());
+            auditArchive.setFirstRev(revs.get(0));
+            auditArchive.setLastRev(revs.get(revs.size() - 1));
+            auditArchive.setRevisionCount(revs.size());
+            auditArchive.setArchiveTimestamp(archiveTimestamp);
+            auditArchive.setHorizonTimestamp(date.getTime());
+            auditArchive.setData(compress(archivedRevisions));
+            em.persist(auditArchive);
+            em.createQuery(deleteQuery)
+                    .setParameter("id", entry.getKey())
+                    .setParameter("revs", revs)
+                    .executeUpdate();
+            archived += revs.size();
+        }
+        return archived;
+    }
+
+    /**
+     * Get the audit revisions of an entity, newest first.
+     * <p>
+     * The revisions moved to the audit archive are included after the
+     * revisions in the audit tables when the page is not filled by them.
+     *
+     * @param em The entity manager
+     * @param id The id of the entity
+     * @param beforeRev Only return revisions before this revision number, if
+     * specified
+     * @param fromDate Only return revisions made on or after this date, if
+     * specified
+     * @param toDate Only return revisions made before this date, if specified
+     * @param pageSize The maximum number of revisions to return, if specified
+     * @return The entity at each revision with its audit revision set
+     */
+    public List<T> getAuditRevisions(EntityManager em, Object id, Long beforeRev, Date fromDate, Date toDate, Integer pageSize) {
+        AuditQuery query = createQuery(em, id, beforeRev, fromDate, toDate);
+        if (pageSize != null) {
+            query.setMaxResults(pageSize);
+        }
+        @SuppressWarnings("unchecked")
+        List<Object[]> revisions = (List<Object[]>) query.getResultList();
+        List<T> entityList = toEntityList(revisions);
+        if ((pageSize != null) && (entityList.size() == pageSize)) {
+            return entityList;
+        }
+        List<ArchivedRevision> archivedRevisions = getArchivedRevisions(em, id);
+        if (archivedRevisions.isEmpty()) {
+            return entityList;
+        }
+        List<SingularAttribute<?, ?>> attributes = ARCHIVED_ATTRIBUTES.computeIfAbsent(entityClass, entity -> getArchivedAttributes(em));
+        for (int i = archivedRevisions.size() - 1; i >= 0; i--) {
+            if ((pageSize != null) && (entityList.size() == pageSize)) {
+                break;
+            }
+            ArchivedRevision archivedRevision = archivedRevisions.get(i);
+            if (isSelected(archivedRevision, beforeRev, fromDate, toDate)) {
+                entityList.add(toEntity(em, archivedRevision, attributes));
+            }
+        }
+        return entityList;
+    }
+
+    /**
+     * Get only the audit revision details and the changed attribute values of
+     * an entity, newest first.
+     * <p>
+     * Only the revision details and the audited basic attributes of the entity
+     * are selected from the audit tables. The changes are determined by
+     * comparing each revision to the previous revision of the entity. The
+     * revisions moved to the audit archive are included after the revisions in
+     * the audit tables.
+     *
+     * @param em The entity manager
+     * @param id The id of the entity
+     * @param beforeRev Only return revisions before this revision number, if
+     * specified
+     * @param fromDate Only return revisions made on or after this date, if
+     * specified
+     * @param toDate Only return revisions made before this date, if specified
+     * @param pageSize The maximum number of revisions to return, if specified
+     * @return The audit revisions with the changed attribute values
+     */
+    public List<AuditRevision> getAuditRevisionChanges(EntityManager em, Object id, Long beforeRev, Date fromDate, Date toDate, Integer pageSize) {
+        List<String> attributes = AUDITED_ATTRIBUTES.computeIfAbsent(entityClass, entity -> getAuditedAttributes(em));
+        AuditQuery query = addProjections(createQuery(em, id, beforeRev, fromDate, toDate), attributes);
+        if (pageSize != null) {
+            // Select one more revision to compare the oldest revision to
+            query.setMaxResults(pageSize + 1);
+        }
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = (List<Object[]>) query.getResultList();
+        List<Object[]> archivedRows = null;
+        if ((pageSize == null) || (rows.size() <= pageSize)) {
+            // The page and the row to compare its oldest revision to may be
+            // in the audit archive
+            rows = new ArrayList<>(rows);
+            archivedRows = getArchivedRows(em, id, attributes);
+            for (Object[] archivedRow : archivedRows) {
+                if ((pageSize != null) && (rows.size() > pageSize)) {
+                    break;
+                }
+                if (isSelected(((Number) archivedRow[REV]).longValue(), ((Number) archivedRow[REVISION_TIMESTAMP]).longValue(),
+                        beforeRev, fromDate, toDate)) {
+                    rows.add(archivedRow);
+                }
+            }
+        }
+        int size = ((pageSize != null) && (rows.size() > pageSize)) ? pageSize : rows.size();
+        List<AuditRevision> auditRevisions = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Object[] row = rows.get(i);
+            Object[] previousRow;
+            if (i + 1 < rows.size()) {
+                previousRow = rows.get(i + 1);
+            } else {
+                previousRow = getPreviousRow(em, id, row, attributes, archivedRows);
+            }
             AuditRevision auditRevision = new AuditRevision();
-            auditRevision.setRev(dbAuditRevision.getRev());
-            auditRevision.setRevisionTimestamp(dbAuditRevision.getRevisionTimestamp());
-            auditRevision.setRevisionType(revision[2].toString());
-            auditRevision.setUserName(dbAuditRevision.getUserName());
-            // Call the revisionMethodName method using reflection in order to
-            // set the auditRevision on the entity class
+            auditRevision.setRev(((Number) row[REV]).longValue());
+            auditRevision.setRevisionType(row[REVISION_TYPE].toString());
+            auditRevision.setRevisionTimestamp(((Number) row[REVISION_TIMESTAMP]).longValue());
+            auditRevision.setUserName((String) row[USER_NAME]);
+            auditRevision.setChanges(getChanges(row, previousRow, attributes));
+            auditRevisions.add(auditRevision);
+        }
+        return auditRevisions;
+    }
+
+    /**
+     * Get the entities as they existed at the specified date.
+     * <p>
+     * The entities are read at the latest revision made on or before the date.
+     * With the ValidityAuditStrategy the query selects the audit records whose
+     * revision is valid at that revision by their REV and REVEND columns
+     * instead of searching for the latest revision of every entity.
+     * <p>
+     * The revisions moved to the audit archive cannot be queried, so the date
+     * may not be before the horizon of the audit archive.
+     *
+     * @param em The entity manager
+     * @param date The date at which to read the entities
+     * @param order The order of the entities
+     * @param criteria The criteria the entities have to match
+     * @return The entities that existed at the date, or an empty list if no
+     * revision was made on or before the date
+     * @throws BusinessLogicException If the date is before the horizon of the
+     * audit archive
+     */
+    public List<T> getEntitiesAtDate(EntityManager em, Date date, AuditOrder order, AuditCriterion... criteria) throws BusinessLogicException {
+        Long horizon = em.createNamedQuery("AuditArchive.findHorizon", Long.class)
+                .setParameter("entityName", entityClass.getName())
+                .getSingleResult();
+        if ((horizon != null) && (date.getTime() < horizon)) {
+            throw new BusinessLogicException("F003");
+        }
+        AuditReader reader = AuditReaderFactory.get(em);
+        Number revision;
+        try {
+            revision = reader.getRevisionNumberForDate(date);
+        } catch (RevisionDoesNotExistException ex) {
+            return new ArrayList<>();
+        }
+        AuditQuery query = reader
+                .createQuery()
+                .forEntitiesAtRevision(entityClass, revision)
+                .addOrder(order);
+        for (AuditCriterion criterion : criteria) {
+            query.add(criterion);
+        }
+        @SuppressWarnings("unchecked")
+        List<T> entities = (List<T>) query.getResultList();
+        return entities;
+    }
+
+    private AuditQuery createQuery(EntityManager em, Object id, Long beforeRev, Date fromDate, Date toDate) {
+        AuditReader reader = AuditReaderFactory.get(em);
+        AuditQuery query = reader
+                .createQuery()
+                .forRevisionsOfEntity(entityClass, false, true)
+                .add(AuditEntity.id().eq(id))
+                .addOrder(AuditEntity.revisionNumber().desc());
+        if (beforeRev != null) {
+            query.add(AuditEntity.revisionNumber().lt(beforeRev));
+        }
+        if (fromDate != null) {
+            query.add(AuditEntity.revisionProperty("revisionTimestamp").ge(fromDate.getTime()));
+        }
+        if (toDate != null) {
+            query.add(AuditEntity.revisionProperty("revisionTimestamp").lt(toDate.getTime()));
+        }
+        return query;
+    }
+
+    private AuditQuery addProjections(AuditQuery query, List<String> attributes) {
+        query.addProjection(AuditEntity.revisionNumber())
+                .addProjection(AuditEntity.revisionType())
+                .addProjection(AuditEntity.revisionProperty("revisionTimestamp"))
+                .addProjection(AuditEntity.revisionProperty("userName"));
+        for (String attribute : attributes) {
+            query.addProjection(AuditEntity.property(attribute));
+        }
+        return query;
+    }
+
+    private Object[] getPreviousRow(EntityManager em, Object id, Object[] row, List<String> attributes, List<Object[]> archivedRows) {
+        if (row[REVISION_TYPE] == RevisionType.ADD) {
+            return null;
+        }
+        // The previous revision is outside of the selected revisions
+        long rev = ((Number) row[REV]).longValue();
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = (List<Object[]>) addProjections(createQuery(em, id, rev, null, null), attributes)
+                .setMaxResults(1)
+                .getResultList();
+        if (!rows.isEmpty()) {
+            return rows.get(0);
+        }
+        if (archivedRows == null) {
+            archivedRows = getArchivedRows(em, id, attributes);
+        }
+        for (Object[] archivedRow : archivedRows) {
+            if (((Number) archivedRow[REV]).longValue() < rev) {
+                return archivedRow;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isSelected(ArchivedRevision archivedRevision, Long beforeRev, Date fromDate, Date toDate) {
+        return isSelected(archivedRevision.getRev(), archivedRevision.getRevisionTimestamp(), beforeRev, fromDate, toDate);
+    }
+
+    private static boolean isSelected(long rev, long revisionTimestamp, Long beforeRev, Date fromDate, Date toDate) {
+        return ((beforeRev == null) || (rev < beforeRev))
+                && ((fromDate == null) || (revisionTimestamp >= fromDate.getTime()))
+                && ((toDate == null) || (revisionTimestamp < toDate.getTime()));
+    }
+
+    private Map<String, Object> getChanges(Object[] row, Object[] previousRow, List<String> attributes) {
+        Map<String, Object> changes = new LinkedHashMap<>();
+        if (row[REVISION_TYPE] == RevisionType.DEL) {
+            return changes;
+        }
+        for (int i = 0; i < attributes.size(); i++) {
+            Object value = row[FIRST_ATTRIBUTE + i];
+            Object previousValue = (previousRow == null) ? null : previousRow[FIRST_ATTRIBUTE + i];
+            if (!Objects.equals(value, previousValue)) {
+                changes.put(attributes.get(i), value);
+            }
+        }
+        return changes;
+    }
+
+    private List<String> getAuditedAttributes(EntityManager em) {
+        List<String> attributes = new ArrayList<>();
+        for (SingularAttribute<? super T, ?> attribute : em.getMetamodel().entity(entityClass).getSingularAttributes()) {
+            if ((attribute.isId()) || (attribute.isVersion())
+                    || (attribute.getPersistentAttributeType() != PersistentAttributeType.BASIC)) {
+                continue;
+            }
+            if ((attribute.getJavaMember() instanceof AnnotatedElement)
+                    && (((AnnotatedElement) attribute.getJavaMember()).isAnnotationPresent(NotAudited.class))) {
+                continue;
+            }
+            attributes.add(attribute.getName());
+        }
+        Collections.sort(attributes);
+        return Collections.unmodifiableList(attributes);
+    }
+
+    private List<T> getArchivedAuditRevisions(EntityManager em, Object id) {
+        List<ArchivedRevision> archivedRevisions = getArchivedRevisions(em, id);
+        List<T> entityList = new ArrayList<>();
+        if (archivedRevisions.isEmpty()) {
+            return entityList;
+        }
+        List<SingularAttribute<?, ?>> attributes = ARCHIVED_ATTRIBUTES.computeIfAbsent(entityClass, entity -> getArchivedAttributes(em));
+        for (ArchivedRevision archivedRevision : archivedRevisions) {
+            entityList.add(toEntity(em, archivedRevision, attributes));
+        }
+        return entityList;
+    }
+
+    // Get the archived revisions of an entity, oldest first
+    private List<ArchivedRevision> getArchivedRevisions(EntityManager em, Object id) {
+        List<AuditArchive> auditArchives = em.createNamedQuery("AuditArchive.findByEntity", AuditArchive.class)
+                .setParameter("entityName", entityClass.getName())
+                .setParameter("entityId", id.toString())
+                .getResultList();
+        List<ArchivedRevision> archivedRevisions = new ArrayList<>();
+        for (AuditArchive auditArchive : auditArchives) {
+            archivedRevisions.addAll(decompress(auditArchive.getData()));
+        }
+        return archivedRevisions;
+    }
+
+    // Get the archived revisions of an entity, newest first, in the layout of
+    // the rows selected by the projections of the audited basic attributes
+    private List<Object[]> getArchivedRows(EntityManager em, Object id, List<String> attributes) {
+        List<ArchivedRevision> archivedRevisions = getArchivedRevisions(em, id);
+        List<Object[]> rows = new ArrayList<>(archivedRevisions.size());
+        if (archivedRevisions.isEmpty()) {
+            return rows;
+        }
+        EntityType<T> entityType = em.getMetamodel().entity(entityClass);
+        for (int i = archivedRevisions.size() - 1; i >= 0; i--) {
+            ArchivedRevision archivedRevision = archivedRevisions.get(i);
+            Object[] row = new Object[FIRST_ATTRIBUTE + attributes.size()];
+            row[REV] = archivedRevision.getRev();
+            row[REVISION_TYPE] = RevisionType.valueOf(archivedRevision.getRevisionType());
+            row[REVISION_TIMESTAMP] = archivedRevision.getRevisionTimestamp();
+            row[USER_NAME] = archivedRevision.getUserName();
+            for (int j = 0; j < attributes.size(); j++) {
+                Object value = archivedRevision.getState().get(attributes.get(j));
+                if (value != null) {
+                    value = ARCHIVE_MAPPER.convertValue(value, entityType.getAttribute(attributes.get(j)).getJavaType());
+                }
+                row[FIRST_ATTRIBUTE + j] = value;
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private List<SingularAttribute<?, ?>> getArchivedAttributes(EntityManager em) {
+        List<SingularAttribute<?, ?>> attributes = new ArrayList<>();
+        for (SingularAttribute<? super T, ?> attribute : em.getMetamodel().entity(entityClass).getSingularAttributes()) {
+            if (attribute.isVersion()) {
+                continue;
+            }
+            switch (attribute.getPersistentAttributeType()) {
+                case BASIC:
+                case MANY_TO_ONE:
+                case ONE_TO_ONE:
+                    break;
+                default:
+                    continue;
+            }
+            if (((AnnotatedElement) attribute.getJavaMember()).isAnnotationPresent(NotAudited.class)) {
+                continue;
+            }
+            if (!(attribute.getJavaMember() instanceof Field)) {
+                throw new RuntimeException("The attribute " + attribute.getName() + " of the entity class "
+                        + entityClass.getName() + " does not use field access and cannot be archived");
+            }
+            ((Field) attribute.getJavaMember()).setAccessible(true);
+            attributes.add(attribute);
+        }
+        return Collections.unmodifiableList(attributes);
+    }
+
+    private String getDeleteRevisionsQuery(EntityManager em) {
+        EnversService enversService = em.unwrap(SessionImplementor.class).getFactory().getServiceRegistry().getService(EnversService.class);
+        AuditEntitiesConfiguration configuration = enversService.getAuditEntitiesConfiguration();
+        EntityType<T> entityType = em.getMetamodel().entity(entityClass);
+        String idName = entityType.getId(entityType.getIdType().getJavaType()).getName();
+        return "DELETE FROM " + configuration.getAuditEntityName(entityClass.getName()) + " a"
+                + " WHERE a." + configuration.getOriginalIdPropName() + "." + idName + " = :id"
+                + " AND a." + configuration.getRevisionNumberPath() + " IN (:revs)";
+    }
+
+    private ArchivedRevision toArchivedRevision(PersistenceUnitUtil persistenceUnitUtil, Object[] revision,
+            List<SingularAttribute<?, ?>> attributes) {
+        AuditRevision auditRevision = (AuditRevision) revision[1];
+        ArchivedRevision archivedRevision = new ArchivedRevision();
+        archivedRevision.setRev(auditRevision.getRev());
+        archivedRevision.setRevisionType(revision[2].toString());
+        archivedRevision.setRevisionTimestamp(auditRevision.getRevisionTimestamp());
+        archivedRevision.setUserName(auditRevision.getUserName());
+        archivedRevision.setOperation(auditRevision.getOperation());
+        archivedRevision.setDetails(auditRevision.getDetails());
+        archivedRevision.setItemCount(auditRevision.getItemCount());
+        Map<String, Object> state = new LinkedHashMap<>();
+        for (SingularAttribute<?, ?> attribute : attributes) {
             try {
-                Method revisionMethod = entityClass.getMethod(revisionSetMethodName, AuditRevision.class);
-                revisionMethod.invoke(entity, auditRevision);
-            } catch (NoSuchMethodException | IllegalAccessException | IllegalArgumentException | InvocationTargetException ex) {
+                Object value = ((Field) attribute.getJavaMember()).get(revision[0]);
+                if ((value != null) && (attribute.isAssociation())) {
+                    // Only the id of the associated entity is audited
+                    value = persistenceUnitUtil.getIdentifier(value);
+                }
+                state.put(attribute.getName(), value);
+            } catch (IllegalAccessException ex) {
                 log.severe(ex.getMessage());
-                throw new RuntimeException("The set method of the entity class " + entityClass.getName()
-                        + " method to set an AuditRevision could not be called");
+                throw new RuntimeException("The attribute " + attribute.getName() + " of the entity class "
+                        + entityClass.getName() + " could not be read");
+            }
+        }
+        archivedRevision.setState(state);
+        return archivedRevision;
+    }
+
+    private T toEntity(EntityManager em, ArchivedRevision archivedRevision, List<SingularAttribute<?, ?>> attributes) {
+        try {
+            T entity = entityClass.newInstance();
+            for (SingularAttribute<?, ?> attribute : attributes) {
+                Object value = archivedRevision.getState().get(attribute.getName());
+                if (value == null) {
+                    continue;
+                }
+                if (attribute.isAssociation()) {
+                    // Only the id of the associated entity is archived
+                    EntityType<?> associatedType = em.getMetamodel().entity(attribute.getJavaType());
+                    Object associated = attribute.getJavaType().newInstance();
+                    Field idField = (Field) associatedType.getId(associatedType.getIdType().getJavaType()).getJavaMember();
+                    idField.setAccessible(true);
+                    idField.set(associated, ARCHIVE_MAPPER.convertValue(value, idField.getType()));
+                    value = associated;
+                } else {
+                    value = ARCHIVE_MAPPER.convertValue(value, attribute.getJavaType());
+                }
+                ((Field) attribute.getJavaMember()).set(entity, value);
             }
+            AuditRevision auditRevision = new AuditRevision();
+            auditRevision.setRev(archivedRevision.getRev());
+            auditRevision.setRevisionType(archivedRevision.getRevisionType());
+            auditRevision.setRevisionTimestamp(archivedRevision.getRevisionTimestamp());
+            auditRevision.setUserName(archivedRevision.getUserName());
+            auditRevision.setOperation(archivedRevision.getOperation());
+            auditRevision.setDetails(archivedRevision.getDetails());
+            auditRevision.setItemCount(archivedRevision.getItemCount());
+            setAuditRevision(entity, auditRevision);
+            return entity;
+        } catch (InstantiationException | IllegalAccessException ex) {
+            log.severe(ex.getMessage());
+            throw new RuntimeException("The archived revision " + archivedRevision.getRev() + " of the entity class "
+                    + entityClass.getName() + " could not be restored");
+        }
+    }
+
+    private static byte[] compress(List<ArchivedRevision> archivedRevisions) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            ARCHIVE_MAPPER.writeValue(out, archivedRevisions);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<ArchivedRevision> decompress(byte[] data) {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return ARCHIVE_MAPPER.readValue(in, ARCHIVED_REVISIONS_TYPE);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private List<T> toEntityList(List<Object[]> revisions) {
+        List<T> entityList = new ArrayList<>(revisions.size());
+        Set<AuditRevision> assignedRevisions = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Object[] revision : revisions) {
+            @SuppressWarnings("unchecked")
+            T entity = (T) revision[0];
+            // Each revision of an entity has its own revision entity, so the
+            // revision type can be set on the revision entity itself, unless
+            // the revision entity is shared with the revision of another
+            // entity made in the same transaction
+            AuditRevision auditRevision = (AuditRevision) revision[1];
+            if (!assignedRevisions.add(auditRevision)) {
+                auditRevision = copyAuditRevision(auditRevision);
+            }
+            auditRevision.setRevisionType(revision[2].toString());
+            setAuditRevision(entity, auditRevision);
             entityList.add(entity);
         }
         return entityList;
     }
+
+    private static AuditRevision copyAuditRevision(AuditRevision auditRevision) {
+        AuditRevision copy = new AuditRevision();
+        copy.setRev(auditRevision.getRev());
+        copy.setRevisionTimestamp(auditRevision.getRevisionTimestamp());
+        copy.setUserName(auditRevision.getUserName());
+        copy.setOperation(auditRevision.getOperation());
+        copy.setDetails(auditRevision.getDetails());
+        copy.setItemCount(auditRevision.getItemCount());
+        return copy;
+    }
+
+    private void setAuditRevision(T entity, AuditRevision auditRevision) {
+        // Call the cached set method in order to set the auditRevision on the
+        // entity class
+        try {
+            revisionSetMethod.invoke(entity, auditRevision);
+        } catch (Throwable ex) {
+            log.severe(ex.getMessage());
+            throw new RuntimeException("The set method of the entity class " + entityClass.getName()
+                    + " method to set an AuditRevision could not be called");
+        }
+    }
 }
@@ -15,22 +15,45 @@
  */
 package net.binarypaper.springbootframework.entity;
 
+import java.io.Serializable;
 import java.security.Principal;
-import org.hibernate.envers.RevisionListener;
+import net.binarypaper.springbootframework.context.RequestContext;
+import org.hibernate.envers.EntityTrackingRevisionListener;
+import org.hibernate.envers.RevisionType;
 
 /**
- * A custom Hibernate Envers RevisionListener used to add a user name to the
- * audit revision class
+ * A custom Hibernate Envers RevisionListener used to add a user name and the
+ * current operation to the audit revision class
  *
  * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
  */
-public class AuditRevisionListener implements RevisionListener {
+public class AuditRevisionListener implements EntityTrackingRevisionListener {
 
     @Override
     public void newRevision(Object revisionEntity) {
         AuditRevision auditRevision = (AuditRevision) revisionEntity;
-        Principal principal = CurrentUser.getPrincipal();
+        Principal principal = RequestContext.currentPrincipal();
+        if (principal == null) {
+            throw new IllegalStateException("There is no user principal in the request context to audit the changes");
+        }
         auditRevision.setUserName(principal.getName());
+        String operation = CurrentOperation.getOperation();
+        if (operation != null) {
+            auditRevision.setOperation(operation);
+            auditRevision.setDetails(CurrentOperation.getDetails());
+            auditRevision.setItemCount(0);
+        }
+    }
+
+    @Override
+    public void entityChanged(Class entityClass, String entityName, Serializable entityId, RevisionType revisionType, Object revisionEntity) {
+        AuditRevision auditRevision = (AuditRevision) revisionEntity;
+        // Only count the changed entities of the revisions of an operation.
+        // Envers merges the changes to the same entity before it calls this
+        // method, so every entity is counted once
+        if (auditRevision.getItemCount() != null) {
+            auditRevision.setItemCount(auditRevision.getItemCount() + 1);
+        }
     }
 
 }
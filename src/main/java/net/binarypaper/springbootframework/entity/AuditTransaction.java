@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Data;
+
+/**
+ * The audit records of a committed database transaction, which are written to
+ * the audit tables as a single audit revision.
+ * <p>
+ * The transaction is stored in the audit outbox as JSON. Unknown properties
+ * are ignored, so that entries inserted by an older or newer version of the
+ * application can still be read.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Lombok annotations
+@Data
+public class AuditTransaction {
+
+    static final ObjectMapper OUTBOX_MAPPER = new ObjectMapper()
+            .findAndRegisterModules()
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+            .enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+
+    private String userName;
+
+    private long revisionTimestamp;
+
+    private String operation;
+
+    private String details;
+
+    private List<AuditRecord> records = new ArrayList<>();
+
+    /**
+     * Converts the transaction to the JSON stored in the audit outbox.
+     *
+     * @return The JSON
+     */
+    String toJson() {
+        try {
+            return OUTBOX_MAPPER.writeValueAsString(this);
+        } catch (JsonProcessingException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Reads a transaction from the JSON stored in the audit outbox.
+     *
+     * @param json The JSON
+     * @return The transaction
+     */
+    static AuditTransaction fromJson(String json) {
+        try {
+            return OUTBOX_MAPPER.readValue(json, AuditTransaction.class);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
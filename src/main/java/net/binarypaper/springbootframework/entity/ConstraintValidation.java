@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import java.lang.annotation.Documented;
+import static java.lang.annotation.ElementType.TYPE;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation to map a database constraint of an entity class to the error code
+ * to return if the constraint is violated when the entity is persisted,
+ * updated or deleted by the PersistenceHelper.
+ * <p>
+ * A constraint name may not be mapped more than once for an entity class.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+@Target({TYPE})
+@Retention(RUNTIME)
+@Documented
+@Repeatable(ConstraintValidations.class)
+public @interface ConstraintValidation {
+
+    /**
+     * The name of the database constraint
+     *
+     * @return The constraint name
+     */
+    String constraint();
+
+    /**
+     * The error code to return if the constraint is violated
+     *
+     * @return The error code
+     */
+    String errorCode();
+
+    /**
+     * The error code to return if the constraint is violated by a batch
+     * operation. The errorCode is used if no batch error code is specified.
+     *
+     * @return The batch error code
+     */
+    String batchErrorCode() default "";
+}
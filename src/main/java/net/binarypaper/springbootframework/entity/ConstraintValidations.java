@@ -15,24 +15,21 @@
  */
 package net.binarypaper.springbootframework.entity;
 
-import java.security.Principal;
+import java.lang.annotation.Documented;
+import static java.lang.annotation.ElementType.TYPE;
+import java.lang.annotation.Retention;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import java.lang.annotation.Target;
 
 /**
- * Utility class used to pass the logged in user principal from the JAX-RS REST
- * resource to the Hibernate Envers RevisionListerer using a ThreadLocal
- * variable.
+ * Container annotation for the repeatable ConstraintValidation annotation
  *
  * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
  */
-public class CurrentUser {
+@Target({TYPE})
+@Retention(RUNTIME)
+@Documented
+public @interface ConstraintValidations {
 
-    private static final ThreadLocal<Principal> PRINCIPAL = new ThreadLocal<>();
-
-    public static void setPrincipal(Principal principal) {
-        PRINCIPAL.set(principal);
-    }
-
-    public static Principal getPrincipal() {
-        return PRINCIPAL.get();
-    }
+    ConstraintValidation[] value();
 }
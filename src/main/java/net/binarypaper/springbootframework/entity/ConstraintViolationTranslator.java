@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.hibernate.exception.ConstraintViolationException;
+
+/**
+ * Translates database constraint violations to error codes.
+ * <p>
+ * The cause chain of an exception is only inspected for the constraint name of
+ * a Hibernate ConstraintViolationException and for SQLExceptions with an
+ * integrity constraint violation SQL state (class 23). The message of such an
+ * SQLException is matched against a pattern of all the constraint names that
+ * is compiled once when the translator is created, because not all Hibernate
+ * dialects are able to extract the constraint name.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public class ConstraintViolationTranslator {
+
+    private static final String INTEGRITY_CONSTRAINT_VIOLATION = "23";
+
+    private final Map<String, String> errorCodes;
+    private final Pattern constraintNamePattern;
+
+    /**
+     * Instantiate a new ConstraintViolationTranslator for the specified
+     * constraint names.
+     *
+     * @param constraintErrorCodes The error codes by constraint name
+     */
+    public ConstraintViolationTranslator(Map<String, String> constraintErrorCodes) {
+        Map<String, String> codes = new HashMap<>();
+        StringBuilder alternatives = new StringBuilder();
+        for (Map.Entry<String, String> constraintErrorCode : constraintErrorCodes.entrySet()) {
+            codes.put(normalize(constraintErrorCode.getKey()), constraintErrorCode.getValue());
+            if (alternatives.length() > 0) {
+                alternatives.append('|');
+            }
+            alternatives.append(Pattern.quote(constraintErrorCode.getKey()));
+        }
+        errorCodes = Collections.unmodifiableMap(codes);
+        constraintNamePattern = codes.isEmpty()
+                ? null
+                : Pattern.compile("\\b(" + alternatives + ")\\b", Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * Get the error code of the constraint violated by the exception
+     *
+     * @param exception The exception thrown by the persistence provider
+     * @return The error code of the violated constraint or null if the
+     * exception was not caused by the violation of a known constraint
+     */
+    public String translate(Throwable exception) {
+        if (errorCodes.isEmpty()) {
+            return null;
+        }
+        for (Throwable t = exception; t != null; t = t.getCause()) {
+            if (t instanceof ConstraintViolationException) {
+                String constraintName = ((ConstraintViolationException) t).getConstraintName();
+                if (constraintName != null) {
+                    String errorCode = errorCodes.get(normalize(constraintName));
+                    if (errorCode != null) {
+                        return errorCode;
+                    }
+                }
+            } else if (t instanceof SQLException) {
+                // Batch update exceptions chain the cause of the failure as
+                // the next exception
+                for (SQLException sqlException = (SQLException) t; sqlException != null; sqlException = sqlException.getNextException()) {
+                    String errorCode = translate(sqlException);
+                    if (errorCode != null) {
+                        return errorCode;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private String translate(SQLException sqlException) {
+        String sqlState = sqlException.getSQLState();
+        String message = sqlException.getMessage();
+        if ((sqlState == null) || (message == null) || (!sqlState.startsWith(INTEGRITY_CONSTRAINT_VIOLATION))) {
+            return null;
+        }
+        Matcher matcher = constraintNamePattern.matcher(message);
+        if (matcher.find()) {
+            return errorCodes.get(normalize(matcher.group(1)));
+        }
+        return null;
+    }
+
+    private static String normalize(String constraintName) {
+        // Remove the schema name and quotes from the constraint name
+        String name = constraintName.substring(constraintName.lastIndexOf('.') + 1);
+        return name.replace("\"", "").replace("'", "").toUpperCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Utility class used to pass a description of the operation performed by the
+ * current transaction, such as a bulk import, to the Hibernate Envers
+ * RevisionListener.
+ * <p>
+ * The operation is bound to the current transaction, because Hibernate Envers
+ * only creates the audit revision of a transaction when the transaction
+ * commits.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public class CurrentOperation {
+
+    private static final Object OPERATION_KEY = new Object();
+
+    public static void setOperation(String operation, String details) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("An operation can only be set in a transaction");
+        }
+        TransactionSynchronizationManager.unbindResourceIfPossible(OPERATION_KEY);
+        TransactionSynchronizationManager.bindResource(OPERATION_KEY, new String[]{operation, details});
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(OPERATION_KEY);
+            }
+        });
+    }
+
+    public static String getOperation() {
+        String[] operation = (String[]) TransactionSynchronizationManager.getResource(OPERATION_KEY);
+        return (operation == null) ? null : operation[0];
+    }
+
+    public static String getDetails() {
+        String[] operation = (String[]) TransactionSynchronizationManager.getResource(OPERATION_KEY);
+        return (operation == null) ? null : operation[1];
+    }
+}
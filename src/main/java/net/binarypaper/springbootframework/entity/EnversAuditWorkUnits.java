@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import java.io.Serializable;
+import java.lang.reflect.AnnotatedElement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.PluralAttribute;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.envers.NotAudited;
+import org.hibernate.envers.RevisionType;
+import org.hibernate.envers.boot.internal.EnversService;
+import org.hibernate.envers.internal.synchronization.work.AddWorkUnit;
+import org.hibernate.envers.internal.synchronization.work.AuditWorkUnit;
+import org.hibernate.envers.internal.synchronization.work.DelWorkUnit;
+import org.hibernate.envers.internal.synchronization.work.ModWorkUnit;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.Type;
+
+/**
+ * Writes the audit records of a transaction to the audit tables with the
+ * Hibernate Envers work units, for the asynchronous audit mode.
+ * <p>
+ * Hibernate Envers has no public API to write audit records outside of the
+ * transaction that made the changes. The work units in
+ * org.hibernate.envers.internal.synchronization.work, and the
+ * ActionQueue.beforeTransactionCompletion call that lets the validity audit
+ * strategy end the previous revisions, are internal to Hibernate and may
+ * change in any Hibernate release. This class is the only user of the
+ * internal API, it must be checked when Hibernate is upgraded.
+ * <p>
+ * Only inserts, updates and deletes of entities are written. Changes to
+ * audited collections are not captured, so checkAuditedCollections refuses
+ * the asynchronous audit mode for entities with audited collections.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+class EnversAuditWorkUnits {
+
+    private final Session session;
+
+    private final SessionImplementor sessionImplementor;
+
+    private final EnversService enversService;
+
+    private final Map<String, AuditWorkUnit> workUnits = new LinkedHashMap<>();
+
+    /**
+     * Creates the work units of a transaction.
+     *
+     * @param em The entity manager of the transaction that writes the audit
+     * tables
+     */
+    EnversAuditWorkUnits(EntityManager em) {
+        session = em.unwrap(Session.class);
+        sessionImplementor = em.unwrap(SessionImplementor.class);
+        enversService = sessionImplementor.getFactory().getServiceRegistry().getService(EnversService.class);
+    }
+
+    /**
+     * Checks that no audited entity has an audited collection, because the
+     * changes to collections can not be written asynchronously.
+     *
+     * @param emf The entity manager factory
+     * @param enversService The Envers service
+     * @throws IllegalStateException If an audited entity has an audited
+     * collection
+     */
+    static void checkAuditedCollections(EntityManagerFactory emf, EnversService enversService) {
+        for (EntityType<?> entityType : emf.getMetamodel().getEntities()) {
+            // The audit entities are dynamic map entities without a Java type
+            if ((entityType.getJavaType() == null)
+                    || !enversService.getEntitiesConfigurations().isVersioned(entityType.getJavaType().getName())) {
+                continue;
+            }
+            for (PluralAttribute<?, ?, ?> attribute : entityType.getPluralAttributes()) {
+                if ((attribute.getJavaMember() instanceof AnnotatedElement)
+                        && (((AnnotatedElement) attribute.getJavaMember()).isAnnotationPresent(NotAudited.class))) {
+                    continue;
+                }
+                throw new IllegalStateException("The audited collection " + attribute.getName() + " of the entity "
+                        + entityType.getName() + " can not be audited with audit.mode=async, "
+                        + "annotate it with @NotAudited or use audit.mode=sync");
+            }
+        }
+    }
+
+    /**
+     * Adds the work unit of an audit record. The changes to the same entity are
+     * merged, the same as the Envers audit process of a transaction.
+     *
+     * @param auditRecord The audit record
+     */
+    void add(AuditRecord auditRecord) {
+        String entityName = auditRecord.getEntityName();
+        EntityPersister persister = sessionImplementor.getFactory().getMetamodel().entityPersister(entityName);
+        Serializable id = (Serializable) convertValue(auditRecord.getId(), persister.getIdentifierType());
+        Object[] state = toState(persister, auditRecord.getState());
+        AuditWorkUnit workUnit;
+        switch (RevisionType.valueOf(auditRecord.getRevisionType())) {
+            case ADD:
+                workUnit = new AddWorkUnit(sessionImplementor, entityName, enversService, id, persister, state);
+                break;
+            case MOD:
+                workUnit = new ModWorkUnit(sessionImplementor, entityName, enversService, id, persister, state,
+                        toState(persister, auditRecord.getOldState()));
+                break;
+            default:
+                workUnit = new DelWorkUnit(sessionImplementor, entityName, enversService, id, persister, state);
+        }
+        if (!workUnit.containsWork()) {
+            return;
+        }
+        String key = entityName + "#" + id;
+        AuditWorkUnit other = workUnits.remove(key);
+        AuditWorkUnit result = (other == null) ? workUnit : workUnit.dispatch(other);
+        if (result != null) {
+            workUnits.put(key, result);
+        }
+    }
+
+    /**
+     * The number of audited entities changed by the transaction.
+     *
+     * @return The number of entities
+     */
+    int size() {
+        return workUnits.size();
+    }
+
+    /**
+     * Writes the work units to the audit tables in an audit revision.
+     *
+     * @param auditRevision The saved audit revision of the transaction
+     */
+    void write(AuditRevision auditRevision) {
+        for (AuditWorkUnit workUnit : workUnits.values()) {
+            workUnit.perform(session, auditRevision);
+        }
+        if (sessionImplementor.getActionQueue().hasBeforeTransactionActions()) {
+            // The validity audit strategy ends the previous revisions of the
+            // entities before the transaction completes, which has to be done
+            // before the next revision of the same entities
+            session.flush();
+            sessionImplementor.getActionQueue().beforeTransactionCompletion();
+        }
+    }
+
+    private Object[] toState(EntityPersister persister, Map<String, Object> jsonState) {
+        if (jsonState == null) {
+            return null;
+        }
+        // Properties added after the record was captured are null and
+        // properties that have been removed are ignored
+        String[] propertyNames = persister.getPropertyNames();
+        Type[] types = persister.getPropertyTypes();
+        Object[] state = new Object[propertyNames.length];
+        for (int i = 0; i < propertyNames.length; i++) {
+            Object value = jsonState.get(propertyNames[i]);
+            if ((value == null) || types[i].isCollectionType()) {
+                continue;
+            }
+            if (types[i].isEntityType()) {
+                // Only the id of the associated entity is audited, so a proxy
+                // is sufficient
+                String associatedEntityName = ((org.hibernate.type.EntityType) types[i]).getAssociatedEntityName();
+                EntityPersister associatedPersister = sessionImplementor.getFactory().getMetamodel().entityPersister(associatedEntityName);
+                Serializable associatedId = (Serializable) convertValue(value, associatedPersister.getIdentifierType());
+                state[i] = session.load(associatedEntityName, associatedId);
+            } else {
+                state[i] = convertValue(value, types[i]);
+            }
+        }
+        return state;
+    }
+
+    private static Object convertValue(Object value, Type type) {
+        Class<?> javaType = type.getReturnedClass();
+        return AuditTransaction.OUTBOX_MAPPER.convertValue(value, javaType);
+    }
+}
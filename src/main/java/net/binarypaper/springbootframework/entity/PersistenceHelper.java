@@ -17,22 +17,30 @@ package net.binarypaper.springbootframework.entity;
 
 import java.lang.reflect.Field;
 import java.security.Principal;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import javax.persistence.EntityGraph;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceException;
 import javax.persistence.Version;
 import javax.validation.ConstraintViolationException;
+import lombok.Getter;
 import lombok.extern.java.Log;
+import net.binarypaper.springbootframework.context.RequestContext;
 import net.binarypaper.springbootframework.exception.BusinessLogicException;
 
 /**
- * Helper class used by the EJB layer to perform common persistence tasks
+ * Helper class used by the controller layer to perform common persistence
+ * tasks.
+ * <p>
+ * A PersistenceHelper is immutable and thread safe. The constraint
+ * validations declared with {@link ConstraintValidation} annotations and the
+ * updatable fields of the entity class are resolved once when the helper is
+ * created. Instances should be retrieved from the
+ * {@link PersistenceHelperRegistry} rather than created per request.
  *
  * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
  * @param <T> The entity class being updated
@@ -41,52 +49,86 @@ import net.binarypaper.springbootframework.exception.BusinessLogicException;
 @Log
 public class PersistenceHelper<T> {
 
+    /**
+     * The number of entities written per batch by the batch operations if the
+     * hibernate.jdbc.batch_size property is not configured
+     */
+    public static final int DEFAULT_BATCH_SIZE = 50;
+
+    private static final String BATCH_SIZE_PROPERTY = "hibernate.jdbc.batch_size";
+
+    /**
+     * The entity class of the persistence helper
+     *
+     * @return The entity class
+     */
+    // Lombok annotations
+    @Getter
     private final Class<T> entityClass;
+
     private final EntityManager em;
-    private final HashMap<String, String> constraintsToValidate = new HashMap<>();
-    private final List<Field> fields = new LinkedList<>();
-    private Field versionField;
+    private final ConstraintViolationTranslator constraintViolationTranslator;
+    private final ConstraintViolationTranslator batchConstraintViolationTranslator;
+    private final List<Field> updatableFields;
+    private final Field versionField;
+    private final int batchSize;
 
     /**
      * Instantiate a new PersistenceHelper of type entityClass in order to
      * perform persistence tasks for the entity class.
+     * <p>
+     * The entity manager should be a shared, thread safe entity manager, such
+     * as the one injected by Spring with the @PersistenceContext annotation.
      *
      * @param entityClass The entity class being persisted
      * @param em The entity manager to use
-     * @param principal The user principal of the currently logged in user
      */
-    public PersistenceHelper(Class<T> entityClass, EntityManager em, Principal principal) {
+    public PersistenceHelper(Class<T> entityClass, EntityManager em) {
         this.entityClass = entityClass;
         this.em = em;
-        CurrentUser.setPrincipal(principal);
-    }
-
-    /**
-     * Add a database unique constraint to validate when persisting or merging a
-     * database entity.
-     * <p>
-     * A unique constraint name may not be associated with more than one error
-     * code.
-     *
-     * @param constraintName The name of the database unique constraint
-     * @param errorMessage The error message to return if the unique constraint
-     * is violated
-     */
-    public void addConstraintValidation(String constraintName, String errorMessage) {
-        if (constraintsToValidate.containsKey(constraintName)) {
-            throw new RuntimeException("The constraint " + constraintName
-                    + " has already been added");
+        Map<String, String> errorCodes = new HashMap<>();
+        Map<String, String> batchErrorCodes = new HashMap<>();
+        List<Field> fields = new ArrayList<>();
+        Field version = null;
+        for (Class<?> type = entityClass; type != null; type = type.getSuperclass()) {
+            for (ConstraintValidation constraintValidation : type.getAnnotationsByType(ConstraintValidation.class)) {
+                String constraintName = constraintValidation.constraint();
+                if (errorCodes.containsKey(constraintName)) {
+                    throw new RuntimeException("The constraint " + constraintName
+                            + " has already been added for the entity class " + entityClass.getName());
+                }
+                errorCodes.put(constraintName, constraintValidation.errorCode());
+                batchErrorCodes.put(constraintName, constraintValidation.batchErrorCode().isEmpty()
+                        ? constraintValidation.errorCode()
+                        : constraintValidation.batchErrorCode());
+            }
+            for (Field field : type.getDeclaredFields()) {
+                if (field.isAnnotationPresent(Version.class)) {
+                    field.setAccessible(true);
+                    version = field;
+                }
+                if (field.isAnnotationPresent(Updatable.class)) {
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
         }
-        constraintsToValidate.put(constraintName, errorMessage);
+        constraintViolationTranslator = new ConstraintViolationTranslator(errorCodes);
+        batchConstraintViolationTranslator = new ConstraintViolationTranslator(batchErrorCodes);
+        updatableFields = Collections.unmodifiableList(fields);
+        versionField = version;
+        batchSize = readBatchSize(em);
     }
 
     /**
      * Persist the entity to the database using the specified entity manager
      *
      * @param entity the entity to persist
+     * @param principal The user principal of the currently logged in user
      * @return The persisted entity
      */
-    public T persistEntity(T entity) {
+    public T persistEntity(T entity, Principal principal) {
+        RequestContext.openForTransaction(principal);
         try {
             em.persist(entity);
             em.flush();
@@ -111,37 +153,12 @@ public class PersistenceHelper<T> {
      * @param databaseEntity The database entity to update
      * @param updateEntity The update entity containing the field changes for
      * the update
+     * @param principal The user principal of the currently logged in user
      * @return The updated database entity
      */
-    public T updateEntity(T databaseEntity, T updateEntity) {
-        if (fields.isEmpty()) {
-            getAllFields(fields, entityClass);
-            for (Field field : fields) {
-                Version versionAnnotation = field.getAnnotation(Version.class);
-                if (versionAnnotation != null) {
-                    versionField = field;
-                    versionField.setAccessible(true);
-                }
-            }
-        }
-        if ((versionField != null) && (!versionsMatch(databaseEntity, updateEntity))) {
-            throw new BusinessLogicException("F001");
-        }
-        // Modify the changed attributes
-        for (Field field : fields) {
-            Updatable updatable = field.getAnnotation(Updatable.class);
-            if (updatable != null) {
-                try {
-                    field.setAccessible(true);
-                    Object updateFieldValue = field.get(updateEntity);
-                    field.set(databaseEntity, updateFieldValue);
-                } catch (SecurityException | IllegalArgumentException | IllegalAccessException ex) {
-                    log.severe(ex.getMessage());
-                    throw new RuntimeException("The entity class " + entityClass.getName()
-                            + "." + field.getName() + " could not be updated");
-                }
-            }
-        }
+    public T updateEntity(T databaseEntity, T updateEntity, Principal principal) {
+        RequestContext.openForTransaction(principal);
+        copyUpdatableFields(databaseEntity, updateEntity);
         try {
             databaseEntity = em.merge(databaseEntity);
             em.flush();
@@ -158,12 +175,151 @@ public class PersistenceHelper<T> {
         return databaseEntity;
     }
 
-    private List<Field> getAllFields(List<Field> fields, Class<?> type) {
-        fields.addAll(Arrays.asList(type.getDeclaredFields()));
-        if (type.getSuperclass() != null) {
-            fields = getAllFields(fields, type.getSuperclass());
+    /**
+     * Persist the entities to the database in batches using the specified
+     * entity manager.
+     * <p>
+     * The persistence context is flushed and cleared after every batch of
+     * entities, where the batch size is the configured hibernate.jdbc.batch_size
+     * or {@link #DEFAULT_BATCH_SIZE} if it is not configured. The entities are
+     * only retrieved from the iterable once the previous entity has been
+     * persisted, which allows the iterable to be lazily populated.
+     * <p>
+     * If a constraint is violated, the item index of the resulting
+     * BusinessLogicException is set to the index of the entity that violated
+     * the constraint, or to the index of the first entity of the batch if the
+     * violation only occurred when the batch was flushed.
+     *
+     * @param entities The entities to persist
+     * @param principal The user principal of the currently logged in user
+     * @return The persisted entities
+     */
+    public List<T> persistAll(Iterable<? extends T> entities, Principal principal) {
+        return persistAll(entities, batchSize, principal);
+    }
+
+    /**
+     * Persist the entities to the database in batches of the specified size
+     * using the specified entity manager.
+     *
+     * @param entities The entities to persist
+     * @param batchSize The number of entities to persist before the
+     * persistence context is flushed and cleared
+     * @param principal The user principal of the currently logged in user
+     * @return The persisted entities
+     * @see #persistAll(java.lang.Iterable, java.security.Principal)
+     */
+    public List<T> persistAll(Iterable<? extends T> entities, int batchSize, Principal principal) {
+        RequestContext.openForTransaction(principal);
+        List<T> persistedEntities = new ArrayList<>();
+        int index = 0;
+        int batchStart = 0;
+        for (T entity : entities) {
+            try {
+                em.persist(entity);
+            } catch (ConstraintViolationException ex) {
+                throw new BusinessLogicException(ex.getConstraintViolations(), index);
+            } catch (PersistenceException ex) {
+                throw handlePersistenceException(ex, index);
+            }
+            persistedEntities.add(entity);
+            index++;
+            if (index - batchStart == batchSize) {
+                flushBatch(batchStart, true);
+                batchStart = index;
+            }
+        }
+        flushBatch(batchStart, false);
+        return persistedEntities;
+    }
+
+    /**
+     * Update the database entities in batches using the specified entity
+     * manager.
+     * <p>
+     * Each database entity is updated with the updatable fields of the update
+     * entity at the same index, as is done by
+     * {@link #updateEntity(java.lang.Object, java.lang.Object, java.security.Principal)}.
+     * The persistence context is flushed and cleared after every batch of
+     * entities, where the batch size is the configured hibernate.jdbc.batch_size
+     * or {@link #DEFAULT_BATCH_SIZE} if it is not configured.
+     *
+     * @param databaseEntities The database entities to update
+     * @param updateEntities The update entities containing the field changes
+     * for the update
+     * @param principal The user principal of the currently logged in user
+     * @return The updated database entities
+     */
+    public List<T> updateAll(List<T> databaseEntities, List<T> updateEntities, Principal principal) {
+        return updateAll(databaseEntities, updateEntities, batchSize, principal);
+    }
+
+    /**
+     * Update the database entities in batches of the specified size using the
+     * specified entity manager.
+     *
+     * @param databaseEntities The database entities to update
+     * @param updateEntities The update entities containing the field changes
+     * for the update
+     * @param batchSize The number of entities to update before the persistence
+     * context is flushed and cleared
+     * @param principal The user principal of the currently logged in user
+     * @return The updated database entities
+     * @see #updateAll(java.util.List, java.util.List, java.security.Principal)
+     */
+    public List<T> updateAll(List<T> databaseEntities, List<T> updateEntities, int batchSize, Principal principal) {
+        if (databaseEntities.size() != updateEntities.size()) {
+            throw new IllegalArgumentException("The number of database entities and update entities must be the same");
+        }
+        RequestContext.openForTransaction(principal);
+        List<T> updatedEntities = new ArrayList<>(databaseEntities.size());
+        int batchStart = 0;
+        for (int index = 0; index < databaseEntities.size(); index++) {
+            try {
+                T databaseEntity = databaseEntities.get(index);
+                copyUpdatableFields(databaseEntity, updateEntities.get(index));
+                updatedEntities.add(em.merge(databaseEntity));
+            } catch (BusinessLogicException ex) {
+                throw new BusinessLogicException(ex.getErrorCode(), index);
+            } catch (ConstraintViolationException ex) {
+                throw new BusinessLogicException(ex.getConstraintViolations(), index);
+            } catch (PersistenceException ex) {
+                throw handlePersistenceException(ex, index);
+            }
+            if ((index + 1 - batchStart == batchSize) || (index + 1 == databaseEntities.size())) {
+                boolean clear = index + 1 < databaseEntities.size();
+                // Check the versions before clearing the persistence context
+                // in order to determine if each of the entities was updated
+                flushBatch(batchStart, false);
+                for (int i = batchStart; i <= index; i++) {
+                    if ((versionField != null) && (versionsMatch(updatedEntities.get(i), updateEntities.get(i)))) {
+                        throw new BusinessLogicException("F002", i);
+                    }
+                }
+                if (clear) {
+                    em.clear();
+                }
+                batchStart = index + 1;
+            }
+        }
+        return updatedEntities;
+    }
+
+    private void copyUpdatableFields(T databaseEntity, T updateEntity) {
+        if ((versionField != null) && (!versionsMatch(databaseEntity, updateEntity))) {
+            throw new BusinessLogicException("F001");
+        }
+        // Modify the changed attributes
+        for (Field field : updatableFields) {
+            try {
+                Object updateFieldValue = field.get(updateEntity);
+                field.set(databaseEntity, updateFieldValue);
+            } catch (IllegalArgumentException | IllegalAccessException ex) {
+                log.severe(ex.getMessage());
+                throw new RuntimeException("The entity class " + entityClass.getName()
+                        + "." + field.getName() + " could not be updated");
+            }
         }
-        return fields;
     }
 
     private boolean versionsMatch(T databaseEntity, T updateEntity) {
@@ -181,8 +337,10 @@ public class PersistenceHelper<T> {
      * key.
      *
      * @param entity The entity to delete
+     * @param principal The user principal of the currently logged in user
      */
-    public void deleteEntity(Object entity) {
+    public void deleteEntity(Object entity, Principal principal) {
+        RequestContext.openForTransaction(principal);
         try {
             em.remove(entity);
             em.flush();
@@ -191,20 +349,97 @@ public class PersistenceHelper<T> {
         }
     }
 
+    /**
+     * Delete the database entities from the database in batches using the
+     * specified entity manager.
+     * <p>
+     * The persistence context is flushed and cleared after every batch of
+     * entities, where the batch size is the configured hibernate.jdbc.batch_size
+     * or {@link #DEFAULT_BATCH_SIZE} if it is not configured. Entities that are
+     * detached when they are deleted are merged before they are removed.
+     *
+     * @param entities The entities to delete
+     * @param principal The user principal of the currently logged in user
+     */
+    public void deleteAll(Iterable<?> entities, Principal principal) {
+        deleteAll(entities, batchSize, principal);
+    }
+
+    /**
+     * Delete the database entities from the database in batches of the
+     * specified size using the specified entity manager.
+     *
+     * @param entities The entities to delete
+     * @param batchSize The number of entities to delete before the persistence
+     * context is flushed and cleared
+     * @param principal The user principal of the currently logged in user
+     * @see #deleteAll(java.lang.Iterable, java.security.Principal)
+     */
+    public void deleteAll(Iterable<?> entities, int batchSize, Principal principal) {
+        RequestContext.openForTransaction(principal);
+        int index = 0;
+        int batchStart = 0;
+        for (Object entity : entities) {
+            try {
+                em.remove(em.contains(entity) ? entity : em.merge(entity));
+            } catch (PersistenceException ex) {
+                throw handlePersistenceException(ex, index);
+            }
+            index++;
+            if (index - batchStart == batchSize) {
+                flushBatch(batchStart, true);
+                batchStart = index;
+            }
+        }
+        flushBatch(batchStart, false);
+    }
+
+    private void flushBatch(int batchStart, boolean clear) {
+        try {
+            em.flush();
+        } catch (ConstraintViolationException ex) {
+            throw new BusinessLogicException(ex.getConstraintViolations(), batchStart);
+        } catch (PersistenceException ex) {
+            throw handlePersistenceException(ex, batchStart);
+        }
+        if (clear) {
+            em.clear();
+        }
+    }
+
+    private static int readBatchSize(EntityManager em) {
+        Object batchSize = em.getEntityManagerFactory().getProperties().get(BATCH_SIZE_PROPERTY);
+        if (batchSize != null) {
+            try {
+                int size = Integer.parseInt(batchSize.toString().trim());
+                if (size > 0) {
+                    return size;
+                }
+            } catch (NumberFormatException ex) {
+                log.warning("The " + BATCH_SIZE_PROPERTY + " property " + batchSize + " is not a number");
+            }
+        }
+        return DEFAULT_BATCH_SIZE;
+    }
+
     private BusinessLogicException handlePersistenceException(PersistenceException ex) {
+        return handlePersistenceException(ex, null);
+    }
+
+    private BusinessLogicException handlePersistenceException(PersistenceException ex, Integer itemIndex) {
         // Handle database constraint violations by throwing a
         // BusinessLogicException with the correct error code
-        for (Throwable t = ex.getCause(); t != null; t = t.getCause()) {
-            Set<String> constraintNames = constraintsToValidate.keySet();
-            for (String constraintName : constraintNames) {
-                if (t.getMessage().contains(constraintName)) {
-                    String errorMessage = constraintsToValidate.get(constraintName);
-                    return new BusinessLogicException(errorMessage);
-                }
-            }
+        String errorCode = (itemIndex == null)
+                ? constraintViolationTranslator.translate(ex)
+                : batchConstraintViolationTranslator.translate(ex);
+        if (errorCode == null) {
+            // If the persistence exception could not be handled
+            throw ex;
+        }
+        if (itemIndex != null) {
+            return new BusinessLogicException(errorCode, itemIndex);
         }
-        // If the persistence exception could not be handled
-        throw ex;
+        return new BusinessLogicException(errorCode);
     }
 
     /**
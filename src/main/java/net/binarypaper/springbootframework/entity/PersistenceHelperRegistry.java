@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.PostConstruct;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.metamodel.EntityType;
+import org.springframework.stereotype.Component;
+
+/**
+ * A Spring bean that creates a single, thread safe PersistenceHelper for every
+ * entity class of the persistence unit when the application starts.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@Component
+public class PersistenceHelperRegistry {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    private Map<Class<?>, PersistenceHelper<?>> persistenceHelpers;
+
+    @PostConstruct
+    public void init() {
+        Map<Class<?>, PersistenceHelper<?>> helpers = new HashMap<>();
+        for (EntityType<?> entityType : em.getMetamodel().getEntities()) {
+            Class<?> entityClass = entityType.getJavaType();
+            // Skip the dynamic map entities of the Envers audit tables
+            if ((entityClass != null) && (entityClass.isAnnotationPresent(Entity.class))) {
+                helpers.put(entityClass, new PersistenceHelper<>(entityClass, em));
+            }
+        }
+        persistenceHelpers = Collections.unmodifiableMap(helpers);
+    }
+
+    /**
+     * Get the PersistenceHelper of the specified entity class
+     *
+     * @param <T> The entity class
+     * @param entityClass The entity class
+     * @return The PersistenceHelper of the entity class
+     */
+    @SuppressWarnings("unchecked")
+    public <T> PersistenceHelper<T> getPersistenceHelper(Class<T> entityClass) {
+        PersistenceHelper<T> persistenceHelper = (PersistenceHelper<T>) persistenceHelpers.get(entityClass);
+        if (persistenceHelper == null) {
+            throw new IllegalArgumentException("The class " + entityClass.getName() + " is not an entity class");
+        }
+        return persistenceHelper;
+    }
+}
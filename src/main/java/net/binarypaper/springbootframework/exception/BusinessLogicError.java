@@ -35,7 +35,8 @@ import lombok.Setter;
 @JsonPropertyOrder({
     "errorCode",
     "message",
-    "fieldErrors"
+    "fieldErrors",
+    "itemIndex"
 })
 // Lombok annotations
 @Getter
@@ -73,4 +74,15 @@ public class BusinessLogicError {
     )
     private List<FieldError> fieldErrors;
 
+    // Jackson annotations
+    @JsonProperty("item_index")
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The index of the item of a batch request that caused the error",
+            example = "3",
+            readOnly = true,
+            position = 4
+    )
+    private Integer itemIndex;
+
 }
@@ -57,6 +57,16 @@ public class BusinessLogicException extends RuntimeException {
     @Getter
     private Set<ConstraintViolation<?>> constraintViolations;
 
+    /**
+     * The index of the item of a batch operation that caused the error
+     *
+     * @return The item index or null if the error was not caused by an item of
+     * a batch operation
+     */
+    // Lombok annotations
+    @Getter
+    private Integer itemIndex;
+
     /**
      * Constructs an instance of <code>BusinessLogicException</code> with the
      * specified error code.
@@ -93,4 +103,31 @@ public class BusinessLogicException extends RuntimeException {
         this.constraintViolations = constraintViolations;
     }
 
+    /**
+     * Constructs an instance of <code>BusinessLogicException</code> with the
+     * specified error code for the item of a batch operation that caused the
+     * error.
+     *
+     * @param errorCode The error code of the error
+     * @param itemIndex The index of the item that caused the error
+     */
+    public BusinessLogicException(String errorCode, int itemIndex) {
+        this(errorCode);
+        this.itemIndex = itemIndex;
+    }
+
+    /**
+     * Constructs an instance of <code>BusinessLogicException</code> with the
+     * specified Bean Validation constraint validations for the item of a batch
+     * operation that caused the error.
+     *
+     * @param constraintViolations The set of Bean Validation constraint
+     * validations
+     * @param itemIndex The index of the item that caused the error
+     */
+    public BusinessLogicException(Set<ConstraintViolation<?>> constraintViolations, int itemIndex) {
+        this(constraintViolations);
+        this.itemIndex = itemIndex;
+    }
+
 }
@@ -61,9 +61,15 @@ public class RestExceptionHandler {
             }
             businessLogicError.setFieldErrors(fieldErrors);
         }
+        // Set the index of the batch item that caused the error
+        businessLogicError.setItemIndex(businessLogicException.getItemIndex());
         // Set the content type header
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_JSON);
+        // Tell the client when to retry a request rejected because of overload
+        if (businessLogicException instanceof TooManyRequestsException) {
+            headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(((TooManyRequestsException) businessLogicException).getRetryAfter()));
+        }
         return new ResponseEntity<>(businessLogicError, headers, businessLogicException.getHttpStatus());
     }
 
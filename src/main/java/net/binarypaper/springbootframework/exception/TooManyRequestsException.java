@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.exception;
+
+import lombok.Getter;
+import org.springframework.http.HttpStatus;
+
+/**
+ * A Business Logic Exception for a request that is rejected because the
+ * application is overloaded. The REST response has the HTTP status 429 and a
+ * Retry-After header.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public class TooManyRequestsException extends BusinessLogicException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of seconds after which the client can retry the request
+     *
+     * @return The retry delay in seconds
+     */
+    // Lombok annotations
+    @Getter
+    private final long retryAfter;
+
+    /**
+     * Constructs an instance of <code>TooManyRequestsException</code> with the
+     * specified error code.
+     *
+     * @param errorCode The error code of the error
+     * @param retryAfter The number of seconds after which the client can retry
+     * the request
+     */
+    public TooManyRequestsException(String errorCode, long retryAfter) {
+        super(errorCode, HttpStatus.TOO_MANY_REQUESTS);
+        this.retryAfter = retryAfter;
+    }
+
+}
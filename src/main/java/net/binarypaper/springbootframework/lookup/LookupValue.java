@@ -52,6 +52,7 @@ import lombok.ToString;
 import org.hibernate.envers.Audited;
 import org.hibernate.envers.NotAudited;
 import net.binarypaper.springbootframework.entity.AuditRevision;
+import net.binarypaper.springbootframework.entity.ConstraintValidation;
 import net.binarypaper.springbootframework.entity.DatedEntity;
 import net.binarypaper.springbootframework.entity.Updatable;
 import org.hibernate.annotations.Cache;
@@ -94,9 +95,16 @@ import org.hibernate.annotations.QueryHints;
                 ,@QueryHint(name = QueryHints.CACHE_REGION, value = "QueriesRegion")
             }
     )
+    ,@NamedQuery(
+            name = "LookupValue.findUniqueKeysByLookupListName",
+            query = "SELECT lv.displayValue, p.id FROM LookupValue lv LEFT JOIN lv.parent p WHERE lv.lookupListName = :lookupListName"
+    )
 })
 // Envers annotations
 @Audited
+// Framework annotations
+@ConstraintValidation(constraint = "UC_LOOKUP_LIST_VALUE", errorCode = "0004", batchErrorCode = "0011")
+@ConstraintValidation(constraint = "FK_LOOKUP_VALUE_PARENT", errorCode = "0008")
 // Jackson annotations
 @JsonPropertyOrder({
     "id",
@@ -30,9 +30,15 @@ import java.security.Principal;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.StreamSupport;
+import javax.annotation.PostConstruct;
 import javax.annotation.security.RolesAllowed;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
@@ -42,6 +48,9 @@ import javax.persistence.TypedQuery;
 import lombok.extern.java.Log;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
+import org.hibernate.envers.query.AuditEntity;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -63,7 +72,9 @@ import net.binarypaper.springbootframework.entity.AuditRevision;
 import net.binarypaper.springbootframework.entity.DatedEntity;
 import net.binarypaper.springbootframework.exception.BusinessLogicException;
 import net.binarypaper.springbootframework.entity.AuditRevisionHelper;
+import net.binarypaper.springbootframework.entity.CurrentOperation;
 import net.binarypaper.springbootframework.entity.PersistenceHelper;
+import net.binarypaper.springbootframework.entity.PersistenceHelperRegistry;
 import net.binarypaper.springbootframework.exception.BusinessLogicError;
 import net.binarypaper.springbootframework.SwaggerConfig;
 
@@ -85,9 +96,26 @@ import net.binarypaper.springbootframework.SwaggerConfig;
 @Log
 public class LookupValueController {
 
+    private static final int MAX_PAGE_SIZE = 1000;
+
     @PersistenceContext
     private EntityManager em;
 
+    @Autowired
+    private PersistenceHelperRegistry persistenceHelperRegistry;
+
+    @Autowired
+    private LookupValueKeyIndex lookupValueKeyIndex;
+
+    private PersistenceHelper<LookupValue> persistenceHelper;
+
+    private final AuditRevisionHelper<LookupValue> auditRevisionHelper = new AuditRevisionHelper<>(LookupValue.class);
+
+    @PostConstruct
+    public void init() {
+        persistenceHelper = persistenceHelperRegistry.getPersistenceHelper(LookupValue.class);
+    }
+
     // Spring annotations
     @PostMapping
     @Transactional
@@ -130,9 +158,10 @@ public class LookupValueController {
                 throw new BusinessLogicException("0001");
             }
         }
-        PersistenceHelper<LookupValue> persistenceHelper = new PersistenceHelper<>(LookupValue.class, em, principal);
-        persistenceHelper.addConstraintValidation("UC_LOOKUP_LIST_VALUE", "0004");
-        lookupValue = persistenceHelper.persistEntity(lookupValue);
+        if (!lookupValueKeyIndex.addKey(lookupValue)) {
+            throw new BusinessLogicException("0004");
+        }
+        lookupValue = persistenceHelper.persistEntity(lookupValue, principal);
         URI location = ServletUriComponentsBuilder
                 .fromCurrentRequest()
                 .path("/{id}")
@@ -189,6 +218,46 @@ public class LookupValueController {
         return ResponseEntity.ok(lookupValues);
     }
 
+    // Spring annotations
+    @GetMapping("lookup-list-name/{lookup-list-name}/as-of")
+    // Security annotations
+    @RolesAllowed("view-audit-revisions")
+    // Jackson annotations
+    @JsonView(LookupValue.View.List.class)
+    // Swagger annotations
+    @ApiOperation(value = "Get all lookup values for the lookup list name as they were at a point in time",
+            notes = "Get all lookup values for the lookup list name as they were at a point in time, "
+            + "read from the audit revisions",
+            code = 200,
+            responseContainer = "List",
+            response = LookupValue.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 204, message = "No lookup values to return")
+        ,@ApiResponse(code = 400, message = "The input data is invalid", response = BusinessLogicError.class)
+    })
+    public ResponseEntity<List<LookupValue>> getLookupValuesByLookupListNameAsOf(
+            @PathVariable("lookup-list-name")
+            @ApiParam(value = "The name of the lookup list", required = true)
+            final String lookupListName,
+            @RequestParam(name = "timestamp")
+            @ApiParam(value = "The point in time in the ISO-8601 format yyyy-MM-ddTHH:mm:ssZ", example = "2018-07-01T12:00:00Z", required = true)
+            final String timestampString) {
+        Date timestamp;
+        try {
+            timestamp = Date.from(OffsetDateTime.parse(timestampString).toInstant());
+        } catch (DateTimeParseException ex) {
+            throw new BusinessLogicException("0020");
+        }
+        List<LookupValue> lookupValues = auditRevisionHelper.getEntitiesAtDate(em, timestamp,
+                AuditEntity.property("displayValue").asc(),
+                AuditEntity.property("lookupListName").eq(lookupListName));
+        if (lookupValues.isEmpty()) {
+            return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+        }
+        return ResponseEntity.ok(lookupValues);
+    }
+
     // Spring annotations
     @GetMapping("{lookup-value-id}")
     // Jackson annotations
@@ -240,9 +309,10 @@ public class LookupValueController {
         if (fromDB == null) {
             throw new BusinessLogicException("0006");
         }
-        PersistenceHelper<LookupValue> persistenceHelper = new PersistenceHelper<>(LookupValue.class, em, principal);
-        persistenceHelper.addConstraintValidation("UC_LOOKUP_LIST_VALUE", "0004");
-        fromDB = persistenceHelper.updateEntity(fromDB, lookupValue);
+        if (!lookupValueKeyIndex.updateKey(fromDB, lookupValue)) {
+            throw new BusinessLogicException("0004");
+        }
+        fromDB = persistenceHelper.updateEntity(fromDB, lookupValue, principal);
         return ResponseEntity.accepted().body(fromDB);
     }
 
@@ -270,12 +340,11 @@ public class LookupValueController {
         if (lookupValue == null) {
             throw new BusinessLogicException("0006");
         }
+        lookupValueKeyIndex.removeKey(lookupValue);
         if (lookupValue.getParent() != null) {
             lookupValue.getParent().removeChild(lookupValue);
         }
-        PersistenceHelper<LookupValue> persistenceHelper = new PersistenceHelper<>(LookupValue.class, em, principal);
-        persistenceHelper.addConstraintValidation("FK_LOOKUP_VALUE_PARENT", "0008");
-        persistenceHelper.deleteEntity(lookupValue);
+        persistenceHelper.deleteEntity(lookupValue, principal);
         return ResponseEntity.ok().build();
     }
 
@@ -287,26 +356,111 @@ public class LookupValueController {
     @JsonView(AuditRevision.class)
     // Swagger annotations
     @ApiOperation(value = "Get a list of audit database revisions for a given lookup value id",
-            notes = "Get a list of audit database revisions for a given lookup value id",
+            notes = "Get a list of audit database revisions for a given lookup value id. "
+            + "When a page size, a revision number or a date range is specified, the revisions are returned newest first "
+            + "and the URL of the next page is returned in the Link header. "
+            + "When only the changes are requested, only the revision details and the changed values are returned.",
             code = 200,
             responseContainer = "List",
             response = LookupValue.class
     )
     @ApiResponses(value = {
         @ApiResponse(code = 204, message = "No lookup value revisions to return")
+        ,@ApiResponse(code = 400, message = "The input data is invalid", response = BusinessLogicError.class)
     })
     public ResponseEntity getLookupValueRevisions(
             @PathVariable("lookup-value-id")
             @ApiParam(value = "The id of the lookup value", required = true)
-            final Long lookupValueId) {
-        AuditRevisionHelper<LookupValue> auditRevisionHelper = new AuditRevisionHelper<>(LookupValue.class);
-        List<LookupValue> revisions = auditRevisionHelper.getAllAuditRevisions(em, lookupValueId);
+            final Long lookupValueId,
+            @RequestParam(name = "page-size", required = false)
+            @ApiParam(value = "The maximum number of revisions to return")
+            final Integer pageSize,
+            @RequestParam(name = "before-rev", required = false)
+            @ApiParam(value = "Only return revisions before this revision number")
+            final Long beforeRev,
+            @RequestParam(name = "from-date", required = false)
+            @ApiParam(value = "Only return revisions made on or after this date in the format yyyy-MM-dd")
+            final String fromDateString,
+            @RequestParam(name = "to-date", required = false)
+            @ApiParam(value = "Only return revisions made on or before this date in the format yyyy-MM-dd")
+            final String toDateString,
+            @RequestParam(name = "changes-only", required = false, defaultValue = "false")
+            @ApiParam(value = "Only return the revision details and the changed values")
+            final boolean changesOnly) {
+        if ((pageSize == null) && (beforeRev == null) && (fromDateString == null) && (toDateString == null) && (!changesOnly)) {
+            List<LookupValue> revisions = auditRevisionHelper.getAllAuditRevisions(em, lookupValueId);
+            if (revisions.isEmpty()) {
+                return ResponseEntity.noContent().build();
+            }
+            return ResponseEntity.ok(revisions);
+        }
+        if ((pageSize != null) && ((pageSize < 1) || (pageSize > MAX_PAGE_SIZE))) {
+            throw new BusinessLogicException("0019");
+        }
+        Date fromDate = null;
+        if (fromDateString != null) {
+            fromDate = DatedEntity.parseDate(fromDateString, "0017");
+        }
+        Date toDate = null;
+        if (toDateString != null) {
+            // Include the revisions made on the to date
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(DatedEntity.parseDate(toDateString, "0018"));
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            toDate = calendar.getTime();
+        }
+        List<?> revisions;
+        Long lastRev;
+        if (changesOnly) {
+            List<AuditRevision> auditRevisions = auditRevisionHelper.getAuditRevisionChanges(em, lookupValueId, beforeRev, fromDate, toDate, pageSize);
+            lastRev = auditRevisions.isEmpty() ? null : auditRevisions.get(auditRevisions.size() - 1).getRev();
+            revisions = auditRevisions;
+        } else {
+            List<LookupValue> lookupValues = auditRevisionHelper.getAuditRevisions(em, lookupValueId, beforeRev, fromDate, toDate, pageSize);
+            lastRev = lookupValues.isEmpty() ? null : lookupValues.get(lookupValues.size() - 1).getRevision().getRev();
+            revisions = lookupValues;
+        }
         if (revisions.isEmpty()) {
             return ResponseEntity.noContent().build();
         }
+        if ((pageSize != null) && (revisions.size() == pageSize)) {
+            String next = ServletUriComponentsBuilder
+                    .fromCurrentRequest()
+                    .replaceQueryParam("before-rev", lastRev)
+                    .toUriString();
+            return ResponseEntity.ok()
+                    .header(HttpHeaders.LINK, "<" + next + ">; rel=\"next\"")
+                    .body(revisions);
+        }
         return ResponseEntity.ok(revisions);
     }
 
+    // Spring annotations
+    @PostMapping("revisions")
+    // Security annotations
+    @RolesAllowed("view-audit-revisions")
+    // Jackson annotations
+    @JsonView(AuditRevision.class)
+    // Swagger annotations
+    @ApiOperation(value = "Get the audit database revisions of a set of lookup value ids",
+            notes = "Get all the audit database revisions of a set of lookup value ids, grouped by lookup value id. "
+            + "A lookup value id without revisions has an empty list of revisions.",
+            code = 200,
+            response = Map.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 400, message = "The input data is invalid", response = BusinessLogicError.class)
+    })
+    public ResponseEntity<Map<Object, List<LookupValue>>> getLookupValueRevisionsByIds(
+            @RequestBody
+            @ApiParam(value = "The ids of the lookup values", required = true)
+            final Set<Long> lookupValueIds) {
+        if ((lookupValueIds.isEmpty()) || (lookupValueIds.size() > MAX_PAGE_SIZE)) {
+            throw new BusinessLogicException("0021");
+        }
+        return ResponseEntity.ok(auditRevisionHelper.getAllAuditRevisions(em, lookupValueIds));
+    }
+
     // Spring annotations
     @PostMapping(path = "/csv-upload", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
     @Transactional
@@ -330,49 +484,26 @@ public class LookupValueController {
             @RequestPart("file")
             @ApiParam(value = "The CSV file to upload", type = "file", required = true) MultipartFile file,
             @ApiIgnore Principal principal) {
-        List<LookupValue> lookupValues = new ArrayList<>();
         if (file.isEmpty()) {
             throw new BusinessLogicException("0009");
         }
+        // Envers already writes a single audit revision for the transaction,
+        // tag it as a CSV upload of the file
+        CurrentOperation.setOperation("CSV_UPLOAD", file.getOriginalFilename());
+        List<LookupValue> lookupValues;
         try {
             // Read the file bytes with Apache Commons CSV
             Reader reader = new InputStreamReader(file.getInputStream());
             Iterable<CSVRecord> records = CSVFormat.EXCEL.withHeader().parse(reader);
-            for (CSVRecord record : records) {
-                DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-                LookupValue lookupValue = new LookupValue();
-                lookupValue.setLookupListName(record.get("LOOKUP-LIST-NAME").trim());
-                lookupValue.setDisplayValue(record.get("DISPLAY-VALUE").trim());
-                lookupValue.setActive(Boolean.parseBoolean(record.get("ACTIVE").trim()));
-                if (!record.get("EFFECTIVE-FROM").trim().isEmpty()) {
-                    Date effectiveFromDate = dateFormat.parse(record.get("EFFECTIVE-FROM").trim());
-                    lookupValue.setEffectiveFrom(effectiveFromDate);
-                }
-                if (!record.get("EFFECTIVE-TO").trim().isEmpty()) {
-                    Date effectiveToDate = dateFormat.parse(record.get("EFFECTIVE-TO").trim());
-                    lookupValue.setEffectiveTo(effectiveToDate);
-                }
-                if (!record.get("PARENT-LOOKUP-LIST-NAME").trim().isEmpty()
-                        && !record.get("PARENT-DISPLAY-VALUE").trim().isEmpty()) {
-                    TypedQuery<LookupValue> query = em.createNamedQuery("LookupValue.findByLookupListNameAndDisplayValue", LookupValue.class);
-                    query.setParameter("lookupListName", record.get("PARENT-LOOKUP-LIST-NAME").trim());
-                    query.setParameter("displayValue", record.get("PARENT-DISPLAY-VALUE").trim());
-                    LookupValue parent = query.getSingleResult();
-                    if (lookupValue.getLookupListName().equals(parent.getLookupListName())) {
-                        throw new BusinessLogicException("0010");
-                    }
-                    parent.addChild(lookupValue);
-                }
-                PersistenceHelper<LookupValue> persistenceHelper = new PersistenceHelper<>(LookupValue.class, em, principal);
-                persistenceHelper.addConstraintValidation("UC_LOOKUP_LIST_VALUE", "0011");
-                lookupValue = persistenceHelper.persistEntity(lookupValue);
-                lookupValues.add(lookupValue);
-            }
+            // Map the records lazily so that the parent lookup values of a record
+            // have been persisted by the time that the record is mapped
+            Iterable<LookupValue> csvLookupValues = StreamSupport
+                    .stream(records.spliterator(), false)
+                    .map(this::toLookupValue)::iterator;
+            lookupValues = persistenceHelper.persistAll(csvLookupValues, principal);
             reader.close();
         } catch (IOException ex) {
             throw new BusinessLogicException("0012");
-        } catch (ParseException ex) {
-            throw new BusinessLogicException("0013");
         } catch (NoResultException ex) {
             throw new BusinessLogicException("0014");
         } catch (NonUniqueResultException ex) {
@@ -382,4 +513,40 @@ public class LookupValueController {
         }
         return ResponseEntity.ok(lookupValues);
     }
+
+    private LookupValue toLookupValue(CSVRecord record) {
+        try {
+            DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+            LookupValue lookupValue = new LookupValue();
+            lookupValue.setLookupListName(record.get("LOOKUP-LIST-NAME").trim());
+            lookupValue.setDisplayValue(record.get("DISPLAY-VALUE").trim());
+            lookupValue.setActive(Boolean.parseBoolean(record.get("ACTIVE").trim()));
+            if (!record.get("EFFECTIVE-FROM").trim().isEmpty()) {
+                Date effectiveFromDate = dateFormat.parse(record.get("EFFECTIVE-FROM").trim());
+                lookupValue.setEffectiveFrom(effectiveFromDate);
+            }
+            if (!record.get("EFFECTIVE-TO").trim().isEmpty()) {
+                Date effectiveToDate = dateFormat.parse(record.get("EFFECTIVE-TO").trim());
+                lookupValue.setEffectiveTo(effectiveToDate);
+            }
+            if (!record.get("PARENT-LOOKUP-LIST-NAME").trim().isEmpty()
+                    && !record.get("PARENT-DISPLAY-VALUE").trim().isEmpty()) {
+                TypedQuery<LookupValue> query = em.createNamedQuery("LookupValue.findByLookupListNameAndDisplayValue", LookupValue.class);
+                query.setParameter("lookupListName", record.get("PARENT-LOOKUP-LIST-NAME").trim());
+                query.setParameter("displayValue", record.get("PARENT-DISPLAY-VALUE").trim());
+                LookupValue parent = query.getSingleResult();
+                if (lookupValue.getLookupListName().equals(parent.getLookupListName())) {
+                    throw new BusinessLogicException("0010");
+                }
+                parent.addChild(lookupValue);
+            }
+            if (!lookupValueKeyIndex.addKey(lookupValue)) {
+                // Record numbers start at one after the header record
+                throw new BusinessLogicException("0011", (int) record.getRecordNumber() - 1);
+            }
+            return lookupValue;
+        } catch (ParseException ex) {
+            throw new BusinessLogicException("0013");
+        }
+    }
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.lookup;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+import javax.persistence.PersistenceContext;
+import lombok.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * An in-memory index of the UC_LOOKUP_LIST_VALUE unique keys of the lookup
+ * values per lookup list, used to reject duplicate lookup values before any SQL
+ * is sent to the database.
+ * <p>
+ * The keys of a lookup list are loaded from the database the first time the
+ * lookup list is used. Keys added or removed in a transaction are kept with the
+ * transaction and only applied to the index after the transaction commits. The
+ * keys of a lookup list are guarded by one of a fixed number of striped locks.
+ * The unique constraint in the database remains the final check for lookup
+ * values added concurrently by other transactions.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@Component
+public class LookupValueKeyIndex {
+
+    private static final int LOCK_STRIPES = 16;
+
+    @PersistenceContext
+    private EntityManager em;
+
+    private final Map<String, Set<Key>> committedKeys = new ConcurrentHashMap<>();
+
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    public LookupValueKeyIndex() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Add the unique key of a new lookup value to the current transaction
+     *
+     * @param lookupValue The lookup value to be added
+     * @return False if the lookup value would violate the unique constraint
+     */
+    public boolean addKey(LookupValue lookupValue) {
+        if ((lookupValue.getLookupListName() == null) || (lookupValue.getDisplayValue() == null)) {
+            // Leave invalid lookup values to bean validation
+            return true;
+        }
+        return addKey(lookupValue.getLookupListName(), keyOf(lookupValue, lookupValue.getDisplayValue()));
+    }
+
+    /**
+     * Replace the unique key of an updated lookup value in the current
+     * transaction if the display value is changed
+     *
+     * @param fromDB The lookup value as read from the database
+     * @param updated The lookup value containing the updated values
+     * @return False if the updated lookup value would violate the unique
+     * constraint
+     */
+    public boolean updateKey(LookupValue fromDB, LookupValue updated) {
+        if ((updated.getDisplayValue() == null) || (updated.getDisplayValue().equals(fromDB.getDisplayValue()))) {
+            return true;
+        }
+        if (!addKey(fromDB.getLookupListName(), keyOf(fromDB, updated.getDisplayValue()))) {
+            return false;
+        }
+        removeKey(fromDB);
+        return true;
+    }
+
+    /**
+     * Remove the unique key of a deleted lookup value in the current
+     * transaction
+     *
+     * @param lookupValue The lookup value to be deleted
+     */
+    public void removeKey(LookupValue lookupValue) {
+        String lookupListName = lookupValue.getLookupListName();
+        Key key = keyOf(lookupValue, lookupValue.getDisplayValue());
+        ReentrantLock lock = lockFor(lookupListName);
+        lock.lock();
+        try {
+            getTransactionKeys().remove(lookupListName, key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean addKey(String lookupListName, Key key) {
+        TransactionKeys transactionKeys = getTransactionKeys();
+        ReentrantLock lock = lockFor(lookupListName);
+        lock.lock();
+        try {
+            if (transactionKeys.getAdded(lookupListName).contains(key)) {
+                return false;
+            }
+            if (transactionKeys.isCommitted(lookupListName, key, getCommittedKeys(lookupListName, transactionKeys))) {
+                // Reload the keys in case concurrent changes were applied to
+                // the index out of commit order
+                Set<Key> keys = loadKeys(lookupListName, transactionKeys);
+                committedKeys.put(lookupListName, keys);
+                if (transactionKeys.isCommitted(lookupListName, key, keys)) {
+                    return false;
+                }
+            }
+            transactionKeys.add(lookupListName, key);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Set<Key> getCommittedKeys(String lookupListName, TransactionKeys transactionKeys) {
+        Set<Key> keys = committedKeys.get(lookupListName);
+        if (keys == null) {
+            keys = loadKeys(lookupListName, transactionKeys);
+            committedKeys.put(lookupListName, keys);
+        }
+        return keys;
+    }
+
+    private Set<Key> loadKeys(String lookupListName, TransactionKeys transactionKeys) {
+        List<Object[]> rows = em.createNamedQuery("LookupValue.findUniqueKeysByLookupListName", Object[].class)
+                .setParameter("lookupListName", lookupListName)
+                .setFlushMode(FlushModeType.COMMIT)
+                .getResultList();
+        Set<Key> keys = ConcurrentHashMap.newKeySet();
+        for (Object[] row : rows) {
+            keys.add(new Key((String) row[0], (Long) row[1]));
+        }
+        // The query also returns the flushed changes of the current transaction
+        keys.removeAll(transactionKeys.getAdded(lookupListName));
+        keys.addAll(transactionKeys.getRemoved(lookupListName));
+        return keys;
+    }
+
+    private void applyCommitted(TransactionKeys transactionKeys) {
+        for (String lookupListName : transactionKeys.getLookupListNames()) {
+            ReentrantLock lock = lockFor(lookupListName);
+            lock.lock();
+            try {
+                Set<Key> keys = committedKeys.get(lookupListName);
+                if (keys != null) {
+                    keys.removeAll(transactionKeys.getRemoved(lookupListName));
+                    keys.addAll(transactionKeys.getAdded(lookupListName));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private TransactionKeys getTransactionKeys() {
+        TransactionKeys transactionKeys = (TransactionKeys) TransactionSynchronizationManager.getResource(this);
+        if (transactionKeys != null) {
+            return transactionKeys;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("Lookup value keys can only be changed in a transaction");
+        }
+        TransactionKeys newTransactionKeys = new TransactionKeys();
+        TransactionSynchronizationManager.bindResource(this, newTransactionKeys);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                applyCommitted(newTransactionKeys);
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(LookupValueKeyIndex.this);
+            }
+        });
+        return newTransactionKeys;
+    }
+
+    private ReentrantLock lockFor(String lookupListName) {
+        return locks[(lookupListName.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    private static Key keyOf(LookupValue lookupValue, String displayValue) {
+        LookupValue parent = lookupValue.getParent();
+        return new Key(displayValue, (parent == null) ? null : parent.getId());
+    }
+
+    /**
+     * The unique key of a lookup value within its lookup list
+     */
+    // Lombok annotations
+    @Value
+    private static class Key {
+
+        private String displayValue;
+        private Long parentId;
+    }
+
+    /**
+     * The net changes to the unique keys made by a transaction
+     */
+    private static class TransactionKeys {
+
+        private final Map<String, Set<Key>> added = new HashMap<>();
+        private final Map<String, Set<Key>> removed = new HashMap<>();
+
+        private boolean isCommitted(String lookupListName, Key key, Set<Key> committed) {
+            return committed.contains(key) && !getRemoved(lookupListName).contains(key);
+        }
+
+        private void add(String lookupListName, Key key) {
+            if (!removed.computeIfAbsent(lookupListName, name -> new HashSet<>()).remove(key)) {
+                added.computeIfAbsent(lookupListName, name -> new HashSet<>()).add(key);
+            }
+        }
+
+        private void remove(String lookupListName, Key key) {
+            if (!added.computeIfAbsent(lookupListName, name -> new HashSet<>()).remove(key)) {
+                removed.computeIfAbsent(lookupListName, name -> new HashSet<>()).add(key);
+            }
+        }
+
+        private Set<Key> getAdded(String lookupListName) {
+            return added.getOrDefault(lookupListName, new HashSet<>());
+        }
+
+        private Set<Key> getRemoved(String lookupListName) {
+            return removed.getOrDefault(lookupListName, new HashSet<>());
+        }
+
+        private Set<String> getLookupListNames() {
+            Set<String> lookupListNames = new HashSet<>(added.keySet());
+            lookupListNames.addAll(removed.keySet());
+            return lookupListNames;
+        }
+    }
+}
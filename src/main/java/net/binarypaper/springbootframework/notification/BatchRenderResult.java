@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.notification;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import net.binarypaper.springbootframework.exception.BusinessLogicError;
+
+/**
+ * The result of rendering one data payload of a batch render request.
+ * <p>
+ * The NDJSON response of a batch render request contains one result per line
+ * in the order of the data payloads.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Jackson annotations
+@JsonInclude(Include.NON_NULL)
+@JsonPropertyOrder({
+    "index",
+    "document",
+    "error"
+})
+// Swagger annotations
+@ApiModel(description = "The result of rendering one data payload of a batch")
+// Lombok annotations
+@Getter
+@Setter
+@NoArgsConstructor
+public class BatchRenderResult {
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The index of the data payload in the batch",
+            example = "0",
+            readOnly = true,
+            position = 1
+    )
+    private int index;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The rendered document",
+            readOnly = true,
+            position = 2
+    )
+    private String document;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The error if the document could not be rendered",
+            readOnly = true,
+            position = 3
+    )
+    private BusinessLogicError error;
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.notification;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import net.binarypaper.springbootframework.exception.BusinessLogicError;
+
+/**
+ * The progress of a mail merge job.
+ * <p>
+ * The counters are updated by the thread that runs the job and can be read by
+ * other threads while the job is running.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Jackson annotations
+@JsonInclude(Include.NON_NULL)
+@JsonPropertyOrder({
+    "id",
+    "templateName",
+    "subject",
+    "status",
+    "startTime",
+    "endTime",
+    "recipients",
+    "sent",
+    "failed",
+    "throughput",
+    "errors"
+})
+// Swagger annotations
+@ApiModel(description = "The progress of a mail merge job")
+// Lombok annotations
+@Getter
+public class MailMergeJob {
+
+    public enum Status {
+        QUEUED, RUNNING, COMPLETED, FAILED
+    }
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The unique id of the job",
+            example = "0c3b6c2a-4b8e-4b8a-9f0e-5a1d3c1f2e4d",
+            readOnly = true,
+            position = 1
+    )
+    private final String id;
+
+    // Jackson annotations
+    @JsonProperty("template_name")
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The name of the template file used for the email body",
+            example = "BasicJSON.html",
+            readOnly = true,
+            position = 2
+    )
+    private final String templateName;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The FreeMarker template of the email subject",
+            example = "Your statement, ${data.firstName}",
+            readOnly = true,
+            position = 3
+    )
+    private final String subject;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The status of the job",
+            example = "RUNNING",
+            readOnly = true,
+            position = 4
+    )
+    private volatile Status status = Status.QUEUED;
+
+    // Jackson annotations
+    @JsonProperty("start_time")
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The time the job was started",
+            readOnly = true,
+            position = 5
+    )
+    private final Date startTime = new Date();
+
+    // Jackson annotations
+    @JsonProperty("end_time")
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The time the job completed or failed",
+            readOnly = true,
+            position = 6
+    )
+    private volatile Date endTime;
+
+    private final AtomicLong recipients = new AtomicLong();
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final List<BusinessLogicError> errors = Collections.synchronizedList(new ArrayList<>());
+
+    public MailMergeJob(String id, String templateName, String subject) {
+        this.id = id;
+        this.templateName = templateName;
+        this.subject = subject;
+    }
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The number of recipients read from the recipient data",
+            example = "100000",
+            readOnly = true,
+            position = 7
+    )
+    public long getRecipients() {
+        return recipients.get();
+    }
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The number of emails put on the email queue",
+            example = "99998",
+            readOnly = true,
+            position = 8
+    )
+    public long getSent() {
+        return sent.get();
+    }
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The number of recipients for which no email could be rendered",
+            example = "2",
+            readOnly = true,
+            position = 9
+    )
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * The number of emails put on the email queue per second since the job
+     * started
+     *
+     * @return The throughput of the job
+     */
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The number of emails put on the email queue per second",
+            example = "850.5",
+            readOnly = true,
+            position = 10
+    )
+    public double getThroughput() {
+        long end = (endTime == null) ? System.currentTimeMillis() : endTime.getTime();
+        long duration = Math.max(end - startTime.getTime(), 1);
+        return sent.get() * 1000.0 / duration;
+    }
+
+    /**
+     * The errors of the first recipients that failed, with the index of the
+     * recipient in the recipient data
+     *
+     * @return The recipient errors
+     */
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The errors of the first recipients that failed",
+            readOnly = true,
+            position = 11
+    )
+    public List<BusinessLogicError> getErrors() {
+        synchronized (errors) {
+            return errors.isEmpty() ? null : new ArrayList<>(errors);
+        }
+    }
+
+    void run() {
+        status = Status.RUNNING;
+    }
+
+    void addRecipient() {
+        recipients.incrementAndGet();
+    }
+
+    void addSent(int count) {
+        sent.addAndGet(count);
+    }
+
+    void addFailed(BusinessLogicError error, int maxErrors) {
+        failed.incrementAndGet();
+        if (errors.size() < maxErrors) {
+            errors.add(error);
+        }
+    }
+
+    void complete() {
+        endTime = new Date();
+        status = Status.COMPLETED;
+    }
+
+    void fail(BusinessLogicError error) {
+        errors.add(error);
+        endTime = new Date();
+        status = Status.FAILED;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.notification;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+import io.swagger.annotations.Authorization;
+import java.io.IOException;
+import java.net.URI;
+import java.security.Principal;
+import javax.annotation.security.RolesAllowed;
+import javax.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import springfox.documentation.annotations.ApiIgnore;
+import net.binarypaper.springbootframework.exception.BusinessLogicError;
+import net.binarypaper.springbootframework.SwaggerConfig;
+
+/**
+ * Mail Merge Job REST Web Service
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@RestController
+@RequestMapping(path = "mail-merge-jobs", produces = {MediaType.APPLICATION_JSON_VALUE})
+// Security annotations
+@RolesAllowed("render-notifications")
+// Swagger annotations
+@Api(tags = {"Mail Merge Jobs"}, authorizations = {
+    @Authorization(value = SwaggerConfig.O_AUTH_2)
+})
+public class MailMergeJobController {
+
+    public static final String TEXT_CSV_VALUE = "text/csv";
+
+    @Autowired
+    private MailMergeService mailMergeService;
+
+    // Spring annotations
+    @PostMapping(path = "{templateName:.+}",
+            consumes = {TEXT_CSV_VALUE, RenderNotificationController.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE})
+    // Swagger annotations
+    @ApiOperation(value = "Start a mail merge job that emails a rendered document to every recipient",
+            notes = "<p>Start a mail merge job that emails a rendered document to every recipient</p>"
+            + "<p>The recipient data is CSV with a header record, or newline delimited JSON (NDJSON) with one recipient per line</p>"
+            + "<p>Every recipient is the data of the template of the email body and of the subject, "
+            + "and the email_field field of the recipient is the email address</p>"
+            + "<p>The job runs in the background. Use the returned location to get the progress of the job</p>",
+            code = 202,
+            response = MailMergeJob.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 400, message = "The template or the subject could not be parsed", response = BusinessLogicError.class)
+        ,@ApiResponse(code = 403, message = "Not authorized to call the api")
+        ,@ApiResponse(code = 404, message = "The template name is invalid", response = BusinessLogicError.class)
+    })
+    public ResponseEntity<MailMergeJob> startMailMergeJob(
+            @PathVariable("templateName")
+            @ApiParam(value = "The name of the template file to use for the email body", required = true)
+            final String templateName,
+            @RequestParam(name = "email_subject")
+            @ApiParam(value = "The FreeMarker template of the email subject, for example Hello ${data.firstName}", required = true)
+            final String emailSubject,
+            @RequestParam(name = "email_field", defaultValue = "email")
+            @ApiParam(value = "The name of the recipient field with the email address")
+            final String emailField,
+            @RequestHeader("content-type")
+            @ApiParam(hidden = true)
+            final String contentType,
+            @ApiIgnore HttpServletRequest request,
+            @ApiIgnore Principal principal) throws IOException {
+        boolean csv = contentType.toLowerCase().contains(TEXT_CSV_VALUE);
+        MailMergeJob job = mailMergeService.start(templateName, emailSubject, emailField, csv,
+                request.getInputStream(), principal.getName());
+        URI location = ServletUriComponentsBuilder
+                .fromCurrentContextPath()
+                .path("/mail-merge-jobs/{id}")
+                .buildAndExpand(job.getId())
+                .toUri();
+        return ResponseEntity.accepted().location(location).body(job);
+    }
+
+    // Spring annotations
+    @GetMapping(path = "{id}")
+    // Swagger annotations
+    @ApiOperation(value = "Get the progress of a mail merge job",
+            notes = "Get the status, the number of recipients, sent emails and failed recipients and the throughput of a mail merge job",
+            response = MailMergeJob.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 403, message = "Not authorized to call the api")
+        ,@ApiResponse(code = 404, message = "The mail merge job does not exist", response = BusinessLogicError.class)
+    })
+    public MailMergeJob getMailMergeJob(
+            @PathVariable("id")
+            @ApiParam(value = "The id of the mail merge job", required = true)
+            final String id) {
+        return mailMergeService.getJob(id);
+    }
+
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.notification;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.RuntimeJsonMappingException;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import freemarker.template.Template;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import lombok.extern.java.Log;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpStatus;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+import net.binarypaper.springbootframework.context.RequestContextTaskDecorator;
+import net.binarypaper.springbootframework.email.EmailMessage;
+import net.binarypaper.springbootframework.exception.BusinessLogicError;
+import net.binarypaper.springbootframework.exception.BusinessLogicException;
+import net.binarypaper.springbootframework.render.FreeMarkerRenderService;
+
+/**
+ * Runs mail merge jobs that render a personalised email for every recipient in
+ * a recipient data set and put the emails on the email queue.
+ * <p>
+ * The recipient data is stored in a temporary file while the job runs, so the
+ * job does not keep the recipients in memory. The emails are rendered in
+ * parallel on the taskExecutor, with at most render.mail-merge.parallelism
+ * renders in flight per job, and put on the email queue in batches of
+ * render.mail-merge.batch-size messages, one JMS transaction per batch.
+ * <p>
+ * At most render.mail-merge.max-running-jobs jobs run at the same time, on
+ * their own threads, so that a job waiting for its renders never occupies a
+ * thread of the taskExecutor. A job is rejected when
+ * render.mail-merge.queue-capacity jobs are waiting to run or when
+ * render.mail-merge.max-jobs jobs are stored. Finished jobs are kept for
+ * render.mail-merge.retention hours.
+ * <p>
+ * All the recipients are parsed before the first email is queued, so a job
+ * fails with FMR13 or FMR10 before any recipient is emailed when the recipient
+ * data can not be parsed. A job fails with FMR20 when the emails can not be
+ * rendered or queued.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@Service
+// Lombok annotations
+@Log
+public class MailMergeService {
+
+    public static final String EMAIL_QUEUE = "email_queue";
+
+    private static final ResourceBundle ERROR_MESSAGES = ResourceBundle.getBundle("ErrorMessages");
+
+    @Autowired
+    private FreeMarkerRenderService freeMarkerRenderService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private AsyncTaskExecutor taskExecutor;
+
+    @Autowired
+    private ConnectionFactory connectionFactory;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private RequestContextTaskDecorator requestContextTaskDecorator;
+
+    @Value("${render.mail-merge.max-running-jobs:2}")
+    private int maxRunningJobs;
+
+    @Value("${render.mail-merge.queue-capacity:10}")
+    private int queueCapacity;
+
+    @Value("${render.mail-merge.max-jobs:1000}")
+    private int maxJobs;
+
+    @Value("${render.mail-merge.parallelism:8}")
+    private int parallelism;
+
+    @Value("${render.mail-merge.batch-size:100}")
+    private int batchSize;
+
+    @Value("${render.mail-merge.max-errors:100}")
+    private int maxErrors;
+
+    @Value("${render.mail-merge.retention:24}")
+    private long retention;
+
+    private final Map<String, MailMergeJob> jobs = new ConcurrentHashMap<>();
+
+    private Semaphore jobSlots;
+
+    private ThreadPoolTaskExecutor jobExecutor;
+
+    private JmsTemplate jmsTemplate;
+
+    private Counter sentCounter;
+
+    private Counter failedCounter;
+
+    @PostConstruct
+    public void init() {
+        jobExecutor = new ThreadPoolTaskExecutor();
+        jobExecutor.setThreadNamePrefix("mail-merge-");
+        jobExecutor.setCorePoolSize(maxRunningJobs);
+        jobExecutor.setMaxPoolSize(maxRunningJobs);
+        jobExecutor.setQueueCapacity(queueCapacity);
+        jobExecutor.setTaskDecorator(requestContextTaskDecorator);
+        jobExecutor.initialize();
+        jobSlots = new Semaphore(maxJobs);
+        jmsTemplate = new JmsTemplate(connectionFactory);
+        jmsTemplate.setSessionTransacted(true);
+        sentCounter = Counter.builder("mail.merge.sent")
+                .description("The number of mail merge emails put on the email queue")
+                .register(meterRegistry);
+        failedCounter = Counter.builder("mail.merge.failed")
+                .description("The number of mail merge recipients for which no email could be rendered")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobExecutor.shutdown();
+    }
+
+    /**
+     * Starts a mail merge job.
+     * <p>
+     * The template and the subject are parsed and the recipient data is stored
+     * before the job starts, so errors in the template or the subject are
+     * returned to the caller.
+     *
+     * @param templateName The name of the template file of the email body
+     * @param subject The FreeMarker template of the email subject
+     * @param emailField The name of the recipient field with the email address
+     * @param csv True if the recipient data is CSV, false if it is JSON lines
+     * @param recipientData The recipient data
+     * @param userName The name of the user that started the job
+     * @return The started job
+     */
+    public MailMergeJob start(String templateName, String subject, String emailField, boolean csv,
+            InputStream recipientData, String userName) {
+        Template template = freeMarkerRenderService.getTemplate(templateName);
+        Template subjectTemplate = freeMarkerRenderService.createTemplate(templateName + " subject", subject);
+        // Reserve the slot of the job before it is stored, so that concurrent
+        // requests can not store more than maxJobs jobs
+        if (!jobSlots.tryAcquire()) {
+            purgeJobs();
+            if (!jobSlots.tryAcquire()) {
+                throw new BusinessLogicException("FMR21", HttpStatus.SERVICE_UNAVAILABLE);
+            }
+        }
+        Path recipientFile;
+        try {
+            recipientFile = Files.createTempFile("mail-merge-", csv ? ".csv" : ".ndjson");
+        } catch (IOException ex) {
+            jobSlots.release();
+            throw new BusinessLogicException("FMR8");
+        }
+        try {
+            Files.copy(recipientData, recipientFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            jobSlots.release();
+            deleteRecipientFile(recipientFile);
+            throw new BusinessLogicException("FMR8");
+        }
+        MailMergeJob job = new MailMergeJob(UUID.randomUUID().toString(), templateName, subject);
+        jobs.put(job.getId(), job);
+        try {
+            jobExecutor.execute(() -> run(job, template, subjectTemplate, emailField, csv, recipientFile, userName));
+        } catch (TaskRejectedException ex) {
+            jobs.remove(job.getId());
+            jobSlots.release();
+            deleteRecipientFile(recipientFile);
+            throw new BusinessLogicException("FMR21", HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        return job;
+    }
+
+    /**
+     * Gets the progress of a mail merge job.
+     *
+     * @param id The id of the job
+     * @return The job
+     */
+    public MailMergeJob getJob(String id) {
+        MailMergeJob job = jobs.get(id);
+        if (job == null) {
+            throw new BusinessLogicException("FMR12", HttpStatus.NOT_FOUND);
+        }
+        return job;
+    }
+
+    // Spring annotations
+    @Scheduled(fixedDelayString = "${render.mail-merge.purge-interval:3600000}")
+    public void purgeJobs() {
+        long purgeBefore = System.currentTimeMillis() - retention * 3600000;
+        Iterator<MailMergeJob> iterator = jobs.values().iterator();
+        while (iterator.hasNext()) {
+            MailMergeJob job = iterator.next();
+            if ((job.getEndTime() != null) && (job.getEndTime().getTime() < purgeBefore)) {
+                iterator.remove();
+                jobSlots.release();
+            }
+        }
+    }
+
+    private void run(MailMergeJob job, Template template, Template subjectTemplate, String emailField,
+            boolean csv, Path recipientFile, String userName) {
+        job.run();
+        try {
+            // Parse all the recipients before the first email is queued, so
+            // that a bad record fails the job before any recipient is emailed
+            BusinessLogicError recipientError = validateRecipients(csv, recipientFile);
+            if (recipientError != null) {
+                job.fail(recipientError);
+                return;
+            }
+            try (Reader reader = Files.newBufferedReader(recipientFile, StandardCharsets.UTF_8)) {
+                Iterator<JsonNode> recipients = csv ? readCsvRecipients(reader) : readJsonRecipients(reader);
+                // Render at most parallelism emails at a time and queue them
+                // in the order of the recipients
+                Deque<Future<Object>> renders = new ArrayDeque<>();
+                List<String> batch = new ArrayList<>(batchSize);
+                int index = 0;
+                while (recipients.hasNext()) {
+                    JsonNode recipient = recipients.next();
+                    int recipientIndex = index++;
+                    job.addRecipient();
+                    renders.add(taskExecutor.submit(() -> renderEmail(template, subjectTemplate, emailField, recipient, userName, recipientIndex)));
+                    while (renders.size() >= parallelism) {
+                        addToBatch(job, renders.poll(), batch);
+                    }
+                }
+                while (!renders.isEmpty()) {
+                    addToBatch(job, renders.poll(), batch);
+                }
+                sendBatch(job, batch);
+            }
+            job.complete();
+            log.info("Mail merge job " + job.getId() + " put " + job.getSent() + " emails on the email queue, "
+                    + job.getFailed() + " recipients failed");
+        } catch (BusinessLogicException ex) {
+            job.fail(getError(ex, null));
+        } catch (IOException | RuntimeException ex) {
+            // The recipient data errors are BusinessLogicExceptions, anything
+            // else is a failure of the file system, the executor or JMS
+            log.log(Level.SEVERE, "Mail merge job " + job.getId() + " failed", ex);
+            job.fail(getError(new BusinessLogicException("FMR20"), null));
+        } finally {
+            deleteRecipientFile(recipientFile);
+        }
+    }
+
+    /**
+     * Parses all the recipients in the recipient file.
+     *
+     * @param csv True if the recipient data is CSV, false if it is JSON lines
+     * @param recipientFile The recipient file
+     * @return The error of the first recipient that can not be parsed, with
+     * the index of the recipient, or null if all the recipients can be parsed
+     * @throws IOException If the recipient file can not be read
+     */
+    private BusinessLogicError validateRecipients(boolean csv, Path recipientFile) throws IOException {
+        try (Reader reader = Files.newBufferedReader(recipientFile, StandardCharsets.UTF_8)) {
+            Iterator<JsonNode> recipients = csv ? readCsvRecipients(reader) : readJsonRecipients(reader);
+            int index = 0;
+            try {
+                while (recipients.hasNext()) {
+                    recipients.next();
+                    index++;
+                }
+            } catch (BusinessLogicException ex) {
+                return getError(ex, index);
+            }
+        }
+        return null;
+    }
+
+    private Iterator<JsonNode> readCsvRecipients(Reader reader) {
+        Iterator<CSVRecord> records;
+        try {
+            records = CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(reader).iterator();
+        } catch (IOException | IllegalArgumentException ex) {
+            // The header could not be read or contains duplicate names
+            throw new BusinessLogicException("FMR13");
+        }
+        return new Iterator<JsonNode>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return records.hasNext();
+                } catch (IllegalStateException ex) {
+                    // The CSV parser wraps the parse errors of the next record
+                    throw new BusinessLogicException("FMR13");
+                }
+            }
+
+            @Override
+            public JsonNode next() {
+                CSVRecord record;
+                try {
+                    record = records.next();
+                } catch (IllegalStateException ex) {
+                    throw new BusinessLogicException("FMR13");
+                }
+                ObjectNode recipient = objectMapper.createObjectNode();
+                record.toMap().forEach(recipient::put);
+                return recipient;
+            }
+        };
+    }
+
+    private Iterator<JsonNode> readJsonRecipients(Reader reader) throws IOException {
+        Iterator<JsonNode> values;
+        try {
+            values = objectMapper.readerFor(JsonNode.class)
+                    .with(JsonParser.Feature.ALLOW_SINGLE_QUOTES)
+                    .readValues(reader);
+        } catch (JsonProcessingException ex) {
+            throw new BusinessLogicException("FMR10");
+        }
+        return new Iterator<JsonNode>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return values.hasNext();
+                } catch (RuntimeException ex) {
+                    throw toJsonError(ex);
+                }
+            }
+
+            @Override
+            public JsonNode next() {
+                try {
+                    return values.next();
+                } catch (RuntimeException ex) {
+                    throw toJsonError(ex);
+                }
+            }
+        };
+    }
+
+    private RuntimeException toJsonError(RuntimeException ex) {
+        // The MappingIterator wraps the parse errors of the next value
+        if ((ex instanceof RuntimeJsonMappingException) || (ex.getCause() instanceof JsonProcessingException)) {
+            return new BusinessLogicException("FMR10");
+        }
+        return ex;
+    }
+
+    private void deleteRecipientFile(Path recipientFile) {
+        try {
+            Files.deleteIfExists(recipientFile);
+        } catch (IOException ex) {
+            log.warning("The recipient file " + recipientFile + " could not be deleted");
+        }
+    }
+
+    private Object renderEmail(Template template, Template subjectTemplate, String emailField,
+            JsonNode recipient, String userName, int index) {
+        try {
+            JsonNode toAddress = recipient.get(emailField);
+            if ((toAddress == null) || toAddress.asText().trim().isEmpty()) {
+                throw new BusinessLogicException("FMR11");
+            }
+            StringWriter subject = new StringWriter();
+            freeMarkerRenderService.render(subjectTemplate, recipient, subject);
+            StringWriter body = new StringWriter();
+            freeMarkerRenderService.render(template, recipient, body);
+            EmailMessage emailMessage = new EmailMessage();
+            emailMessage.setUserName(userName);
+            emailMessage.setToAddress(toAddress.asText().trim());
+            emailMessage.setSubject(subject.toString().trim());
+            emailMessage.setBody(Base64.getEncoder().encodeToString(body.toString().getBytes(StandardCharsets.UTF_8)));
+            return objectMapper.writeValueAsString(emailMessage);
+        } catch (BusinessLogicException ex) {
+            return getError(ex, index);
+        } catch (JsonProcessingException ex) {
+            return getError(new BusinessLogicException("FMR9"), index);
+        }
+    }
+
+    private void addToBatch(MailMergeJob job, Future<Object> render, List<String> batch) {
+        Object email;
+        try {
+            email = render.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("The mail merge job was interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("A mail merge render task failed", ex.getCause());
+        }
+        if (email instanceof BusinessLogicError) {
+            job.addFailed((BusinessLogicError) email, maxErrors);
+            failedCounter.increment();
+            return;
+        }
+        batch.add((String) email);
+        if (batch.size() >= batchSize) {
+            sendBatch(job, batch);
+        }
+    }
+
+    private void sendBatch(MailMergeJob job, List<String> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        jmsTemplate.execute(session -> {
+            MessageProducer producer = session.createProducer(session.createQueue(EMAIL_QUEUE));
+            try {
+                for (String email : batch) {
+                    producer.send(session.createTextMessage(email));
+                }
+                session.commit();
+            } catch (JMSException ex) {
+                session.rollback();
+                throw ex;
+            } finally {
+                producer.close();
+            }
+            return null;
+        }, true);
+        job.addSent(batch.size());
+        sentCounter.increment(batch.size());
+        batch.clear();
+    }
+
+    private BusinessLogicError getError(BusinessLogicException businessLogicException, Integer index) {
+        BusinessLogicError businessLogicError = new BusinessLogicError();
+        businessLogicError.setErrorCode(businessLogicException.getErrorCode());
+        businessLogicError.setMessage(ERROR_MESSAGES.getString(businessLogicException.getErrorCode()));
+        businessLogicError.setItemIndex(index);
+        return businessLogicError;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.notification;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import java.nio.file.Path;
+import java.util.Date;
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.springframework.http.HttpStatus;
+import net.binarypaper.springbootframework.exception.BusinessLogicError;
+
+/**
+ * An asynchronous render job and its rendered document.
+ * <p>
+ * A render job can only be read by the user that started it. The rendered
+ * document is kept in memory or, when it is large, in a temporary file until
+ * the job expires. The document is deleted when the job is purged
+ * and no request is reading it.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Jackson annotations
+@JsonInclude(Include.NON_NULL)
+@JsonPropertyOrder({
+    "id",
+    "templateName",
+    "status",
+    "startTime",
+    "endTime",
+    "contentType",
+    "size",
+    "error"
+})
+// Swagger annotations
+@ApiModel(description = "An asynchronous render job")
+// Lombok annotations
+@Getter
+public class RenderJob {
+
+    public enum Status {
+        QUEUED, RUNNING, COMPLETED, FAILED
+    }
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The unique id of the job",
+            example = "0c3b6c2a-4b8e-4b8a-9f0e-5a1d3c1f2e4d",
+            readOnly = true,
+            position = 1
+    )
+    private final String id;
+
+    // Jackson annotations
+    @JsonProperty("template_name")
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The name of the template file used for rendering",
+            example = "BasicJSON.html",
+            readOnly = true,
+            position = 2
+    )
+    private final String templateName;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The status of the job",
+            example = "RUNNING",
+            readOnly = true,
+            position = 3
+    )
+    private volatile Status status = Status.QUEUED;
+
+    // Jackson annotations
+    @JsonProperty("start_time")
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The time the job was started",
+            readOnly = true,
+            position = 4
+    )
+    private final Date startTime = new Date();
+
+    // Jackson annotations
+    @JsonProperty("end_time")
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The time the job completed or failed",
+            readOnly = true,
+            position = 5
+    )
+    private volatile Date endTime;
+
+    // Jackson annotations
+    @JsonProperty("content_type")
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The content type of the rendered document",
+            example = "text/html;charset=UTF-8",
+            readOnly = true,
+            position = 6
+    )
+    private final String contentType;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The size of the rendered document in bytes",
+            example = "1048576",
+            readOnly = true,
+            position = 7
+    )
+    private volatile Long size;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The error if the document could not be rendered",
+            readOnly = true,
+            position = 8
+    )
+    private volatile BusinessLogicError error;
+
+    // Jackson annotations
+    @JsonIgnore
+    private volatile HttpStatus errorStatus;
+
+    // Jackson annotations
+    @JsonIgnore
+    private final String userName;
+
+    // Jackson annotations
+    @JsonIgnore
+    private volatile byte[] document;
+
+    // Jackson annotations
+    @JsonIgnore
+    private volatile Path documentFile;
+
+    // Lombok annotations
+    @Getter(AccessLevel.NONE)
+    private int readers;
+
+    // Lombok annotations
+    @Getter(AccessLevel.NONE)
+    private boolean purged;
+
+    public RenderJob(String id, String templateName, String contentType, String userName) {
+        this.id = id;
+        this.templateName = templateName;
+        this.contentType = contentType;
+        this.userName = userName;
+    }
+
+    void run() {
+        status = Status.RUNNING;
+    }
+
+    void complete(byte[] document, Path documentFile, long size) {
+        this.document = document;
+        this.documentFile = documentFile;
+        this.size = size;
+        endTime = new Date();
+        status = Status.COMPLETED;
+    }
+
+    void fail(BusinessLogicError error, HttpStatus errorStatus) {
+        this.error = error;
+        this.errorStatus = errorStatus;
+        endTime = new Date();
+        status = Status.FAILED;
+    }
+
+    /**
+     * Starts reading the rendered document.
+     *
+     * @return False if the job has been purged
+     */
+    synchronized boolean startRead() {
+        if (purged) {
+            return false;
+        }
+        readers++;
+        return true;
+    }
+
+    /**
+     * Ends reading the rendered document.
+     *
+     * @return True if the job has been purged and the document can be deleted
+     */
+    synchronized boolean endRead() {
+        readers--;
+        return purged && (readers == 0);
+    }
+
+    /**
+     * Marks the job as purged.
+     *
+     * @return True if no request is reading the document and it can be deleted
+     */
+    synchronized boolean purge() {
+        purged = true;
+        return readers == 0;
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.notification;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpStatus;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+import net.binarypaper.springbootframework.context.RequestContextTaskDecorator;
+import net.binarypaper.springbootframework.email.EmailMessage;
+import net.binarypaper.springbootframework.exception.BusinessLogicError;
+import net.binarypaper.springbootframework.exception.BusinessLogicException;
+import net.binarypaper.springbootframework.render.FreeMarkerRenderService;
+import net.binarypaper.springbootframework.render.RenderBudget;
+import net.binarypaper.springbootframework.render.SpillingOutputStream;
+
+/**
+ * Runs asynchronous render jobs and stores the rendered documents until the
+ * client retrieves them.
+ * <p>
+ * The jobs run on their own bounded thread pool of render.async.pool-size
+ * threads and render.async.queue-capacity queued jobs, so large renders do not
+ * hold HTTP request threads. A job is rejected when the queue is full or when
+ * render.async.max-jobs jobs are stored.
+ * <p>
+ * A rendered document is kept in memory up to render.async.memory-threshold
+ * bytes and up to render.async.max-memory-bytes for all the documents.
+ * Larger documents are moved to temporary files. The renders are limited by
+ * render.async.max-time and render.async.max-output-chars instead of the
+ * render limits of synchronous renders. Finished jobs and their
+ * documents are removed after render.async.retention minutes, a document that
+ * is being read is deleted when the last read ends.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@Service
+// Lombok annotations
+@Log
+public class RenderJobService {
+
+    private static final ResourceBundle ERROR_MESSAGES = ResourceBundle.getBundle("ErrorMessages");
+
+    @Autowired
+    private FreeMarkerRenderService freeMarkerRenderService;
+
+    @Autowired
+    private JmsTemplate jmsTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private RequestContextTaskDecorator requestContextTaskDecorator;
+
+    @Value("${render.async.pool-size:4}")
+    private int poolSize;
+
+    @Value("${render.async.queue-capacity:100}")
+    private int queueCapacity;
+
+    @Value("${render.async.max-jobs:1000}")
+    private int maxJobs;
+
+    @Value("${render.async.memory-threshold:262144}")
+    private int memoryThreshold;
+
+    @Value("${render.async.max-memory-bytes:67108864}")
+    private long maxMemoryBytes;
+
+    @Value("${render.async.retention:60}")
+    private long retention;
+
+    @Value("${render.async.max-time:300000}")
+    private long maxTime;
+
+    @Value("${render.async.max-output-chars:104857600}")
+    private long maxOutputChars;
+
+    private final Map<String, RenderJob> jobs = new ConcurrentHashMap<>();
+
+    private final AtomicLong memoryBytes = new AtomicLong();
+
+    private Semaphore jobSlots;
+
+    private RenderBudget.Limits renderLimits;
+
+    private ThreadPoolTaskExecutor jobExecutor;
+
+    @PostConstruct
+    public void init() {
+        jobExecutor = new ThreadPoolTaskExecutor();
+        jobExecutor.setThreadNamePrefix("render-job-");
+        jobExecutor.setCorePoolSize(poolSize);
+        jobExecutor.setMaxPoolSize(poolSize);
+        jobExecutor.setQueueCapacity(queueCapacity);
+        jobExecutor.setTaskDecorator(requestContextTaskDecorator);
+        jobExecutor.initialize();
+        jobSlots = new Semaphore(maxJobs);
+        renderLimits = new RenderBudget.Limits(maxTime, maxOutputChars);
+        Gauge.builder("render.jobs.stored", jobs, Map::size)
+                .description("The number of stored render jobs")
+                .register(meterRegistry);
+        Gauge.builder("render.jobs.memory.bytes", memoryBytes, AtomicLong::get)
+                .description("The size of the rendered documents of render jobs kept in memory")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobExecutor.shutdown();
+        jobs.values().forEach(this::purgeJob);
+        jobs.clear();
+    }
+
+    /**
+     * Starts an asynchronous render job.
+     * <p>
+     * The template is parsed before the job starts, so an invalid template name
+     * or template is returned to the caller.
+     *
+     * @param templateName The name of the template file to use for rendering
+     * @param contentType The content type of the input data
+     * @param data The input data
+     * @param documentContentType The content type of the rendered document
+     * @param emailTo The comma separated list of email addresses to email the
+     * rendered document to or null
+     * @param emailSubject The email subject or null
+     * @param userName The name of the user that started the job
+     * @return The started job
+     */
+    public RenderJob start(String templateName, String contentType, String data, String documentContentType,
+            String emailTo, String emailSubject, String userName) {
+        freeMarkerRenderService.getTemplate(templateName);
+        // Reserve the slot of the job before it is stored, so that concurrent
+        // requests can not store more than maxJobs jobs
+        if (!jobSlots.tryAcquire()) {
+            purgeJobs();
+            if (!jobSlots.tryAcquire()) {
+                throw new BusinessLogicException("FMR15", HttpStatus.SERVICE_UNAVAILABLE);
+            }
+        }
+        RenderJob job = new RenderJob(UUID.randomUUID().toString(), templateName, documentContentType, userName);
+        jobs.put(job.getId(), job);
+        try {
+            jobExecutor.execute(() -> run(job, contentType, data, emailTo, emailSubject, userName));
+        } catch (TaskRejectedException ex) {
+            jobs.remove(job.getId());
+            jobSlots.release();
+            throw new BusinessLogicException("FMR15", HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        return job;
+    }
+
+    /**
+     * Gets a render job of a user.
+     * <p>
+     * The job of another user is reported as not found, so that users can not
+     * read the documents of other users.
+     *
+     * @param id The id of the job
+     * @param userName The name of the user that reads the job
+     * @return The job
+     */
+    public RenderJob getJob(String id, String userName) {
+        RenderJob job = jobs.get(id);
+        if ((job == null) || !job.getUserName().equals(userName)) {
+            throw new BusinessLogicException("FMR14", HttpStatus.NOT_FOUND);
+        }
+        return job;
+    }
+
+    /**
+     * Opens the rendered document of a completed render job.
+     * <p>
+     * The document is not deleted while the returned stream is open, even if
+     * the job is purged.
+     *
+     * @param job The completed job
+     * @return The document, to be closed after it is read
+     * @throws IOException If the document file could not be opened
+     */
+    public InputStream openDocument(RenderJob job) throws IOException {
+        if (!job.startRead()) {
+            throw new BusinessLogicException("FMR14", HttpStatus.NOT_FOUND);
+        }
+        InputStream document;
+        try {
+            document = (job.getDocument() != null)
+                    ? new ByteArrayInputStream(job.getDocument())
+                    : Files.newInputStream(job.getDocumentFile());
+        } catch (IOException | RuntimeException ex) {
+            endRead(job);
+            throw ex;
+        }
+        return new FilterInputStream(document) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (!closed) {
+                        closed = true;
+                        endRead(job);
+                    }
+                }
+            }
+        };
+    }
+
+    // Spring annotations
+    @Scheduled(fixedDelayString = "${render.async.purge-interval:60000}")
+    public void purgeJobs() {
+        long purgeBefore = System.currentTimeMillis() - retention * 60000;
+        Iterator<RenderJob> iterator = jobs.values().iterator();
+        while (iterator.hasNext()) {
+            RenderJob job = iterator.next();
+            if ((job.getEndTime() != null) && (job.getEndTime().getTime() < purgeBefore)) {
+                iterator.remove();
+                jobSlots.release();
+                purgeJob(job);
+            }
+        }
+    }
+
+    private void purgeJob(RenderJob job) {
+        if (job.purge()) {
+            deleteDocument(job);
+        }
+    }
+
+    private void endRead(RenderJob job) {
+        if (job.endRead()) {
+            deleteDocument(job);
+        }
+    }
+
+    private void run(RenderJob job, String contentType, String data, String emailTo, String emailSubject, String userName) {
+        job.run();
+        SpillingOutputStream outputStream = new SpillingOutputStream(memoryThreshold);
+        try {
+            try (Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)) {
+                freeMarkerRenderService.render(job.getTemplateName(), contentType, data, writer, renderLimits);
+            }
+            byte[] document = outputStream.getBytes();
+            Path documentFile = outputStream.getFile();
+            if ((emailTo != null) && (emailSubject != null)) {
+                sendEmail((document != null) ? document : Files.readAllBytes(documentFile), emailTo, emailSubject, userName);
+            }
+            if ((document != null) && (memoryBytes.addAndGet(document.length) > maxMemoryBytes)) {
+                // Keep the document in a file when the memory of the store is full
+                memoryBytes.addAndGet(-document.length);
+                documentFile = Files.write(Files.createTempFile("render-", ".tmp"), document);
+                document = null;
+            }
+            job.complete(document, documentFile, outputStream.getSize());
+        } catch (BusinessLogicException ex) {
+            deleteFile(outputStream.getFile());
+            job.fail(getError(ex), ex.getHttpStatus());
+        } catch (IOException | RuntimeException ex) {
+            // The render errors of the input data are BusinessLogicExceptions,
+            // anything else is a failure of the file system or JMS
+            log.log(Level.SEVERE, "Render job " + job.getId() + " failed", ex);
+            deleteFile(outputStream.getFile());
+            job.fail(getError(new BusinessLogicException("FMR22")), HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    private void sendEmail(byte[] document, String emailTo, String emailSubject, String userName) {
+        EmailMessage emailMessage = new EmailMessage();
+        emailMessage.setUserName(userName);
+        emailMessage.setToAddress(emailTo);
+        emailMessage.setSubject(emailSubject);
+        emailMessage.setBody(Base64.getEncoder().encodeToString(document));
+        try {
+            jmsTemplate.convertAndSend("email_queue", objectMapper.writeValueAsString(emailMessage));
+        } catch (JsonProcessingException ex) {
+            throw new BusinessLogicException("FMR9");
+        }
+    }
+
+    private void deleteDocument(RenderJob job) {
+        if (job.getDocument() != null) {
+            memoryBytes.addAndGet(-job.getDocument().length);
+        }
+        deleteFile(job.getDocumentFile());
+    }
+
+    private void deleteFile(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            log.warning("The render job file " + file + " could not be deleted");
+        }
+    }
+
+    private BusinessLogicError getError(BusinessLogicException businessLogicException) {
+        BusinessLogicError businessLogicError = new BusinessLogicError();
+        businessLogicError.setErrorCode(businessLogicException.getErrorCode());
+        businessLogicError.setMessage(ERROR_MESSAGES.getString(businessLogicException.getErrorCode()));
+        return businessLogicError;
+    }
+}
@@ -15,24 +15,57 @@
  */
 package net.binarypaper.springbootframework.notification;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import freemarker.template.Template;
+import freemarker.template.TemplateModel;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 import io.swagger.annotations.Authorization;
-import java.io.UnsupportedEncodingException;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.security.Principal;
+import java.util.ArrayDeque;
 import java.util.Base64;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import javax.annotation.security.RolesAllowed;
-import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import lombok.extern.java.Log;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.jms.core.JmsTemplate;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
@@ -40,11 +73,16 @@ import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import springfox.documentation.annotations.ApiIgnore;
 import net.binarypaper.springbootframework.email.EmailMessage;
 import net.binarypaper.springbootframework.exception.BusinessLogicError;
 import net.binarypaper.springbootframework.exception.BusinessLogicException;
+import net.binarypaper.springbootframework.exception.TooManyRequestsException;
+import net.binarypaper.springbootframework.render.CapturingOutputStream;
 import net.binarypaper.springbootframework.render.FreeMarkerRenderService;
+import net.binarypaper.springbootframework.render.RenderAdmission;
+import net.binarypaper.springbootframework.render.RenderCache;
 import net.binarypaper.springbootframework.SwaggerConfig;
 
 /**
@@ -65,11 +103,18 @@ import net.binarypaper.springbootframework.SwaggerConfig;
 @Log
 public class RenderNotificationController {
 
-    @Autowired
-    private FreeMarkerRenderService freeMarkerRenderService;
+    public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
+    public static final String APPLICATION_ZIP_VALUE = "application/zip";
+
+    public static final String MULTIPART_MIXED_VALUE = "multipart/mixed";
+
+    private static final String[] TEMPLATE_FAMILY_EXTENSIONS = {".html", ".txt"};
+
+    private static final ResourceBundle ERROR_MESSAGES = ResourceBundle.getBundle("ErrorMessages");
 
     @Autowired
-    private ServletContext servletContext;
+    private FreeMarkerRenderService freeMarkerRenderService;
 
     @Autowired
     private JmsTemplate jmsTemplate;
@@ -77,6 +122,24 @@ public class RenderNotificationController {
     @Autowired
     private ObjectMapper objectMapper;
 
+    @Autowired
+    private RenderCache renderCache;
+
+    @Autowired
+    private AsyncTaskExecutor taskExecutor;
+
+    @Autowired
+    private RenderJobService renderJobService;
+
+    @Autowired
+    private RenderAdmission renderAdmission;
+
+    @Value("${render.batch.parallelism:8}")
+    private int batchParallelism;
+
+    @Value("${render.response-buffer-size:65536}")
+    private int responseBufferSize;
+
     // Spring annotations
     @PostMapping(path = "{templateName:.+}",
             consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_XML_VALUE},
@@ -86,16 +149,24 @@ public class RenderNotificationController {
             notes = "<p>Render a document using the specified template name data</p>"
             + "<p>The REST service can output a rendered document in HTML or plain text format</p>"
             + "<p>The REST service can consume input data in JSON or XML format</p>"
-            + "<p>The rendered document can optionally be emailed if a to email addess and subject line is specified</p>",
+            + "<p>The rendered document can optionally be emailed if a to email addess and subject line is specified</p>"
+            + "<p>The rendered document is streamed to the client. An error after the first part of the document has been sent aborts the response</p>"
+            + "<p>Identical render requests can be served from the render cache, unless the Cache-Control header contains no-cache</p>"
+            + "<p>When too many documents are being rendered the request is rejected with status 429 and a Retry-After header</p>"
+            + "<p>With async=true the document is rendered in the background. The response is a render job with status 202, "
+            + "and the rendered document can be retrieved from the location of the job</p>",
             response = String.class
     )
     @ApiResponses(value = {
-        @ApiResponse(code = 400, message = "The input data is invalid", response = BusinessLogicError.class)
+        @ApiResponse(code = 202, message = "The render job has been started", response = RenderJob.class)
+        ,@ApiResponse(code = 400, message = "The input data is invalid", response = BusinessLogicError.class)
         ,@ApiResponse(code = 403, message = "Not authorized to call the api")
         ,@ApiResponse(code = 404, message = "The template name is invalid", response = BusinessLogicError.class)
         ,@ApiResponse(code = 406, message = "The input data content type (application/xml or application/json) does not match the content type of the specified template")
+        ,@ApiResponse(code = 429, message = "Too many documents are being rendered", response = BusinessLogicError.class)
+        ,@ApiResponse(code = 503, message = "Too many render jobs are queued or stored", response = BusinessLogicError.class)
     })
-    public ResponseEntity renderDocument(
+    public void renderDocument(
             @PathVariable("templateName")
             @ApiParam(value = "The name of the template file to use for rendering", required = true)
             final String templateName,
@@ -108,25 +179,478 @@ public class RenderNotificationController {
             @RequestParam(name = "email_subject", required = false)
             @ApiParam(value = "The email subject of the email")
             final String emailSubject,
+            @RequestHeader(name = "accept", required = false)
+            @ApiParam(hidden = true)
+            final String accept,
+            @RequestHeader(name = "cache-control", required = false)
+            @ApiParam(value = "no-cache to render the document again instead of using the render cache")
+            final String cacheControl,
+            @RequestParam(name = "async", defaultValue = "false")
+            @ApiParam(value = "true to render the document in the background and return a render job")
+            final boolean async,
             @RequestBody String data,
-            @ApiIgnore Principal principal) throws UnsupportedEncodingException {
-        // Render the output document
-        String renderedDocument = freeMarkerRenderService.render(servletContext, templateName, contentType, data);
+            @ApiIgnore Principal principal,
+            @ApiIgnore HttpServletResponse response) throws IOException {
+        String documentContentType = new MediaType(getMediaType(templateName, accept), StandardCharsets.UTF_8).toString();
+        if (async) {
+            RenderJob job = renderJobService.start(templateName, contentType, data, documentContentType,
+                    emailTo, emailSubject, principal.getName());
+            URI location = ServletUriComponentsBuilder
+                    .fromCurrentContextPath()
+                    .path("/render-notification/jobs/{id}")
+                    .buildAndExpand(job.getId())
+                    .toUri();
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+            response.setHeader(HttpHeaders.LOCATION, location.toString());
+            writeJob(job, response);
+            return;
+        }
+        response.setContentType(documentContentType);
+        // Look up the output document in the render cache
+        String cacheKey = null;
+        byte[] cachedDocument = null;
+        if (renderCache.isEnabled()) {
+            cacheKey = renderCache.getKey(templateName, freeMarkerRenderService.getTemplateLastModified(templateName),
+                    contentType, data);
+            if (!RenderCache.isNoCache(cacheControl)) {
+                cachedDocument = renderCache.get(cacheKey);
+            }
+            if (RenderCache.isNoStore(cacheControl)) {
+                cacheKey = null;
+            }
+        }
         if ((emailTo != null) && (emailSubject != null)) {
-            String userName = principal.getName();
-            EmailMessage emailMessage = new EmailMessage();
-            emailMessage.setUserName(userName);
-            emailMessage.setToAddress(emailTo);
-            emailMessage.setSubject(emailSubject);
-            String base64Body = Base64.getEncoder().encodeToString(renderedDocument.getBytes("utf-8"));
-            emailMessage.setBody(base64Body);
+            // Render the output document once for the email and the response
+            byte[] renderedDocument = cachedDocument;
+            if (renderedDocument == null) {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+                renderAdmission.acquire();
+                try {
+                    freeMarkerRenderService.render(templateName, contentType, data, writer);
+                } finally {
+                    renderAdmission.release();
+                }
+                writer.flush();
+                renderedDocument = outputStream.toByteArray();
+                if (cacheKey != null) {
+                    renderCache.put(cacheKey, renderedDocument);
+                }
+            }
+            sendEmail(principal.getName(), emailTo, emailSubject, renderedDocument, null);
+            response.setContentLength(renderedDocument.length);
+            response.getOutputStream().write(renderedDocument);
+            return;
+        }
+        if (cachedDocument != null) {
+            response.setContentLength(cachedDocument.length);
+            response.getOutputStream().write(cachedDocument);
+            return;
+        }
+        // Stream the output document to the response
+        renderAdmission.acquire();
+        try {
+            streamDocument(templateName, contentType, data, cacheKey, response);
+        } finally {
+            renderAdmission.release();
+        }
+    }
+
+    private void streamDocument(String templateName, String contentType, String data, String cacheKey,
+            HttpServletResponse response) throws IOException {
+        response.setBufferSize(responseBufferSize);
+        OutputStream outputStream = response.getOutputStream();
+        CapturingOutputStream capturingOutputStream = null;
+        if (cacheKey != null) {
+            // Keep a copy of the streamed document for the render cache
+            capturingOutputStream = new CapturingOutputStream(outputStream, renderCache.getMaxEntryBytes());
+            outputStream = capturingOutputStream;
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        try {
+            freeMarkerRenderService.render(templateName, contentType, data, writer);
+            writer.flush();
+            if ((capturingOutputStream != null) && (capturingOutputStream.getCapturedBytes() != null)) {
+                renderCache.put(cacheKey, capturingOutputStream.getCapturedBytes());
+            }
+        } catch (BusinessLogicException ex) {
+            if (response.isCommitted()) {
+                // A part of the document has already been sent to the client.
+                // Abort the response so that the client receives an incomplete
+                // response instead of a truncated document.
+                log.severe("Rendering " + templateName + " failed with error " + ex.getErrorCode()
+                        + " after the response was committed");
+                throw new IllegalStateException("Rendering " + templateName + " failed after the response was committed", ex);
+            }
+            // Discard the partial document and return the error
+            response.reset();
+            throw ex;
+        }
+    }
+
+    // Spring annotations
+    @GetMapping(path = "jobs/{id}")
+    // Swagger annotations
+    @ApiOperation(value = "Get the rendered document of an asynchronous render job",
+            notes = "<p>Get the rendered document of an asynchronous render job</p>"
+            + "<p>While the document is being rendered the response is the render job with status 202 and a Retry-After header</p>"
+            + "<p>When rendering failed the response is the render error</p>"
+            + "<p>A render job can only be read by the user that started it</p>"
+            + "<p>Render jobs expire a configurable time after they have finished</p>",
+            response = String.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 202, message = "The document is being rendered", response = RenderJob.class)
+        ,@ApiResponse(code = 400, message = "The input data is invalid", response = BusinessLogicError.class)
+        ,@ApiResponse(code = 403, message = "Not authorized to call the api")
+        ,@ApiResponse(code = 404, message = "The render job does not exist or has expired", response = BusinessLogicError.class)
+        ,@ApiResponse(code = 500, message = "The render job failed because of an internal error", response = BusinessLogicError.class)
+    })
+    public void getRenderJobDocument(
+            @PathVariable("id")
+            @ApiParam(value = "The id of the render job", required = true)
+            final String id,
+            @ApiIgnore Principal principal,
+            @ApiIgnore HttpServletResponse response) throws IOException {
+        RenderJob job = renderJobService.getJob(id, principal.getName());
+        switch (job.getStatus()) {
+            case COMPLETED:
+                // Open the document before the headers are set, the job can
+                // be purged after it was found
+                try (InputStream document = renderJobService.openDocument(job)) {
+                    response.setContentType(job.getContentType());
+                    response.setContentLengthLong(job.getSize());
+                    StreamUtils.copy(document, response.getOutputStream());
+                }
+                break;
+            case FAILED:
+                throw new BusinessLogicException(job.getError().getErrorCode(), job.getErrorStatus());
+            default:
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+                writeJob(job, response);
+        }
+    }
+
+    // Spring annotations
+    @PostMapping(path = "{templateName:.+}/batch",
+            consumes = {MediaType.APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE},
+            produces = {APPLICATION_NDJSON_VALUE, APPLICATION_ZIP_VALUE})
+    // Swagger annotations
+    @ApiOperation(value = "Render a document for every data payload using the specified template name",
+            notes = "<p>Render a document for every data payload using the specified template name</p>"
+            + "<p>The REST service consumes a JSON array or newline delimited JSON (NDJSON) with one data payload per line</p>"
+            + "<p>The documents are rendered in parallel and returned in the order of the data payloads, "
+            + "as NDJSON with one BatchRenderResult per line or as a ZIP file with one entry per document</p>"
+            + "<p>A data payload that can not be rendered returns an error for that payload and does not stop the batch</p>"
+            + "<p>The first render is admitted like a single render, the renders of the further payloads wait until they are admitted</p>",
+            response = BatchRenderResult.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 403, message = "Not authorized to call the api")
+        ,@ApiResponse(code = 404, message = "The template name is invalid", response = BusinessLogicError.class)
+        ,@ApiResponse(code = 429, message = "Too many documents are being rendered", response = BusinessLogicError.class)
+    })
+    public void renderDocuments(
+            @PathVariable("templateName")
+            @ApiParam(value = "The name of the template file to use for rendering", required = true)
+            final String templateName,
+            @RequestHeader(name = "accept", required = false)
+            @ApiParam(hidden = true)
+            final String accept,
+            @ApiIgnore HttpServletRequest request,
+            @ApiIgnore HttpServletResponse response) throws IOException {
+        // Parse the template once for all the data payloads
+        Template template = freeMarkerRenderService.getTemplate(templateName);
+        // Read the data payloads one at a time from the request
+        MappingIterator<JsonNode> payloads;
+        try {
+            payloads = objectMapper.readerFor(JsonNode.class)
+                    .with(JsonParser.Feature.ALLOW_SINGLE_QUOTES)
+                    .readValues(request.getInputStream());
+        } catch (JsonProcessingException ex) {
+            throw new BusinessLogicException("FMR10");
+        }
+        // Admit the first render before the response starts, so that an
+        // overloaded application rejects the request with a 429 status
+        renderAdmission.acquire();
+        boolean admitted = true;
+        try {
+            ZipOutputStream zipOutputStream = null;
+            if ((accept != null) && accept.toLowerCase().contains(APPLICATION_ZIP_VALUE)) {
+                response.setContentType(APPLICATION_ZIP_VALUE);
+                response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + templateName + ".zip\"");
+                zipOutputStream = new ZipOutputStream(response.getOutputStream(), StandardCharsets.UTF_8);
+            } else {
+                response.setContentType(new MediaType(MediaType.valueOf(APPLICATION_NDJSON_VALUE), StandardCharsets.UTF_8).toString());
+            }
+            // Render at most batchParallelism payloads at a time and write the
+            // results in the order of the payloads
+            Deque<Future<BatchRenderResult>> renders = new ArrayDeque<>();
+            int index = 0;
+            boolean morePayloads = true;
+            while (morePayloads) {
+                try {
+                    morePayloads = payloads.hasNextValue();
+                    if (morePayloads) {
+                        JsonNode payload = payloads.nextValue();
+                        int payloadIndex = index++;
+                        boolean payloadAdmitted = admitted;
+                        admitted = false;
+                        renders.add(submitBatchItem(template, payloadIndex, payload, payloadAdmitted));
+                    }
+                } catch (JsonProcessingException ex) {
+                    // The rest of the request can not be read after invalid JSON
+                    morePayloads = false;
+                    renders.add(CompletableFuture.completedFuture(getBatchError(index, new BusinessLogicException("FMR10"))));
+                }
+                while (!renders.isEmpty() && (!morePayloads || (renders.size() >= batchParallelism))) {
+                    writeBatchResult(getBatchResult(renders.poll()), templateName, response.getOutputStream(), zipOutputStream);
+                }
+            }
+            if (zipOutputStream != null) {
+                zipOutputStream.finish();
+            }
+            response.flushBuffer();
+        } finally {
+            if (admitted) {
+                renderAdmission.release();
+            }
+        }
+    }
+
+    // Spring annotations
+    @PostMapping(path = "{templateNames:.+}/multipart",
+            consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_XML_VALUE},
+            produces = {MULTIPART_MIXED_VALUE})
+    // Swagger annotations
+    @ApiOperation(value = "Render a document with each of the specified templates from the same data",
+            notes = "<p>Render a document with each of the specified templates from the same data</p>"
+            + "<p>The template names are comma separated. A template name without an extension is a template family, "
+            + "for example BasicJSON renders both BasicJSON.html and BasicJSON.txt</p>"
+            + "<p>The input data is parsed once for all the templates</p>"
+            + "<p>The response is multipart/mixed with one part per rendered document</p>"
+            + "<p>If a to email addess and subject line is specified, the HTML and plain text documents are emailed as multipart/alternative</p>",
+            response = String.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 400, message = "The input data is invalid", response = BusinessLogicError.class)
+        ,@ApiResponse(code = 403, message = "Not authorized to call the api")
+        ,@ApiResponse(code = 404, message = "A template name is invalid", response = BusinessLogicError.class)
+        ,@ApiResponse(code = 429, message = "Too many documents are being rendered", response = BusinessLogicError.class)
+    })
+    public void renderMultipartDocument(
+            @PathVariable("templateNames")
+            @ApiParam(value = "The comma separated names of the template files or template families to use for rendering", required = true)
+            final String templateNames,
+            @RequestHeader("content-type")
+            @ApiParam(hidden = true)
+            final String contentType,
+            @RequestParam(name = "email_to", required = false)
+            @ApiParam(value = "The comma separated list of email addresses")
+            final String emailTo,
+            @RequestParam(name = "email_subject", required = false)
+            @ApiParam(value = "The email subject of the email")
+            final String emailSubject,
+            @RequestBody String data,
+            @ApiIgnore Principal principal,
+            @ApiIgnore HttpServletResponse response) throws IOException {
+        Map<String, Template> templates = getTemplates(templateNames);
+        // Parse the input data once for all the templates
+        TemplateModel templateData = freeMarkerRenderService.parseData(contentType, data);
+        Map<String, byte[]> documents = new LinkedHashMap<>();
+        renderAdmission.acquire();
+        try {
+            for (Map.Entry<String, Template> template : templates.entrySet()) {
+                StringWriter writer = new StringWriter();
+                freeMarkerRenderService.render(template.getValue(), templateData, writer);
+                documents.put(template.getKey(), writer.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        } finally {
+            renderAdmission.release();
+        }
+        if ((emailTo != null) && (emailSubject != null)) {
+            // Email the HTML document with the plain text document as its alternative
+            byte[] htmlDocument = getDocument(documents, MediaType.TEXT_HTML);
+            byte[] textDocument = getDocument(documents, MediaType.TEXT_PLAIN);
+            if (htmlDocument != null) {
+                sendEmail(principal.getName(), emailTo, emailSubject, htmlDocument, textDocument);
+            } else {
+                sendEmail(principal.getName(), emailTo, emailSubject, textDocument, null);
+            }
+        }
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        response.setContentType(MULTIPART_MIXED_VALUE + ";boundary=" + boundary);
+        OutputStream outputStream = response.getOutputStream();
+        for (Map.Entry<String, byte[]> document : documents.entrySet()) {
+            String partHeaders = "--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + new MediaType(getMediaType(document.getKey(), null), StandardCharsets.UTF_8) + "\r\n"
+                    + HttpHeaders.CONTENT_DISPOSITION + ": inline; filename=\"" + document.getKey() + "\"\r\n\r\n";
+            outputStream.write(partHeaders.getBytes(StandardCharsets.UTF_8));
+            outputStream.write(document.getValue());
+            outputStream.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        }
+        outputStream.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        response.flushBuffer();
+    }
+
+    private Map<String, Template> getTemplates(String templateNames) {
+        Map<String, Template> templates = new LinkedHashMap<>();
+        for (String templateName : templateNames.split(",")) {
+            templateName = templateName.trim();
+            if (templateName.contains(".")) {
+                templates.put(templateName, freeMarkerRenderService.getTemplate(templateName));
+                continue;
+            }
+            // Use every variant of the template family that exists
+            int variants = 0;
+            for (String extension : TEMPLATE_FAMILY_EXTENSIONS) {
+                try {
+                    templates.put(templateName + extension, freeMarkerRenderService.getTemplate(templateName + extension));
+                    variants++;
+                } catch (BusinessLogicException ex) {
+                    if (ex.getHttpStatus() != HttpStatus.NOT_FOUND) {
+                        throw ex;
+                    }
+                }
+            }
+            if (variants == 0) {
+                throw new BusinessLogicException("FMR4", HttpStatus.NOT_FOUND);
+            }
+        }
+        return templates;
+    }
+
+    private byte[] getDocument(Map<String, byte[]> documents, MediaType mediaType) {
+        for (Map.Entry<String, byte[]> document : documents.entrySet()) {
+            if (getMediaType(document.getKey(), null).equals(mediaType)) {
+                return document.getValue();
+            }
+        }
+        return null;
+    }
+
+    private void sendEmail(String userName, String emailTo, String emailSubject, byte[] body, byte[] textBody) {
+        EmailMessage emailMessage = new EmailMessage();
+        emailMessage.setUserName(userName);
+        emailMessage.setToAddress(emailTo);
+        emailMessage.setSubject(emailSubject);
+        emailMessage.setBody(Base64.getEncoder().encodeToString(body));
+        if (textBody != null) {
+            emailMessage.setTextBody(Base64.getEncoder().encodeToString(textBody));
+        }
+        try {
+            jmsTemplate.convertAndSend("email_queue", objectMapper.writeValueAsString(emailMessage));
+        } catch (JsonProcessingException ex) {
+            throw new BusinessLogicException("FMR9");
+        }
+    }
+
+    private Future<BatchRenderResult> submitBatchItem(Template template, int index, JsonNode payload, boolean admitted) {
+        // The response has started and the request can no longer be rejected,
+        // so the further renders wait until they are admitted
+        if (!admitted) {
+            try {
+                renderAdmission.acquireAdmitted();
+            } catch (TooManyRequestsException ex) {
+                return CompletableFuture.completedFuture(getBatchError(index, ex));
+            }
+        }
+        try {
+            return taskExecutor.submit(() -> {
+                try {
+                    return renderBatchItem(template, index, payload);
+                } finally {
+                    renderAdmission.release();
+                }
+            });
+        } catch (TaskRejectedException ex) {
+            // Render on the request thread when the taskExecutor is full
             try {
-                jmsTemplate.convertAndSend("email_queue", objectMapper.writeValueAsString(emailMessage));
-            } catch (JsonProcessingException ex) {
-                throw new BusinessLogicException("FMR9");
+                return CompletableFuture.completedFuture(renderBatchItem(template, index, payload));
+            } finally {
+                renderAdmission.release();
+            }
+        }
+    }
+
+    private BatchRenderResult renderBatchItem(Template template, int index, JsonNode payload) {
+        StringWriter writer = new StringWriter();
+        try {
+            freeMarkerRenderService.render(template, payload, writer);
+        } catch (BusinessLogicException ex) {
+            return getBatchError(index, ex);
+        }
+        BatchRenderResult batchRenderResult = new BatchRenderResult();
+        batchRenderResult.setIndex(index);
+        batchRenderResult.setDocument(writer.toString());
+        return batchRenderResult;
+    }
+
+    private BatchRenderResult getBatchError(int index, BusinessLogicException businessLogicException) {
+        BusinessLogicError businessLogicError = new BusinessLogicError();
+        businessLogicError.setErrorCode(businessLogicException.getErrorCode());
+        businessLogicError.setMessage(ERROR_MESSAGES.getString(businessLogicException.getErrorCode()));
+        businessLogicError.setItemIndex(index);
+        BatchRenderResult batchRenderResult = new BatchRenderResult();
+        batchRenderResult.setIndex(index);
+        batchRenderResult.setError(businessLogicError);
+        return batchRenderResult;
+    }
+
+    private BatchRenderResult getBatchResult(Future<BatchRenderResult> render) {
+        try {
+            return render.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("The batch render was interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("A batch render task failed", ex.getCause());
+        }
+    }
+
+    private void writeBatchResult(BatchRenderResult batchRenderResult, String templateName,
+            OutputStream outputStream, ZipOutputStream zipOutputStream) throws IOException {
+        if (zipOutputStream == null) {
+            outputStream.write(objectMapper.writeValueAsBytes(batchRenderResult));
+            outputStream.write('\n');
+            return;
+        }
+        // Name the ZIP entries by payload index so they sort in input order
+        String entryName = String.format("%06d-", batchRenderResult.getIndex());
+        if (batchRenderResult.getError() == null) {
+            zipOutputStream.putNextEntry(new ZipEntry(entryName + templateName));
+            zipOutputStream.write(batchRenderResult.getDocument().getBytes(StandardCharsets.UTF_8));
+        } else {
+            zipOutputStream.putNextEntry(new ZipEntry(entryName + "error.json"));
+            zipOutputStream.write(objectMapper.writeValueAsBytes(batchRenderResult.getError()));
+        }
+        zipOutputStream.closeEntry();
+    }
+
+    private void writeJob(RenderJob job, HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+        objectMapper.writeValue(response.getOutputStream(), job);
+    }
+
+    private MediaType getMediaType(String templateName, String accept) {
+        if (accept != null) {
+            List<MediaType> mediaTypes = MediaType.parseMediaTypes(accept);
+            MediaType.sortBySpecificityAndQuality(mediaTypes);
+            for (MediaType mediaType : mediaTypes) {
+                if (mediaType.isWildcardType() || mediaType.isWildcardSubtype()) {
+                    break;
+                }
+                if (mediaType.includes(MediaType.TEXT_HTML)) {
+                    return MediaType.TEXT_HTML;
+                }
+                if (mediaType.includes(MediaType.TEXT_PLAIN)) {
+                    return MediaType.TEXT_PLAIN;
+                }
             }
         }
-        return ResponseEntity.ok(renderedDocument);
+        // Use the media type of the template
+        return templateName.toLowerCase().endsWith(".html") ? MediaType.TEXT_HTML : MediaType.TEXT_PLAIN;
     }
 
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that keeps a copy of the bytes written to another output
+ * stream, up to a maximum number of bytes.
+ * <p>
+ * It is used to add a streamed document to the RenderCache without rendering
+ * it twice. When the document is larger than the maximum the copy is discarded
+ * and the document is only streamed.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public class CapturingOutputStream extends FilterOutputStream {
+
+    private final int maxBytes;
+
+    private ByteArrayOutputStream captured = new ByteArrayOutputStream();
+
+    public CapturingOutputStream(OutputStream out, int maxBytes) {
+        super(out);
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        capture(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        capture(b, off, len);
+    }
+
+    /**
+     * The bytes written to the output stream
+     *
+     * @return The written bytes or null if more than the maximum number of
+     * bytes were written
+     */
+    public byte[] getCapturedBytes() {
+        return (captured == null) ? null : captured.toByteArray();
+    }
+
+    private void capture(byte[] b, int off, int len) {
+        if (captured == null) {
+            return;
+        }
+        if (captured.size() + len > maxBytes) {
+            captured = null;
+            return;
+        }
+        captured.write(b, off, len);
+    }
+}
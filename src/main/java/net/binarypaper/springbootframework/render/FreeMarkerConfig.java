@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import freemarker.template.TemplateExceptionHandler;
+import freemarker.template.Version;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import javax.servlet.ServletContext;
+import javax.xml.parsers.ParserConfigurationException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Creates the FreeMarker configuration used to render documents when the
+ * application starts.
+ * <p>
+ * The templates are loaded from the /WEB-INF/email_templates folder and kept
+ * in a bounded TemplateCacheStorage. A cached template is checked for changes
+ * at most once per render.template-cache.update-delay milliseconds.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@Configuration
+public class FreeMarkerConfig {
+
+    public static final String TEMPLATE_FOLDER = "/WEB-INF/email_templates";
+
+    @Value("${render.template-cache.strong-size:20}")
+    private int strongSize;
+
+    @Value("${render.template-cache.soft-size:250}")
+    private int softSize;
+
+    @Value("${render.template-cache.update-delay:5000}")
+    private long templateUpdateDelay;
+
+    @Value("${render.xml-parser-pool-size:16}")
+    private int xmlParserPoolSize;
+
+    /**
+     * The template cache storage of the render configuration, with its cache
+     * statistics published as metrics.
+     *
+     * @param meterRegistry The meter registry
+     * @return The template cache storage
+     */
+    @Bean
+    public TemplateCacheStorage renderTemplateCacheStorage(MeterRegistry meterRegistry) {
+        TemplateCacheStorage templateCacheStorage = new TemplateCacheStorage(strongSize, softSize);
+        FunctionCounter.builder("render.template.cache.hits", templateCacheStorage, TemplateCacheStorage::getHits)
+                .description("The number of templates found in the template cache")
+                .register(meterRegistry);
+        FunctionCounter.builder("render.template.cache.misses", templateCacheStorage, TemplateCacheStorage::getMisses)
+                .description("The number of templates not found in the template cache")
+                .register(meterRegistry);
+        Gauge.builder("render.template.cache.size", templateCacheStorage, TemplateCacheStorage::getSize)
+                .description("The number of templates in the template cache")
+                .register(meterRegistry);
+        return templateCacheStorage;
+    }
+
+    /**
+     * The FreeMarker configuration used by the FreeMarkerRenderService.
+     * <p>
+     * The configuration is only read after it has been created, so it can be
+     * shared by all the request threads.
+     *
+     * @param servletContext The servlet context to load the templates from
+     * @param renderTemplateCacheStorage The template cache storage
+     * @return The FreeMarker configuration
+     */
+    @Bean
+    public freemarker.template.Configuration renderConfiguration(ServletContext servletContext,
+            TemplateCacheStorage renderTemplateCacheStorage) {
+        freemarker.template.Configuration configuration = new freemarker.template.Configuration(new Version(2, 3, 23));
+        // Set the preferred charset template files are stored in. UTF-8 is
+        // a good choice in most applications.
+        configuration.setDefaultEncoding("UTF-8");
+        // Sets how errors will appear.
+        // During web page *development* TemplateExceptionHandler.HTML_DEBUG_HANDLER is better.
+        configuration.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
+        // Specify the source where the template files come from. Here I set a
+        // folder path within the war file.
+        configuration.setServletContextForTemplateLoading(servletContext, TEMPLATE_FOLDER);
+        configuration.setCacheStorage(renderTemplateCacheStorage);
+        configuration.setTemplateUpdateDelayMilliseconds(templateUpdateDelay);
+        return configuration;
+    }
+
+    /**
+     * The pool of XML parsers used to parse XML render data.
+     *
+     * @return The XML document builder pool
+     * @throws ParserConfigurationException If the XML parser does not support
+     * the security features
+     */
+    @Bean
+    public XmlDocumentBuilderPool xmlDocumentBuilderPool() throws ParserConfigurationException {
+        return new XmlDocumentBuilderPool(xmlParserPoolSize);
+    }
+}
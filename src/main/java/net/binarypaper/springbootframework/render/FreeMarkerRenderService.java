@@ -15,25 +15,28 @@
  */
 package net.binarypaper.springbootframework.render;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import freemarker.core.InvalidReferenceException;
+import freemarker.cache.TemplateLoader;
 import freemarker.core.ParseException;
-import freemarker.ext.dom.NodeModel;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
-import freemarker.template.TemplateExceptionHandler;
+import freemarker.template.TemplateModel;
 import freemarker.template.TemplateNotFoundException;
-import freemarker.template.Version;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
-import java.util.HashMap;
-import java.util.Map;
-import javax.servlet.ServletContext;
+import java.io.Writer;
+import java.util.Collections;
 import javax.xml.parsers.ParserConfigurationException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import net.binarypaper.springbootframework.exception.BusinessLogicException;
 import org.springframework.http.HttpStatus;
@@ -41,6 +44,11 @@ import org.springframework.http.HttpStatus;
 /**
  * An Spring Service bean to perform render documents using the FreeMarker
  * Template Engine
+ * <p>
+ * XML data is provided to the templates as a DOM node model and JSON data as a
+ * JsonNodeModel, so templates can use the data without parsing it.
+ * <p>
+ * Every render is limited by the RenderBudget.
  *
  * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
  */
@@ -48,51 +56,209 @@ import org.springframework.http.HttpStatus;
 @Service
 public class FreeMarkerRenderService {
 
-    private static Configuration CONFIGURATION;
-
-    public String render(ServletContext servletContext, String templateName, String contentType, String data) {
-        if (CONFIGURATION == null) {
-            Configuration configuration = new Configuration(new Version(2, 3, 23));
-            // Set the preferred charset template files are stored in. UTF-8 is
-            // a good choice in most applications.
-            configuration.setDefaultEncoding("UTF-8");
-            // Sets how errors will appear.
-            // During web page *development* TemplateExceptionHandler.HTML_DEBUG_HANDLER is better.
-            configuration.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
-            // Specify the source where the template files come from. Here I set a
-            // folder path within the war file.
-            configuration.setServletContextForTemplateLoading(servletContext, "/WEB-INF/email_templates");
-            // Only assign the static CONFIGURATION if no IOException occurred
-            CONFIGURATION = configuration;
-        }
+    @Autowired
+    @Qualifier("renderConfiguration")
+    private Configuration configuration;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private XmlDocumentBuilderPool xmlDocumentBuilderPool;
+
+    @Autowired
+    private RenderBudget renderBudget;
+
+    private final InterruptibleTemplates interruptibleTemplates = new InterruptibleTemplates();
+
+    public String render(String templateName, String contentType, String data) {
+        StringWriter writer = new StringWriter();
+        render(templateName, contentType, data, writer);
+        return writer.toString();
+    }
 
+    /**
+     * Gets the last modified time of a template file.
+     *
+     * @param templateName The name of the template file
+     * @return The last modified time of the template or -1 if the template
+     * does not exist or the time is unknown
+     */
+    public long getTemplateLastModified(String templateName) {
+        TemplateLoader templateLoader = configuration.getTemplateLoader();
         try {
-            Template template = CONFIGURATION.getTemplate(templateName);
-            Map<String, Object> templateData = new HashMap<>();
-            if (contentType.toLowerCase().contains(MediaType.APPLICATION_XML_VALUE)) {
-                InputSource inputSource = new InputSource(new StringReader(data));
-                templateData.put("data", NodeModel.parse(inputSource));
-            } else {
-                templateData.put("data", data);
+            Object templateSource = templateLoader.findTemplateSource(templateName);
+            if (templateSource == null) {
+                return -1;
+            }
+            try {
+                return templateLoader.getLastModified(templateSource);
+            } finally {
+                templateLoader.closeTemplateSource(templateSource);
             }
-            StringWriter writer = new StringWriter();
-            template.process(templateData, writer);
-            return writer.toString();
+        } catch (IOException ex) {
+            throw new BusinessLogicException("FMR8");
+        }
+    }
+
+    /**
+     * Gets a parsed template from the template cache.
+     *
+     * @param templateName The name of the template file
+     * @return The template
+     */
+    public Template getTemplate(String templateName) {
+        try {
+            return makeInterruptible(configuration.getTemplate(templateName));
         } catch (ParseException ex) {
             throw new BusinessLogicException("FMR2");
-        } catch (InvalidReferenceException ex) {
-            throw new BusinessLogicException("FMR3");
         } catch (TemplateNotFoundException ex) {
             throw new BusinessLogicException("FMR4", HttpStatus.NOT_FOUND);
+        } catch (IOException ex) {
+            throw new BusinessLogicException("FMR8");
+        }
+    }
+
+    /**
+     * Parses a template that is not stored in the template folder, for
+     * example an email subject line.
+     *
+     * @param templateName The name of the template used in error messages
+     * @param templateSource The FreeMarker template
+     * @return The template
+     */
+    public Template createTemplate(String templateName, String templateSource) {
+        try {
+            return makeInterruptible(new Template(templateName, new StringReader(templateSource), configuration));
+        } catch (ParseException ex) {
+            throw new BusinessLogicException("FMR2");
+        } catch (IOException ex) {
+            throw new BusinessLogicException("FMR8");
+        }
+    }
+
+    /**
+     * Renders a document with JSON data that has already been parsed.
+     *
+     * @param template The template
+     * @param data The input data
+     * @param writer The writer to write the rendered document to
+     */
+    public void render(Template template, JsonNode data, Writer writer) {
+        render(template, JsonNodeModel.wrap(data), writer);
+    }
+
+    /**
+     * Renders a document with input data that has already been parsed by
+     * parseData, so that several templates can be rendered with the same data.
+     *
+     * @param template The template
+     * @param data The parsed input data
+     * @param writer The writer to write the rendered document to
+     */
+    public void render(Template template, TemplateModel data, Writer writer) {
+        render(template, data, writer, renderBudget.getDefaultLimits());
+    }
+
+    /**
+     * Renders a document with input data that has already been parsed, with
+     * the render limits of the caller instead of the default render limits.
+     *
+     * @param template The template
+     * @param data The parsed input data
+     * @param writer The writer to write the rendered document to
+     * @param limits The time and output limits of the render
+     */
+    public void render(Template template, TemplateModel data, Writer writer, RenderBudget.Limits limits) {
+        RenderBudget.Execution execution = renderBudget.start(writer, limits);
+        try {
+            template.process(Collections.singletonMap("data", data), execution.getWriter());
+        } catch (InvalidReferenceException ex) {
+            throw new BusinessLogicException("FMR3");
         } catch (TemplateException ex) {
             throw new BusinessLogicException("FMR5");
+        } catch (IOException ex) {
+            throw new BusinessLogicException("FMR8");
+        } finally {
+            // A render that ran out of time fails with FMR17, whatever error
+            // the interruption caused
+            execution.finish();
+        }
+    }
+
+    /**
+     * Makes a template interruptible, so that the render budget can stop it
+     * when it runs out of time. Every template is made interruptible, because
+     * a caller can render with its own time limit.
+     *
+     * @param template The template
+     * @return The template
+     */
+    private Template makeInterruptible(Template template) {
+        return interruptibleTemplates.makeInterruptible(template);
+    }
+
+    /**
+     * Parses the input data into the data model of the templates.
+     *
+     * @param contentType The content type of the input data
+     * @param data The input data in XML or JSON format
+     * @return The DOM node model of XML data or the JsonNodeModel of JSON data
+     */
+    public TemplateModel parseData(String contentType, String data) {
+        try {
+            if (contentType.toLowerCase().contains(MediaType.APPLICATION_XML_VALUE)) {
+                return xmlDocumentBuilderPool.parse(data);
+            }
+            // Single quoted JSON was accepted by the FreeMarker ?eval built-in
+            JsonNode jsonNode = objectMapper.reader()
+                    .with(JsonParser.Feature.ALLOW_SINGLE_QUOTES)
+                    .readTree(data);
+            if (jsonNode == null) {
+                throw new BusinessLogicException("FMR10");
+            }
+            return JsonNodeModel.wrap(jsonNode);
         } catch (SAXException ex) {
             throw new BusinessLogicException("FMR6");
         } catch (ParserConfigurationException ex) {
             throw new BusinessLogicException("FMR7");
+        } catch (JsonProcessingException ex) {
+            throw new BusinessLogicException("FMR10");
         } catch (IOException ex) {
             throw new BusinessLogicException("FMR8");
         }
     }
 
+    /**
+     * Renders a document to a writer.
+     * <p>
+     * The template and the input data are parsed before anything is written,
+     * so template, data and template name errors never leave partial output in
+     * the writer. A FreeMarker runtime error can occur after a part of the
+     * document has been written.
+     *
+     * @param templateName The name of the template file
+     * @param contentType The content type of the input data
+     * @param data The input data in XML or JSON format
+     * @param writer The writer to write the rendered document to
+     */
+    public void render(String templateName, String contentType, String data, Writer writer) {
+        render(templateName, contentType, data, writer, renderBudget.getDefaultLimits());
+    }
+
+    /**
+     * Renders a document to a writer with the render limits of the caller
+     * instead of the default render limits.
+     *
+     * @param templateName The name of the template file
+     * @param contentType The content type of the input data
+     * @param data The input data in XML or JSON format
+     * @param writer The writer to write the rendered document to
+     * @param limits The time and output limits of the render
+     */
+    public void render(String templateName, String contentType, String data, Writer writer, RenderBudget.Limits limits) {
+        Template template = getTemplate(templateName);
+        render(template, parseData(contentType, data), writer, limits);
+    }
+
 }
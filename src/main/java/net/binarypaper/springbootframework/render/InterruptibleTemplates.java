@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import freemarker.core._CoreAPI;
+import freemarker.template.Template;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Makes parsed templates stop when the rendering thread is interrupted.
+ * <p>
+ * FreeMarker only checks for thread interruption when the checks are added to
+ * a parsed template, which the public API of FreeMarker 2.3 does not support.
+ * The checks are added with freemarker.core._CoreAPI, which is internal to
+ * FreeMarker and may change in any FreeMarker release. This class is the only
+ * user of the internal API, it must be checked when FreeMarker is upgraded.
+ * <p>
+ * The checks are added once to every template, before the template is first
+ * used. Templates are weakly referenced, so that templates removed from the
+ * template cache can be collected.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+class InterruptibleTemplates {
+
+    private final Set<Template> templates = Collections.newSetFromMap(new WeakHashMap<>());
+
+    /**
+     * Adds checks for thread interruption to the loops and macros of a
+     * template.
+     *
+     * @param template The template
+     * @return The template
+     */
+    Template makeInterruptible(Template template) {
+        synchronized (templates) {
+            if (templates.add(template)) {
+                _CoreAPI.addThreadInterruptedChecks(template);
+            }
+        }
+        return template;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import freemarker.template.AdapterTemplateModel;
+import freemarker.template.SimpleNumber;
+import freemarker.template.SimpleScalar;
+import freemarker.template.TemplateBooleanModel;
+import freemarker.template.TemplateCollectionModel;
+import freemarker.template.TemplateHashModelEx;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelIterator;
+import freemarker.template.TemplateScalarModel;
+import freemarker.template.TemplateSequenceModel;
+import java.util.Iterator;
+import java.util.function.Supplier;
+
+/**
+ * A FreeMarker template model of a Jackson JSON tree.
+ * <p>
+ * JSON objects are hashes and JSON arrays are sequences. The child nodes are
+ * only wrapped when a template reads them. JSON null values are treated as
+ * missing values by the templates.
+ * <p>
+ * Objects and arrays are also strings with the JSON text of the node, so that
+ * templates that still use <code>data?eval</code> keep working.
+ * <p>
+ * Every array item and object key or value that is read counts as a loop
+ * iteration of the RenderBudget.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public abstract class JsonNodeModel implements TemplateScalarModel, AdapterTemplateModel {
+
+    protected final JsonNode node;
+
+    private JsonNodeModel(JsonNode node) {
+        this.node = node;
+    }
+
+    /**
+     * Wraps a JSON node in a template model.
+     *
+     * @param node The JSON node
+     * @return The template model of the node or null for a JSON null value
+     */
+    public static TemplateModel wrap(JsonNode node) {
+        if (node == null || node.isNull() || node.isMissingNode()) {
+            return null;
+        }
+        if (node.isObject()) {
+            return new ObjectModel(node);
+        }
+        if (node.isArray()) {
+            return new ArrayModel(node);
+        }
+        if (node.isBoolean()) {
+            return node.booleanValue() ? TemplateBooleanModel.TRUE : TemplateBooleanModel.FALSE;
+        }
+        if (node.isNumber()) {
+            return new SimpleNumber(node.numberValue());
+        }
+        return new SimpleScalar(node.asText());
+    }
+
+    @Override
+    public String getAsString() {
+        return node.toString();
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Object getAdaptedObject(Class hint) {
+        return node;
+    }
+
+    private static class ObjectModel extends JsonNodeModel implements TemplateHashModelEx {
+
+        private ObjectModel(JsonNode node) {
+            super(node);
+        }
+
+        @Override
+        public TemplateModel get(String key) {
+            return wrap(node.get(key));
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return node.size() == 0;
+        }
+
+        @Override
+        public int size() {
+            return node.size();
+        }
+
+        @Override
+        public TemplateCollectionModel keys() {
+            return new IteratorCollectionModel<>(node::fieldNames);
+        }
+
+        @Override
+        public TemplateCollectionModel values() {
+            return new IteratorCollectionModel<>(node::elements);
+        }
+    }
+
+    private static class ArrayModel extends JsonNodeModel implements TemplateSequenceModel {
+
+        private ArrayModel(JsonNode node) {
+            super(node);
+        }
+
+        @Override
+        public TemplateModel get(int index) {
+            RenderBudget.countIteration();
+            return wrap(node.get(index));
+        }
+
+        @Override
+        public int size() {
+            return node.size();
+        }
+    }
+
+    private static class IteratorCollectionModel<T> implements TemplateCollectionModel {
+
+        private final Supplier<Iterator<T>> iteratorSupplier;
+
+        private IteratorCollectionModel(Supplier<Iterator<T>> iteratorSupplier) {
+            this.iteratorSupplier = iteratorSupplier;
+        }
+
+        @Override
+        public TemplateModelIterator iterator() {
+            Iterator<T> iterator = iteratorSupplier.get();
+            return new TemplateModelIterator() {
+                @Override
+                public TemplateModel next() {
+                    RenderBudget.countIteration();
+                    T next = iterator.next();
+                    return (next instanceof JsonNode) ? wrap((JsonNode) next) : new SimpleScalar((String) next);
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import net.binarypaper.springbootframework.exception.TooManyRequestsException;
+
+/**
+ * Limits the number of documents rendered at the same time.
+ * <p>
+ * At most render.admission.max-concurrent renders run at the same time. Up to
+ * render.admission.max-queued further renders wait in first in, first out
+ * order for at most render.admission.queue-timeout milliseconds. A render that
+ * finds the queue full or that waits too long is rejected with a
+ * TooManyRequestsException, so that an overloaded application fails fast
+ * instead of letting the latency of every request grow. A request that has
+ * already started its response, such as a batch render, can no longer be
+ * rejected and waits for its further renders without the queue limit.
+ * <p>
+ * The renders run on the request threads, so that documents can still be
+ * streamed to the response.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@Component
+public class RenderAdmission {
+
+    @Value("${render.admission.enabled:true}")
+    private boolean enabled;
+
+    @Value("${render.admission.max-concurrent:16}")
+    private int maxConcurrent;
+
+    @Value("${render.admission.max-queued:64}")
+    private int maxQueued;
+
+    @Value("${render.admission.queue-timeout:2000}")
+    private long queueTimeout;
+
+    @Value("${render.admission.retry-after:1}")
+    private long retryAfter;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private Semaphore permits;
+
+    private Counter rejections;
+
+    private Timer waitTimer;
+
+    @PostConstruct
+    public void init() {
+        permits = new Semaphore(maxConcurrent, true);
+        Gauge.builder("render.admission.active", this, admission -> maxConcurrent - admission.permits.availablePermits())
+                .description("The number of documents being rendered")
+                .register(meterRegistry);
+        Gauge.builder("render.admission.queued", queued, AtomicInteger::get)
+                .description("The number of renders waiting to start")
+                .register(meterRegistry);
+        rejections = Counter.builder("render.admission.rejections")
+                .description("The number of renders rejected because too many renders were running or waiting")
+                .register(meterRegistry);
+        waitTimer = Timer.builder("render.admission.wait")
+                .description("The time renders waited to start")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Waits until a render may start. Every successful call must be followed
+     * by a call to release.
+     *
+     * @throws TooManyRequestsException If the render queue is full or the
+     * render waited longer than the queue timeout
+     */
+    public void acquire() {
+        if (!enabled) {
+            return;
+        }
+        // Start immediately when a render slot is free and no render waits,
+        // the timed tryAcquire keeps the first in, first out order of the
+        // fair semaphore where the untimed tryAcquire would barge
+        try {
+            if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw reject();
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            throw reject();
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS)) {
+                throw reject();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw reject();
+        } finally {
+            queued.decrementAndGet();
+            waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Waits until a further render of a request that has already been admitted
+     * may start, without the queue limit and the queue timeout. Every
+     * successful call must be followed by a call to release.
+     *
+     * @throws TooManyRequestsException If the thread was interrupted
+     */
+    public void acquireAdmitted() {
+        if (!enabled) {
+            return;
+        }
+        queued.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            permits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw reject();
+        } finally {
+            queued.decrementAndGet();
+            waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Releases the render slot acquired by acquire or acquireAdmitted.
+     */
+    public void release() {
+        if (enabled) {
+            permits.release();
+        }
+    }
+
+    private TooManyRequestsException reject() {
+        rejections.increment();
+        return new TooManyRequestsException("FMR16", retryAfter);
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import net.binarypaper.springbootframework.exception.BusinessLogicException;
+
+/**
+ * The limits of a single render, so that one bad template or payload can not
+ * occupy a worker thread for long.
+ * <ul>
+ * <li>A render that runs longer than render.budget.max-time milliseconds is
+ * interrupted by a watchdog thread and fails with FMR17. The templates check
+ * for the interruption in every loop and macro. The watchdog never interrupts
+ * a write to the writer of the render, which can be blocked on a servlet
+ * output stream, the render is interrupted when the write returns. A write
+ * blocked on a slow client is limited by the write timeout of the server.</li>
+ * <li>A render that writes more than render.budget.max-output-chars characters
+ * fails with FMR18.</li>
+ * <li>A render that reads more than render.budget.max-loop-iterations items of
+ * JSON arrays and objects fails with FMR19.</li>
+ * </ul>
+ * A limit of 0 disables it. A caller can start a render with its own time and
+ * output limits, for example asynchronous render jobs use render.async.max-time
+ * and render.async.max-output-chars. Exceeded limits are counted by the
+ * render.budget.exceeded counter, tagged with the limit.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@Component
+public class RenderBudget {
+
+    private static final ThreadLocal<Execution> CURRENT = new ThreadLocal<>();
+
+    @Value("${render.budget.max-time:10000}")
+    private long maxTime;
+
+    @Value("${render.budget.max-output-chars:10485760}")
+    private long maxOutputChars;
+
+    @Value("${render.budget.max-loop-iterations:1000000}")
+    private long maxLoopIterations;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Limits defaultLimits;
+
+    private ScheduledThreadPoolExecutor watchdog;
+
+    private Counter timeExceeded;
+
+    private Counter outputExceeded;
+
+    private Counter iterationsExceeded;
+
+    @PostConstruct
+    public void init() {
+        defaultLimits = new Limits(maxTime, maxOutputChars);
+        watchdog = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "render-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.setRemoveOnCancelPolicy(true);
+        timeExceeded = createCounter("time");
+        outputExceeded = createCounter("output");
+        iterationsExceeded = createCounter("iterations");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        watchdog.shutdownNow();
+    }
+
+    /**
+     * The limits of render.budget.max-time and render.budget.max-output-chars
+     *
+     * @return The default limits
+     */
+    public Limits getDefaultLimits() {
+        return defaultLimits;
+    }
+
+    /**
+     * Starts the budget of a render with the default limits on the current
+     * thread. The render must write to the writer of the execution and call
+     * finish when it is done.
+     *
+     * @param writer The writer to write the rendered document to
+     * @return The execution of the render
+     */
+    public Execution start(Writer writer) {
+        return start(writer, defaultLimits);
+    }
+
+    /**
+     * Starts the budget of a render with the limits of the caller on the
+     * current thread. The render must write to the writer of the execution and
+     * call finish when it is done.
+     *
+     * @param writer The writer to write the rendered document to
+     * @param limits The time and output limits of the render
+     * @return The execution of the render
+     */
+    public Execution start(Writer writer, Limits limits) {
+        return new Execution(writer, limits);
+    }
+
+    /**
+     * Counts an item of the input data read by the render on the current
+     * thread.
+     *
+     * @throws BusinessLogicException If the render read too many items
+     */
+    static void countIteration() {
+        Execution execution = CURRENT.get();
+        if (execution != null) {
+            execution.countIteration();
+        }
+    }
+
+    private Counter createCounter(String limit) {
+        return Counter.builder("render.budget.exceeded")
+                .description("The number of renders stopped because they exceeded a render limit")
+                .tag("limit", limit)
+                .register(meterRegistry);
+    }
+
+    private BusinessLogicException exceeded(Counter counter, String errorCode) {
+        counter.increment();
+        return new BusinessLogicException(errorCode);
+    }
+
+    /**
+     * The time and output limits of a render. A limit of 0 disables it.
+     */
+    // Lombok annotations
+    @Getter
+    public static final class Limits {
+
+        private final long maxTime;
+
+        private final long maxOutputChars;
+
+        /**
+         * Creates the limits of a render.
+         *
+         * @param maxTime The maximum render time in milliseconds
+         * @param maxOutputChars The maximum size of the rendered document in
+         * characters
+         */
+        public Limits(long maxTime, long maxOutputChars) {
+            this.maxTime = maxTime;
+            this.maxOutputChars = maxOutputChars;
+        }
+    }
+
+    /**
+     * The budget of one render
+     */
+    public class Execution {
+
+        private final Thread thread = Thread.currentThread();
+
+        private final Execution previous = CURRENT.get();
+
+        private final Writer writer;
+
+        private final ScheduledFuture<?> deadline;
+
+        private long iterations;
+
+        private boolean finished;
+
+        private boolean expired;
+
+        private boolean writing;
+
+        private Execution(Writer writer, Limits limits) {
+            Writer timedWriter = (limits.getMaxTime() > 0) ? new DeferredInterruptWriter(writer) : writer;
+            this.writer = (limits.getMaxOutputChars() > 0)
+                    ? new SizeLimitedWriter(timedWriter, limits.getMaxOutputChars(), () -> exceeded(outputExceeded, "FMR18"))
+                    : timedWriter;
+            deadline = (limits.getMaxTime() > 0)
+                    ? watchdog.schedule(this::expire, limits.getMaxTime(), TimeUnit.MILLISECONDS)
+                    : null;
+            CURRENT.set(this);
+        }
+
+        /**
+         * The writer that limits the size of the rendered document
+         *
+         * @return The writer
+         */
+        public Writer getWriter() {
+            return writer;
+        }
+
+        /**
+         * Ends the budget of the render.
+         *
+         * @throws BusinessLogicException If the render ran out of time
+         */
+        public void finish() {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            boolean interrupted;
+            synchronized (this) {
+                finished = true;
+                interrupted = expired;
+            }
+            if (interrupted) {
+                // Clear the interrupt of the watchdog, the thread is reused
+                Thread.interrupted();
+                throw exceeded(timeExceeded, "FMR17");
+            }
+        }
+
+        private void countIteration() {
+            iterations++;
+            if ((maxLoopIterations > 0) && (iterations > maxLoopIterations)) {
+                throw exceeded(iterationsExceeded, "FMR19");
+            }
+        }
+
+        private synchronized void expire() {
+            if (!finished) {
+                expired = true;
+                if (!writing) {
+                    thread.interrupt();
+                }
+            }
+        }
+
+        private synchronized void startWrite() {
+            writing = true;
+        }
+
+        private synchronized void endWrite() {
+            writing = false;
+            if (expired && !finished) {
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * Defers the interrupt of the watchdog until a write to the writer of
+         * the render returns, so that the interrupt does not break the output
+         * stream the writer writes to
+         */
+        private class DeferredInterruptWriter extends FilterWriter {
+
+            private DeferredInterruptWriter(Writer out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int c) throws IOException {
+                startWrite();
+                try {
+                    out.write(c);
+                } finally {
+                    endWrite();
+                }
+            }
+
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                startWrite();
+                try {
+                    out.write(cbuf, off, len);
+                } finally {
+                    endWrite();
+                }
+            }
+
+            @Override
+            public void write(String str, int off, int len) throws IOException {
+                startWrite();
+                try {
+                    out.write(str, off, len);
+                } finally {
+                    endWrite();
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                startWrite();
+                try {
+                    out.flush();
+                } finally {
+                    endWrite();
+                }
+            }
+        }
+    }
+}
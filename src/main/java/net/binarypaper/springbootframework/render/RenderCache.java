@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * A cache of rendered documents.
+ * <p>
+ * A document is cached by the template name, the last modified time of the
+ * template, the content type of the input data and the SHA-256 hash of the
+ * input data, so a changed template or changed data is never served from the
+ * cache. The cache is bounded by the total number of bytes and the number of
+ * documents and evicts the least recently used documents first. Cached
+ * documents expire after render.cache.ttl seconds.
+ * <p>
+ * The cache is disabled unless render.cache.enabled is true.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@Component
+public class RenderCache {
+
+    @Value("${render.cache.enabled:false}")
+    private boolean enabled;
+
+    @Value("${render.cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    @Value("${render.cache.max-entries:10000}")
+    private int maxEntries;
+
+    @Value("${render.cache.max-entry-bytes:1048576}")
+    private int maxEntryBytes;
+
+    @Value("${render.cache.ttl:300}")
+    private long ttl;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final LinkedHashMap<String, CachedDocument> documents = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+
+    private Counter hits;
+
+    private Counter misses;
+
+    private Counter evictions;
+
+    @PostConstruct
+    public void registerMetrics() {
+        hits = Counter.builder("render.cache.hits")
+                .description("The number of documents served from the render cache")
+                .register(meterRegistry);
+        misses = Counter.builder("render.cache.misses")
+                .description("The number of documents not found in the render cache")
+                .register(meterRegistry);
+        evictions = Counter.builder("render.cache.evictions")
+                .description("The number of documents evicted from the render cache")
+                .register(meterRegistry);
+        Gauge.builder("render.cache.bytes", this, RenderCache::getBytes)
+                .description("The number of bytes of the documents in the render cache")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * Checks if a Cache-Control request header asks not to use a cached
+     * document.
+     *
+     * @param cacheControl The Cache-Control request header
+     * @return True if the cache must not be read
+     */
+    public static boolean isNoCache(String cacheControl) {
+        return (cacheControl != null) && cacheControl.toLowerCase().contains("no-cache");
+    }
+
+    /**
+     * Checks if a Cache-Control request header asks not to store the
+     * document.
+     *
+     * @param cacheControl The Cache-Control request header
+     * @return True if the document must not be stored in the cache
+     */
+    public static boolean isNoStore(String cacheControl) {
+        return (cacheControl != null) && cacheControl.toLowerCase().contains("no-store");
+    }
+
+    /**
+     * Creates the cache key of a render request.
+     *
+     * @param templateName The name of the template file
+     * @param templateLastModified The last modified time of the template
+     * @param contentType The content type of the input data
+     * @param data The input data
+     * @return The cache key
+     */
+    public String getKey(String templateName, long templateLastModified, String contentType, String data) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = messageDigest.digest(data.getBytes(StandardCharsets.UTF_8));
+            return templateName + '\n' + templateLastModified + '\n' + contentType.toLowerCase() + '\n'
+                    + Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform supports SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Gets a cached document.
+     *
+     * @param key The cache key
+     * @return The rendered document or null if the document is not cached
+     */
+    public synchronized byte[] get(String key) {
+        CachedDocument cachedDocument = documents.get(key);
+        if ((cachedDocument != null) && (cachedDocument.expires < System.currentTimeMillis())) {
+            remove(key);
+            cachedDocument = null;
+        }
+        if (cachedDocument == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return cachedDocument.document;
+    }
+
+    /**
+     * Adds a rendered document to the cache. Documents larger than
+     * render.cache.max-entry-bytes are not cached.
+     *
+     * @param key The cache key
+     * @param document The rendered document
+     */
+    public synchronized void put(String key, byte[] document) {
+        if (document.length > maxEntryBytes) {
+            return;
+        }
+        remove(key);
+        documents.put(key, new CachedDocument(document, System.currentTimeMillis() + ttl * 1000));
+        bytes += document.length;
+        // Evict the least recently used documents
+        Iterator<CachedDocument> iterator = documents.values().iterator();
+        while (((bytes > maxBytes) || (documents.size() > maxEntries)) && iterator.hasNext()) {
+            bytes -= iterator.next().document.length;
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Removes all the documents from the cache.
+     */
+    public synchronized void clear() {
+        documents.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getSize() {
+        return documents.size();
+    }
+
+    /**
+     * Gets the number of documents in the cache and their size.
+     *
+     * @return The cache statistics
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", enabled);
+        statistics.put("size", getSize());
+        statistics.put("bytes", getBytes());
+        statistics.put("hits", (long) hits.count());
+        statistics.put("misses", (long) misses.count());
+        statistics.put("evictions", (long) evictions.count());
+        return statistics;
+    }
+
+    private void remove(String key) {
+        CachedDocument cachedDocument = documents.remove(key);
+        if (cachedDocument != null) {
+            bytes -= cachedDocument.document.length;
+        }
+    }
+
+    private static class CachedDocument {
+
+        private final byte[] document;
+
+        private final long expires;
+
+        private CachedDocument(byte[] document, long expires) {
+            this.document = document;
+            this.expires = expires;
+        }
+    }
+}
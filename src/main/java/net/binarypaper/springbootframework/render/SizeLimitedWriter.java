@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.function.Supplier;
+
+/**
+ * A writer that fails when more than a maximum number of characters are
+ * written to another writer.
+ * <p>
+ * It is used to stop a render that produces a document larger than the render
+ * budget before the document is written.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public class SizeLimitedWriter extends FilterWriter {
+
+    private final long maxChars;
+
+    private final Supplier<RuntimeException> exceeded;
+
+    private long chars;
+
+    /**
+     * Creates a size limited writer.
+     *
+     * @param out The writer to write to
+     * @param maxChars The maximum number of characters
+     * @param exceeded Creates the exception thrown when the maximum number of
+     * characters would be exceeded
+     */
+    public SizeLimitedWriter(Writer out, long maxChars, Supplier<RuntimeException> exceeded) {
+        super(out);
+        this.maxChars = maxChars;
+        this.exceeded = exceeded;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        count(1);
+        out.write(c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        count(len);
+        out.write(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        count(len);
+        out.write(str, off, len);
+    }
+
+    private void count(int len) {
+        chars += len;
+        if (chars > maxChars) {
+            throw exceeded.get();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * An output stream that keeps the written bytes in memory up to a threshold
+ * and moves them to a temporary file when more bytes are written.
+ * <p>
+ * It is used to store rendered documents of any size without keeping large
+ * documents in memory. The caller is responsible for deleting the temporary
+ * file.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public class SpillingOutputStream extends OutputStream {
+
+    private final int threshold;
+
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+    private Path file;
+
+    private OutputStream fileOutputStream;
+
+    private long size;
+
+    public SpillingOutputStream(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if ((memory != null) && (memory.size() + len > threshold)) {
+            spill();
+        }
+        if (memory != null) {
+            memory.write(b, off, len);
+        } else {
+            fileOutputStream.write(b, off, len);
+        }
+        size += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileOutputStream != null) {
+            fileOutputStream.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileOutputStream != null) {
+            fileOutputStream.close();
+        }
+    }
+
+    /**
+     * The bytes written to the output stream
+     *
+     * @return The written bytes or null if the bytes were moved to a temporary
+     * file
+     */
+    public byte[] getBytes() {
+        return (memory == null) ? null : memory.toByteArray();
+    }
+
+    /**
+     * The temporary file with the written bytes
+     *
+     * @return The temporary file or null if the bytes are kept in memory
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * The number of bytes written to the output stream
+     *
+     * @return The number of written bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    private void spill() throws IOException {
+        file = Files.createTempFile("render-", ".tmp");
+        fileOutputStream = new BufferedOutputStream(Files.newOutputStream(file));
+        memory.writeTo(fileOutputStream);
+        memory = null;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import freemarker.template.Configuration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * An actuator endpoint with the statistics of the template cache of the
+ * FreeMarker render configuration and of the render cache.
+ * <p>
+ * A write operation on the endpoint parses all the templates into the template
+ * cache again, for example after the templates were changed, and clears the
+ * render cache.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@Component
+@Endpoint(id = "templatecache")
+public class TemplateCacheEndpoint {
+
+    @Autowired
+    private TemplateCacheStorage renderTemplateCacheStorage;
+
+    @Autowired
+    private TemplateWarmer templateWarmer;
+
+    @Autowired
+    private RenderCache renderCache;
+
+    @Autowired
+    @Qualifier("renderConfiguration")
+    private Configuration renderConfiguration;
+
+    @ReadOperation
+    public Map<String, Object> templateCache() {
+        long hits = renderTemplateCacheStorage.getHits();
+        long misses = renderTemplateCacheStorage.getMisses();
+        Map<String, Object> templateCache = new LinkedHashMap<>();
+        templateCache.put("hits", hits);
+        templateCache.put("misses", misses);
+        templateCache.put("hitRatio", (hits + misses == 0) ? 0.0 : (double) hits / (hits + misses));
+        templateCache.put("size", renderTemplateCacheStorage.getSize());
+        templateCache.put("strongSize", renderTemplateCacheStorage.getStrongSize());
+        templateCache.put("strongSizeLimit", renderTemplateCacheStorage.getStrongSizeLimit());
+        templateCache.put("softSize", renderTemplateCacheStorage.getSoftSize());
+        templateCache.put("softSizeLimit", renderTemplateCacheStorage.getSoftSizeLimit());
+        templateCache.put("templateUpdateDelay", renderConfiguration.getTemplateUpdateDelayMilliseconds());
+        templateCache.put("renderCache", renderCache.getStatistics());
+        return templateCache;
+    }
+
+    @WriteOperation
+    public Map<String, Object> warmUp() {
+        renderCache.clear();
+        return templateWarmer.warmUp();
+    }
+}
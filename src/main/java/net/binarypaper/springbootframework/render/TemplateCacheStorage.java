@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import freemarker.cache.CacheStorageWithGetSize;
+import freemarker.cache.MruCacheStorage;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A FreeMarker template cache storage that keeps the most recently used
+ * templates in a MruCacheStorage and counts the cache hits and misses.
+ * <p>
+ * The strong size is the number of most recently used templates that are
+ * never removed from the cache, and the soft size is the number of less
+ * recently used templates that may be removed by the garbage collector when
+ * memory runs low.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public class TemplateCacheStorage implements CacheStorageWithGetSize {
+
+    private final MruCacheStorage storage;
+
+    private final int strongSizeLimit;
+
+    private final int softSizeLimit;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    public TemplateCacheStorage(int strongSizeLimit, int softSizeLimit) {
+        this.storage = new MruCacheStorage(strongSizeLimit, softSizeLimit);
+        this.strongSizeLimit = strongSizeLimit;
+        this.softSizeLimit = softSizeLimit;
+    }
+
+    @Override
+    public Object get(Object key) {
+        Object value = storage.get(key);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        storage.put(key, value);
+    }
+
+    @Override
+    public void remove(Object key) {
+        storage.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        storage.clear();
+    }
+
+    // The FreeMarker TemplateCache calls the other methods while holding the
+    // lock of this storage, so the sizes read for the metrics take it as well
+    @Override
+    public synchronized int getSize() {
+        return storage.getSize();
+    }
+
+    public synchronized int getStrongSize() {
+        return storage.getStrongSize();
+    }
+
+    public synchronized int getSoftSize() {
+        return storage.getSoftSize();
+    }
+
+    public int getStrongSizeLimit() {
+        return strongSizeLimit;
+    }
+
+    public int getSoftSizeLimit() {
+        return softSizeLimit;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
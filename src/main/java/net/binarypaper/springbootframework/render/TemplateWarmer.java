@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import freemarker.template.Configuration;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.servlet.ServletContext;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Parses all the templates in the /WEB-INF/email_templates folder into the
+ * template cache of the render configuration.
+ * <p>
+ * The templates are warmed up when the application starts, before the web
+ * server accepts requests, so that the first render of a template does not
+ * have to load and parse it. When render.template-warm-up.fail-fast is true
+ * the application does not start if a template can not be parsed.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@Component
+// Lombok annotations
+@Log
+public class TemplateWarmer implements SmartInitializingSingleton {
+
+    @Autowired
+    private ServletContext servletContext;
+
+    @Autowired
+    @Qualifier("renderConfiguration")
+    private Configuration renderConfiguration;
+
+    @Value("${render.template-warm-up.enabled:true}")
+    private boolean enabled;
+
+    @Value("${render.template-warm-up.fail-fast:false}")
+    private boolean failFast;
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (!enabled) {
+            return;
+        }
+        Map<String, Object> result = warmUp();
+        @SuppressWarnings("unchecked")
+        Map<String, String> failed = (Map<String, String>) result.get("failed");
+        if (!failed.isEmpty() && failFast) {
+            throw new IllegalStateException("The templates " + failed.keySet() + " could not be parsed");
+        }
+    }
+
+    /**
+     * Clears the template cache and parses all the templates in the template
+     * folder into the cache.
+     *
+     * @return The names of the templates that were parsed and the error
+     * messages of the templates that could not be parsed
+     */
+    public Map<String, Object> warmUp() {
+        long start = System.currentTimeMillis();
+        renderConfiguration.clearTemplateCache();
+        List<String> parsed = new ArrayList<>();
+        Map<String, String> failed = new LinkedHashMap<>();
+        for (String templateName : getTemplateNames()) {
+            try {
+                renderConfiguration.getTemplate(templateName);
+                parsed.add(templateName);
+            } catch (IOException ex) {
+                // Parse exceptions are IO exceptions in FreeMarker
+                failed.put(templateName, ex.getMessage());
+                log.warning("The template " + templateName + " could not be parsed: " + ex.getMessage());
+            }
+        }
+        long duration = System.currentTimeMillis() - start;
+        log.info("Parsed " + parsed.size() + " templates in " + duration + " ms, " + failed.size() + " templates failed");
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("parsed", parsed);
+        result.put("failed", failed);
+        result.put("duration", duration);
+        return result;
+    }
+
+    private Set<String> getTemplateNames() {
+        Set<String> templateNames = new TreeSet<>();
+        addTemplateNames(FreeMarkerConfig.TEMPLATE_FOLDER + "/", templateNames);
+        return templateNames;
+    }
+
+    private void addTemplateNames(String path, Set<String> templateNames) {
+        Set<String> resourcePaths = servletContext.getResourcePaths(path);
+        if (resourcePaths == null) {
+            return;
+        }
+        for (String resourcePath : resourcePaths) {
+            if (resourcePath.endsWith("/")) {
+                addTemplateNames(resourcePath, templateNames);
+            } else {
+                templateNames.add(resourcePath.substring(FreeMarkerConfig.TEMPLATE_FOLDER.length() + 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import freemarker.ext.dom.NodeModel;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * A bounded pool of DocumentBuilders to parse the XML render data.
+ * <p>
+ * The DocumentBuilderFactory is created once and does not allow DOCTYPE
+ * declarations, external entities or XInclude, so that the input data can not
+ * read files or URLs on the server (XXE). A DocumentBuilder is reset and
+ * returned to the pool after use. When the pool is empty a new DocumentBuilder
+ * is created and when the pool is full a returned DocumentBuilder is
+ * discarded.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public class XmlDocumentBuilderPool {
+
+    private final DocumentBuilderFactory documentBuilderFactory;
+
+    private final BlockingQueue<DocumentBuilder> documentBuilders;
+
+    public XmlDocumentBuilderPool(int size) throws ParserConfigurationException {
+        documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        // The same settings as FreeMarker's NodeModel.parse
+        documentBuilderFactory.setNamespaceAware(true);
+        documentBuilderFactory.setIgnoringComments(true);
+        // Disable DOCTYPE declarations and external entities
+        documentBuilderFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        documentBuilderFactory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        documentBuilderFactory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+        documentBuilderFactory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+        documentBuilderFactory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        documentBuilderFactory.setXIncludeAware(false);
+        documentBuilderFactory.setExpandEntityReferences(false);
+        documentBuilders = new ArrayBlockingQueue<>(size);
+    }
+
+    /**
+     * Parses XML data into a FreeMarker node model.
+     * <p>
+     * Like NodeModel.parse, comments and processing instructions are removed
+     * and adjacent text nodes are merged.
+     *
+     * @param data The XML data
+     * @return The node model of the XML document
+     * @throws SAXException If the XML data is invalid
+     * @throws IOException If the XML data can not be read
+     * @throws ParserConfigurationException If a DocumentBuilder can not be
+     * created
+     */
+    public NodeModel parse(String data) throws SAXException, IOException, ParserConfigurationException {
+        DocumentBuilder documentBuilder = documentBuilders.poll();
+        if (documentBuilder == null) {
+            documentBuilder = documentBuilderFactory.newDocumentBuilder();
+        }
+        try {
+            Document document = documentBuilder.parse(new InputSource(new StringReader(data)));
+            NodeModel.simplify(document);
+            return NodeModel.wrap(document);
+        } finally {
+            documentBuilder.reset();
+            documentBuilders.offer(documentBuilder);
+        }
+    }
+
+    /**
+     * The number of idle DocumentBuilders in the pool
+     *
+     * @return The number of idle DocumentBuilders
+     */
+    public int getIdleCount() {
+        return documentBuilders.size();
+    }
+}
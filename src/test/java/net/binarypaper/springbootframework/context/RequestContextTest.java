@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.context;
+
+import java.security.Principal;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Unit tests for the RequestContext class.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public class RequestContextTest {
+
+    private final Principal alice = () -> "alice";
+
+    private final Principal bob = () -> "bob";
+
+    //<editor-fold defaultstate="collapsed" desc="Test Cleanup">
+    @After
+    public void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Scope Tests">
+    @Test
+    public void noScope() {
+        Assert.assertNull(RequestContext.current());
+        Assert.assertNull(RequestContext.currentPrincipal());
+    }
+
+    @Test
+    public void nestedScopes() {
+        try (RequestContext.Scope outer = RequestContext.open(alice)) {
+            try (RequestContext.Scope inner = RequestContext.open("bob")) {
+                Assert.assertEquals("bob", RequestContext.currentPrincipal().getName());
+            }
+            Assert.assertEquals("alice", RequestContext.currentPrincipal().getName());
+        }
+        Assert.assertNull(RequestContext.current());
+    }
+
+    @Test
+    public void wrap() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Callable<String> task;
+            try (RequestContext.Scope scope = RequestContext.open(alice)) {
+                task = RequestContext.wrap(() -> RequestContext.currentPrincipal().getName());
+            }
+            Assert.assertEquals("alice", executor.submit(task).get());
+            // The pooled thread does not keep the request context of the task
+            Assert.assertNull(executor.submit(() -> RequestContext.current()).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Transaction Tests">
+    @Test
+    public void openForTransaction() {
+        TransactionSynchronizationManager.initSynchronization();
+        try (RequestContext.Scope scope = RequestContext.open(alice)) {
+            RequestContext.openForTransaction(bob);
+            Assert.assertEquals("bob", RequestContext.currentPrincipal().getName());
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+            }
+            Assert.assertEquals("alice", RequestContext.currentPrincipal().getName());
+        }
+    }
+
+    @Test
+    public void openForTransactionWithTwoPrincipals() {
+        TransactionSynchronizationManager.initSynchronization();
+        try (RequestContext.Scope scope = RequestContext.open(alice)) {
+            RequestContext.openForTransaction(bob);
+            try (RequestContext.Scope inner = RequestContext.open("carol")) {
+                // The transaction is already open for bob
+                RequestContext.openForTransaction(bob);
+                try {
+                    RequestContext.openForTransaction(alice);
+                    Assert.fail("A transaction can only be opened for one user principal");
+                } catch (IllegalStateException ex) {
+                    Assert.assertEquals("carol", RequestContext.currentPrincipal().getName());
+                }
+            }
+            Assert.assertEquals(1, TransactionSynchronizationManager.getSynchronizations().size());
+            Assert.assertEquals("bob", RequestContext.currentPrincipal().getName());
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+            }
+            Assert.assertEquals("alice", RequestContext.currentPrincipal().getName());
+        }
+        Assert.assertNull(RequestContext.current());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void openForTransactionWithoutPrincipal() {
+        TransactionSynchronizationManager.initSynchronization();
+        RequestContext.openForTransaction(null);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void openForTransactionWithoutTransaction() {
+        RequestContext.openForTransaction(alice);
+    }
+    //</editor-fold>
+}
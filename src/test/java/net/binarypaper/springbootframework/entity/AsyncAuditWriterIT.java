@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import net.binarypaper.springbootframework.context.RequestContext;
+import net.binarypaper.springbootframework.lookup.LookupValue;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Integration test for the asynchronous audit mode.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@RunWith(SpringRunner.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+@SpringBootTest(properties = {
+    "spring.datasource.url=jdbc:derby:memory:async_audit;create=true",
+    "audit.mode=async",
+    "audit.async.batch-size=1",
+    "audit.async.poll-interval=3600000"
+})
+@TestPropertySource(locations = "/application-test.properties")
+public class AsyncAuditWriterIT {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private AsyncAuditWriter asyncAuditWriter;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private static Long LOOKUP_VALUE_ID;
+
+    @Test
+    public void test01() throws Exception {
+        // Add a lookup value and change it twice in separate transactions
+        LookupValue lookupValue = new LookupValue();
+        lookupValue.setLookupListName("async-audit");
+        lookupValue.setDisplayValue("Diesel");
+        lookupValue.setActive(Boolean.TRUE);
+        inTransaction(entityManager -> entityManager.persist(lookupValue));
+        LOOKUP_VALUE_ID = lookupValue.getId();
+        inTransaction(entityManager -> entityManager.find(LookupValue.class, LOOKUP_VALUE_ID).setDisplayValue("Diesel 50ppm"));
+        inTransaction(entityManager -> entityManager.find(LookupValue.class, LOOKUP_VALUE_ID).setActive(Boolean.FALSE));
+        // The audit records are only in the outbox until the writer runs
+        Assert.assertEquals(3, countOutboxEntries());
+        Assert.assertTrue(getAuditRows().isEmpty());
+    }
+
+    @Test
+    public void test02() throws Exception {
+        // Write the outbox entries, one per batch, to the audit tables
+        asyncAuditWriter.writeAuditRecords();
+        Assert.assertEquals(0, countOutboxEntries());
+        List<Map<String, Object>> auditRows = getAuditRows();
+        Assert.assertEquals(3, auditRows.size());
+        // The revisions are written in the order of the changes and each
+        // revision ends the previous revision of the lookup value
+        Assert.assertEquals(0, ((Number) auditRows.get(0).get("REVTYPE")).intValue());
+        Assert.assertEquals("Diesel", auditRows.get(0).get("DISPLAY_VALUE"));
+        Assert.assertEquals(1, ((Number) auditRows.get(1).get("REVTYPE")).intValue());
+        Assert.assertEquals("Diesel 50ppm", auditRows.get(1).get("DISPLAY_VALUE"));
+        Assert.assertEquals(1, ((Number) auditRows.get(2).get("REVTYPE")).intValue());
+        Assert.assertEquals(auditRows.get(1).get("REV"), auditRows.get(0).get("REVEND"));
+        Assert.assertEquals(auditRows.get(2).get("REV"), auditRows.get(1).get("REVEND"));
+        Assert.assertNull(auditRows.get(2).get("REVEND"));
+        for (Map<String, Object> auditRow : auditRows) {
+            Assert.assertEquals("test", jdbcTemplate.queryForObject(
+                    "SELECT USER_NAME FROM AUDIT_REVISION WHERE REV = ?", String.class, auditRow.get("REV")));
+        }
+    }
+
+    @Test
+    public void test03() throws Exception {
+        // A rolled back transaction leaves no audit records in the outbox
+        try {
+            inTransaction(entityManager -> {
+                entityManager.find(LookupValue.class, LOOKUP_VALUE_ID).setDisplayValue("Petrol");
+                entityManager.flush();
+                throw new IllegalStateException("Roll back");
+            });
+            Assert.fail("The transaction was not rolled back");
+        } catch (IllegalStateException ex) {
+            Assert.assertEquals("Roll back", ex.getMessage());
+        }
+        Assert.assertEquals(0, countOutboxEntries());
+        asyncAuditWriter.writeAuditRecords();
+        Assert.assertEquals(3, getAuditRows().size());
+    }
+
+    @Test
+    public void test04() throws Exception {
+        // An outbox entry that can not be read is moved to the error table and
+        // the entries after it are still written
+        jdbcTemplate.update("INSERT INTO AUDIT_OUTBOX (CREATED_TIMESTAMP, DATA) VALUES (?, ?)",
+                System.currentTimeMillis(), "not json");
+        inTransaction(entityManager -> entityManager.find(LookupValue.class, LOOKUP_VALUE_ID).setDisplayValue("Petrol"));
+        Assert.assertEquals(2, countOutboxEntries());
+        asyncAuditWriter.writeAuditRecords();
+        Assert.assertEquals(0, countOutboxEntries());
+        List<Map<String, Object>> errorRows = jdbcTemplate.queryForList("SELECT ERROR, DATA FROM AUDIT_OUTBOX_ERROR");
+        Assert.assertEquals(1, errorRows.size());
+        Assert.assertEquals("not json", errorRows.get(0).get("DATA"));
+        Assert.assertNotNull(errorRows.get(0).get("ERROR"));
+        Assert.assertEquals(1, meterRegistry.get("audit.async.errors").counter().count(), 0);
+        List<Map<String, Object>> auditRows = getAuditRows();
+        Assert.assertEquals(4, auditRows.size());
+        Assert.assertEquals("Petrol", auditRows.get(3).get("DISPLAY_VALUE"));
+    }
+
+    @SuppressWarnings("try")
+    private void inTransaction(Consumer<EntityManager> work) {
+        try (RequestContext.Scope scope = RequestContext.open("test")) {
+            new TransactionTemplate(transactionManager).execute(status -> {
+                work.accept(em);
+                return null;
+            });
+        }
+    }
+
+    private int countOutboxEntries() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM AUDIT_OUTBOX", Integer.class);
+    }
+
+    private List<Map<String, Object>> getAuditRows() {
+        return jdbcTemplate.queryForList("SELECT REV, REVTYPE, REVEND, DISPLAY_VALUE FROM LOOKUP_VALUE_AUD "
+                + "WHERE LOOKUP_VALUE_ID = ? ORDER BY REV", LOOKUP_VALUE_ID);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import net.binarypaper.springbootframework.context.RequestContext;
+import net.binarypaper.springbootframework.exception.BusinessLogicException;
+import net.binarypaper.springbootframework.lookup.LookupValue;
+import org.hibernate.envers.query.AuditEntity;
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Integration test for the AuditArchiver.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@RunWith(SpringRunner.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+@SpringBootTest(properties = {
+    "spring.datasource.url=jdbc:derby:memory:audit_archive;create=true",
+    "audit.archive.enabled=true"
+})
+@TestPropertySource(locations = "/application-test.properties")
+public class AuditArchiverIT {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private AuditArchiver auditArchiver;
+
+    private final AuditRevisionHelper<LookupValue> auditRevisionHelper = new AuditRevisionHelper<>(LookupValue.class);
+
+    private static Long LOOKUP_VALUE_ID;
+
+    private static Date HORIZON;
+
+    @Test
+    public void test01() throws Exception {
+        // Make four revisions of a lookup value before the horizon and one
+        // after it, then archive at the horizon
+        LookupValue lookupValue = new LookupValue();
+        lookupValue.setLookupListName("audit-archive");
+        lookupValue.setDisplayValue("V1");
+        lookupValue.setActive(Boolean.TRUE);
+        inTransaction(entityManager -> entityManager.persist(lookupValue));
+        LOOKUP_VALUE_ID = lookupValue.getId();
+        for (String displayValue : Arrays.asList("V2", "V3", "V4")) {
+            inTransaction(entityManager -> entityManager.find(LookupValue.class, LOOKUP_VALUE_ID).setDisplayValue(displayValue));
+        }
+        Thread.sleep(50);
+        HORIZON = new Date();
+        Thread.sleep(50);
+        inTransaction(entityManager -> entityManager.find(LookupValue.class, LOOKUP_VALUE_ID).setDisplayValue("V5"));
+        auditArchiver.archiveAuditRevisions(HORIZON);
+        // The three superseded revisions are archived and the revision before
+        // the horizon is kept
+        Assert.assertEquals(2, countRows("LOOKUP_VALUE_AUD"));
+        Assert.assertEquals(1, countRows("AUDIT_ARCHIVE"));
+        Assert.assertEquals(2, countRows("AUDIT_REVISION"));
+        Assert.assertEquals(3, jdbcTemplate.queryForObject("SELECT REVISION_COUNT FROM AUDIT_ARCHIVE", Integer.class).intValue());
+        Assert.assertEquals(2, getTableRows("lookup_value_aud"), 0);
+        Assert.assertEquals(1, getTableRows("audit_archive"), 0);
+        Assert.assertEquals(2, getTableRows("audit_revision"), 0);
+    }
+
+    @Test
+    public void test02() throws Exception {
+        // Get all the revisions of the lookup value, including the archived
+        // revisions
+        List<LookupValue> revisions = query(entityManager -> auditRevisionHelper.getAllAuditRevisions(entityManager, LOOKUP_VALUE_ID));
+        assertDisplayValues(revisions, "V1", "V2", "V3", "V4", "V5");
+        Assert.assertEquals("ADD", revisions.get(0).getRevision().getRevisionType());
+        Assert.assertEquals("test", revisions.get(0).getRevision().getUserName());
+    }
+
+    @Test
+    public void test03() throws Exception {
+        // Get the revisions of a set of lookup values, including the archived
+        // revisions
+        Map<Object, List<LookupValue>> revisionsById = query(entityManager
+                -> auditRevisionHelper.getAllAuditRevisions(entityManager, Arrays.asList(LOOKUP_VALUE_ID, 99999L)));
+        assertDisplayValues(revisionsById.get(LOOKUP_VALUE_ID), "V1", "V2", "V3", "V4", "V5");
+        Assert.assertTrue(revisionsById.get(99999L).isEmpty());
+    }
+
+    @Test
+    public void test04() throws Exception {
+        // Page through the revisions from the audit tables into the archive
+        List<LookupValue> firstPage = query(entityManager
+                -> auditRevisionHelper.getAuditRevisions(entityManager, LOOKUP_VALUE_ID, null, null, null, 3));
+        assertDisplayValues(firstPage, "V5", "V4", "V3");
+        Long beforeRev = firstPage.get(2).getRevision().getRev();
+        List<LookupValue> secondPage = query(entityManager
+                -> auditRevisionHelper.getAuditRevisions(entityManager, LOOKUP_VALUE_ID, beforeRev, null, null, 3));
+        assertDisplayValues(secondPage, "V2", "V1");
+        List<LookupValue> beforeHorizon = query(entityManager
+                -> auditRevisionHelper.getAuditRevisions(entityManager, LOOKUP_VALUE_ID, null, null, HORIZON, null));
+        assertDisplayValues(beforeHorizon, "V4", "V3", "V2", "V1");
+    }
+
+    @Test
+    public void test05() throws Exception {
+        // Get the changes of the revisions, including the archived revisions
+        List<AuditRevision> changes = query(entityManager
+                -> auditRevisionHelper.getAuditRevisionChanges(entityManager, LOOKUP_VALUE_ID, null, null, null, null));
+        Assert.assertEquals(5, changes.size());
+        Assert.assertEquals("ADD", changes.get(4).getRevisionType());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals("MOD", changes.get(i).getRevisionType());
+            Assert.assertEquals(1, changes.get(i).getChanges().size());
+            Assert.assertEquals("V" + (5 - i), changes.get(i).getChanges().get("displayValue"));
+        }
+        // The oldest revision of a page in the audit tables is compared to
+        // the newest archived revision
+        List<AuditRevision> page = query(entityManager
+                -> auditRevisionHelper.getAuditRevisionChanges(entityManager, LOOKUP_VALUE_ID, null, null, null, 2));
+        Assert.assertEquals(2, page.size());
+        Assert.assertEquals(1, page.get(1).getChanges().size());
+        Assert.assertEquals("V4", page.get(1).getChanges().get("displayValue"));
+    }
+
+    @Test
+    public void test06() throws Exception {
+        // Get the lookup values as they were after and before the horizon
+        List<LookupValue> lookupValues = query(entityManager -> auditRevisionHelper.getEntitiesAtDate(entityManager, HORIZON,
+                AuditEntity.property("displayValue").asc(), AuditEntity.property("lookupListName").eq("audit-archive")));
+        assertDisplayValues(lookupValues, "V4");
+        try {
+            query(entityManager -> auditRevisionHelper.getEntitiesAtDate(entityManager, new Date(HORIZON.getTime() - 1),
+                    AuditEntity.property("displayValue").asc(), AuditEntity.property("lookupListName").eq("audit-archive")));
+            Assert.fail("The archived revisions were queried");
+        } catch (BusinessLogicException ex) {
+            Assert.assertEquals("F003", ex.getErrorCode());
+        }
+    }
+
+    private void inTransaction(Consumer<EntityManager> work) {
+        query(entityManager -> {
+            work.accept(entityManager);
+            return null;
+        });
+    }
+
+    @SuppressWarnings("try")
+    private <R> R query(Function<EntityManager, R> work) {
+        try (RequestContext.Scope scope = RequestContext.open("test")) {
+            return new TransactionTemplate(transactionManager).execute(status -> work.apply(em));
+        }
+    }
+
+    private int countRows(String table) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + table, Integer.class);
+    }
+
+    private double getTableRows(String table) {
+        return meterRegistry.find("audit.table.rows").tag("table", table).gauge().value();
+    }
+
+    private static void assertDisplayValues(List<LookupValue> lookupValues, String... displayValues) {
+        Assert.assertEquals(displayValues.length, lookupValues.size());
+        for (int i = 0; i < displayValues.length; i++) {
+            Assert.assertEquals(displayValues[i], lookupValues.get(i).getDisplayValue());
+        }
+    }
+}
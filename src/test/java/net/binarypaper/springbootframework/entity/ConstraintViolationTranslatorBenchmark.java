@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.PersistenceException;
+import org.hibernate.exception.ConstraintViolationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Microbenchmark of the constraint violation error path.
+ * <p>
+ * Compares the ConstraintViolationTranslator to scanning the message of every
+ * exception in the cause chain for every constraint name. Run the main method
+ * from the test classpath.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConstraintViolationTranslatorBenchmark {
+
+    private Map<String, String> constraintErrorCodes;
+    private ConstraintViolationTranslator translator;
+    private PersistenceException duplicateKey;
+    private PersistenceException otherFailure;
+
+    @Setup
+    public void setUp() {
+        constraintErrorCodes = new HashMap<>();
+        constraintErrorCodes.put("UC_LOOKUP_LIST_VALUE", "0004");
+        constraintErrorCodes.put("FK_LOOKUP_VALUE_PARENT", "0008");
+        translator = new ConstraintViolationTranslator(constraintErrorCodes);
+        // The exception chain thrown by Hibernate for a Derby duplicate key
+        SQLException sqlException = new SQLException("The statement was aborted because it would have caused a duplicate key value in a unique or primary key constraint or unique index identified by 'UC_LOOKUP_LIST_VALUE' defined on 'LOOKUP_VALUE'.", "23505");
+        duplicateKey = new PersistenceException("org.hibernate.exception.ConstraintViolationException: could not execute statement",
+                new ConstraintViolationException("could not execute statement", sqlException, null));
+        otherFailure = new PersistenceException("org.hibernate.exception.SQLGrammarException: could not execute statement",
+                new SQLException("Table/View 'LOOKUP_VALUE' does not exist.", "42X05"));
+    }
+
+    @Benchmark
+    public String translateDuplicateKey() {
+        return translator.translate(duplicateKey);
+    }
+
+    @Benchmark
+    public String translateOtherFailure() {
+        return translator.translate(otherFailure);
+    }
+
+    @Benchmark
+    public String scanDuplicateKey() {
+        return scan(duplicateKey);
+    }
+
+    @Benchmark
+    public String scanOtherFailure() {
+        return scan(otherFailure);
+    }
+
+    private String scan(Throwable exception) {
+        for (Throwable t = exception; t != null; t = t.getCause()) {
+            for (Map.Entry<String, String> constraintErrorCode : constraintErrorCodes.entrySet()) {
+                if (t.getMessage().contains(constraintErrorCode.getKey())) {
+                    return constraintErrorCode.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ConstraintViolationTranslatorBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
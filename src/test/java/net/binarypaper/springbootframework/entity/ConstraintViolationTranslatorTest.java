@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.entity;
+
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import javax.persistence.PersistenceException;
+import org.hibernate.exception.ConstraintViolationException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the ConstraintViolationTranslator class.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public class ConstraintViolationTranslatorTest {
+
+    private ConstraintViolationTranslator translator;
+
+    //<editor-fold defaultstate="collapsed" desc="Test Initialization">
+    @Before
+    public void setUp() {
+        Map<String, String> constraintErrorCodes = new HashMap<>();
+        constraintErrorCodes.put("UC_LOOKUP_LIST_VALUE", "0004");
+        constraintErrorCodes.put("FK_LOOKUP_VALUE_PARENT", "0008");
+        translator = new ConstraintViolationTranslator(constraintErrorCodes);
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Translation Tests">
+    @Test
+    public void constraintName() {
+        SQLException sqlException = new SQLException("Duplicate key", "23505");
+        PersistenceException ex = new PersistenceException(new ConstraintViolationException("could not execute statement", sqlException, "PUBLIC.uc_lookup_list_value"));
+        Assert.assertEquals("0004", translator.translate(ex));
+    }
+
+    @Test
+    public void sqlStateMessage() {
+        SQLException sqlException = new SQLException("DELETE on table 'LOOKUP_VALUE' caused a violation of foreign key constraint 'FK_LOOKUP_VALUE_PARENT' for key (1).", "23503");
+        PersistenceException ex = new PersistenceException(new ConstraintViolationException("could not execute statement", sqlException, null));
+        Assert.assertEquals("0008", translator.translate(ex));
+    }
+
+    @Test
+    public void nextException() {
+        BatchUpdateException batchUpdateException = new BatchUpdateException("Batch entry 0 failed", "XJ208", new int[0]);
+        batchUpdateException.setNextException(new SQLException("The statement was aborted because it would have caused a duplicate key value in a unique or primary key constraint or unique index identified by 'UC_LOOKUP_LIST_VALUE' defined on 'LOOKUP_VALUE'.", "23505"));
+        PersistenceException ex = new PersistenceException(batchUpdateException);
+        Assert.assertEquals("0004", translator.translate(ex));
+    }
+
+    @Test
+    public void nullMessages() {
+        PersistenceException ex = new PersistenceException((String) null, new SQLException(null, "23505"));
+        Assert.assertNull(translator.translate(ex));
+    }
+
+    @Test
+    public void otherSqlState() {
+        PersistenceException ex = new PersistenceException(new SQLException("Table 'UC_LOOKUP_LIST_VALUE' does not exist.", "42X05"));
+        Assert.assertNull(translator.translate(ex));
+    }
+
+    @Test
+    public void partialConstraintName() {
+        PersistenceException ex = new PersistenceException(new SQLException("Violation of constraint 'UC_LOOKUP_LIST_VALUE_2'.", "23505"));
+        Assert.assertNull(translator.translate(ex));
+    }
+
+    @Test
+    public void unknownConstraint() {
+        PersistenceException ex = new PersistenceException(new SQLException("Violation of constraint 'UC_OTHER'.", "23505"));
+        Assert.assertNull(translator.translate(ex));
+    }
+    //</editor-fold>
+}
@@ -17,6 +17,7 @@ package net.binarypaper.springbootframework.lookup;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.File;
+import java.time.Instant;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
@@ -32,6 +33,7 @@ import org.junit.runners.MethodSorters;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
@@ -1151,7 +1153,7 @@ public class LookupValueControllerIT {
         String jsonResponse = mvc.perform(
                 MockMvcRequestBuilders
                         .fileUpload("/lookup-values/csv-upload")
-                        .file("file", FileUtils.readFileToByteArray(csvFile))
+                        .file(new MockMultipartFile("file", csvFile.getName(), "text/csv", FileUtils.readFileToByteArray(csvFile)))
                         .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
         )
                 .andExpect(MockMvcResultMatchers.status().isOk())
@@ -1162,6 +1164,27 @@ public class LookupValueControllerIT {
                 .forType(objectMapper.getTypeFactory().constructCollectionType(List.class, LookupValue.class))
                 .readValue(jsonResponse);
         Assert.assertEquals(12, lookupValues.size());
+        // The upload is a single revision tagged with the file name and the
+        // number of rows
+        jsonResponse = mvc.perform(
+                MockMvcRequestBuilders
+                        .get("/lookup-values/" + lookupValues.get(0).getId() + "/revisions")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MediaType.APPLICATION_JSON)
+        )
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        List<LookupValue> revisions = objectMapper.readerWithView(AuditRevision.class)
+                .forType(objectMapper.getTypeFactory().constructCollectionType(List.class, LookupValue.class))
+                .readValue(jsonResponse);
+        Assert.assertEquals(1, revisions.size());
+        AuditRevision auditRevision = revisions.get(0).getRevision();
+        Assert.assertEquals("ADD", auditRevision.getRevisionType());
+        Assert.assertEquals("CSV_UPLOAD", auditRevision.getOperation());
+        Assert.assertEquals("CsvUploadValid.csv", auditRevision.getDetails());
+        Assert.assertEquals(Integer.valueOf(12), auditRevision.getItemCount());
     }
 
     @Test
@@ -1230,6 +1253,7 @@ public class LookupValueControllerIT {
         BusinessLogicError businessLogicError = objectMapper.readValue(jsonResponse, BusinessLogicError.class);
         Assert.assertEquals("0011", businessLogicError.getErrorCode());
         Assert.assertEquals("At least one of the lookup values in the CSV file already exists", businessLogicError.getMessage());
+        Assert.assertEquals(Integer.valueOf(0), businessLogicError.getItemIndex());
     }
 
     @Test
@@ -1329,6 +1353,191 @@ public class LookupValueControllerIT {
         Assert.assertEquals(1, fieldErrors.size());
         Assert.assertEquals("lookupListName", fieldErrors.get(0).getField());
         Assert.assertEquals("The lookup list name must be between 3 and 100 characters long", fieldErrors.get(0).getMessage());
+        Assert.assertEquals(Integer.valueOf(0), businessLogicError.getItemIndex());
+    }
+
+    @Test
+    public void test53() throws Exception {
+        // Upload a CSV file containing the same lookup value twice
+        File csvFile = new File("src/test/resources/CsvUploadDuplicate.csv");
+        String jsonResponse = mvc.perform(
+                MockMvcRequestBuilders
+                        .fileUpload("/lookup-values/csv-upload")
+                        .file("file", FileUtils.readFileToByteArray(csvFile))
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+        )
+                .andExpect(MockMvcResultMatchers.status().isBadRequest())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        BusinessLogicError businessLogicError = objectMapper.readValue(jsonResponse, BusinessLogicError.class);
+        Assert.assertEquals("0011", businessLogicError.getErrorCode());
+        Assert.assertEquals(Integer.valueOf(2), businessLogicError.getItemIndex());
+    }
+
+    @Test
+    public void test54() throws Exception {
+        // Get the changes of the latest lookup value revisions for lookup value Polo
+        String linkHeader = mvc.perform(
+                MockMvcRequestBuilders
+                        .get("/lookup-values/6/revisions")
+                        .param("page-size", "2")
+                        .param("changes-only", "true")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MediaType.APPLICATION_JSON)
+        )
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(2))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[0].type").value("DEL"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[1].type").value("MOD"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[1].changes.active").value(false))
+                .andReturn()
+                .getResponse()
+                .getHeader("Link");
+        Assert.assertTrue(linkHeader.endsWith("; rel=\"next\""));
+        Assert.assertTrue(linkHeader.contains("before-rev="));
+    }
+
+    @Test
+    public void test55() throws Exception {
+        // Get lookup value revisions with an invalid page size
+        String jsonResponse = mvc.perform(
+                MockMvcRequestBuilders
+                        .get("/lookup-values/6/revisions")
+                        .param("page-size", "0")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MediaType.APPLICATION_JSON)
+        )
+                .andExpect(MockMvcResultMatchers.status().isBadRequest())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        BusinessLogicError businessLogicError = objectMapper.readValue(jsonResponse, BusinessLogicError.class);
+        Assert.assertEquals("0019", businessLogicError.getErrorCode());
+    }
+
+    @Test
+    public void test56() throws Exception {
+        // Get the lookup values of a lookup list before any revision was made
+        mvc.perform(
+                MockMvcRequestBuilders
+                        .get("/lookup-values/lookup-list-name/vehicle-make/as-of")
+                        .param("timestamp", "2000-01-01T00:00:00Z")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MediaType.APPLICATION_JSON)
+        )
+                .andExpect(MockMvcResultMatchers.status().isNoContent());
+    }
+
+    @Test
+    public void test57() throws Exception {
+        // Get the lookup values of a lookup list with an invalid timestamp
+        String jsonResponse = mvc.perform(
+                MockMvcRequestBuilders
+                        .get("/lookup-values/lookup-list-name/vehicle-make/as-of")
+                        .param("timestamp", "2000-01-01")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MediaType.APPLICATION_JSON)
+        )
+                .andExpect(MockMvcResultMatchers.status().isBadRequest())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        BusinessLogicError businessLogicError = objectMapper.readValue(jsonResponse, BusinessLogicError.class);
+        Assert.assertEquals("0020", businessLogicError.getErrorCode());
+    }
+
+    @Test
+    public void test58() throws Exception {
+        // Get the lookup value revisions of a set of lookup value ids
+        mvc.perform(
+                MockMvcRequestBuilders
+                        .post("/lookup-values/revisions")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[6, 99999]")
+        )
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$['6'][0].revision.type").value("ADD"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$['99999'].length()").value(0));
+    }
+
+    @Test
+    public void test59() throws Exception {
+        // Get the lookup value revisions of an empty set of lookup value ids
+        String jsonResponse = mvc.perform(
+                MockMvcRequestBuilders
+                        .post("/lookup-values/revisions")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[]")
+        )
+                .andExpect(MockMvcResultMatchers.status().isBadRequest())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        BusinessLogicError businessLogicError = objectMapper.readValue(jsonResponse, BusinessLogicError.class);
+        Assert.assertEquals("0021", businessLogicError.getErrorCode());
+    }
+
+    @Test
+    public void test60() throws Exception {
+        // Add lookup value Petrol, rename it to Unleaded and get the lookup list as it was in between
+        LookupValue lookupValue = new LookupValue();
+        lookupValue.setLookupListName("fuel-type");
+        lookupValue.setDisplayValue("Petrol");
+        lookupValue.setActive(Boolean.TRUE);
+        String jsonRequest = objectMapper.writerWithView(LookupValue.View.Add.class)
+                .writeValueAsString(lookupValue);
+        String jsonResponse = mvc.perform(
+                MockMvcRequestBuilders
+                        .post("/lookup-values")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(jsonRequest)
+        )
+                .andExpect(MockMvcResultMatchers.status().isCreated())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        lookupValue = objectMapper.readerWithView(LookupValue.View.All.class)
+                .forType(LookupValue.class)
+                .readValue(jsonResponse);
+        Thread.sleep(50);
+        String betweenRevisions = Instant.now().toString();
+        Thread.sleep(50);
+        lookupValue.setDisplayValue("Unleaded");
+        jsonRequest = objectMapper.writerWithView(LookupValue.View.Edit.class)
+                .writeValueAsString(lookupValue);
+        mvc.perform(
+                MockMvcRequestBuilders
+                        .put("/lookup-values/" + lookupValue.getId())
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(jsonRequest)
+        )
+                .andExpect(MockMvcResultMatchers.status().isAccepted());
+        mvc.perform(
+                MockMvcRequestBuilders
+                        .get("/lookup-values/lookup-list-name/fuel-type/as-of")
+                        .param("timestamp", betweenRevisions)
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MediaType.APPLICATION_JSON)
+        )
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(1))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[0].id").value(lookupValue.getId()))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[0].displayValue").value("Petrol"));
+        mvc.perform(
+                MockMvcRequestBuilders
+                        .get("/lookup-values/lookup-list-name/fuel-type/as-of")
+                        .param("timestamp", Instant.now().plusSeconds(1).toString())
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MediaType.APPLICATION_JSON)
+        )
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(1))
+                .andExpect(MockMvcResultMatchers.jsonPath("$[0].displayValue").value("Unleaded"));
     }
 
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.notification;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.icegreen.greenmail.junit.GreenMailRule;
+import com.icegreen.greenmail.util.GreenMailUtil;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import javax.mail.internet.MimeMessage;
+import net.binarypaper.springbootframework.exception.BusinessLogicError;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.representations.AccessTokenResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+
+/**
+ * Integration test for the MailMergeJobController.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+// Spring annotations
+@RunWith(SpringRunner.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+@SpringBootTest
+@TestPropertySource(locations = "/application-test.properties")
+@AutoConfigureMockMvc
+public class MailMergeJobControllerIT {
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private static final String KEYCLOAK_SERVER_URL = "http://localhost:8180/auth";
+    private static final String REALM = "demo";
+    private static final String CLIENT_ID = "swagger-ui";
+    private static final String USER_NAME = "test";
+    private static final String PASSOWRD = "test";
+    private static AccessTokenResponse ACCESS_TOKEN;
+
+    @Rule
+    public final GreenMailRule greenMail = new GreenMailRule(ServerSetupTest.ALL);
+
+    @BeforeClass
+    public static void setUpClass() {
+        ACCESS_TOKEN = Keycloak
+                .getInstance(KEYCLOAK_SERVER_URL, REALM, USER_NAME, PASSOWRD, CLIENT_ID)
+                .tokenManager()
+                .getAccessToken();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Test
+    public void test01() throws Exception {
+        // Call a REST method without passing the KEYCLOAK_TOKEN
+        mvc.perform(
+                MockMvcRequestBuilders
+                        .get("/mail-merge-jobs/unknown")
+                        .accept(MediaType.APPLICATION_JSON)
+        )
+                .andExpect(MockMvcResultMatchers.status().isForbidden());
+    }
+
+    @Test
+    public void test02() throws Exception {
+        // Get a mail merge job that does not exist
+        String jsonResponse = mvc.perform(
+                MockMvcRequestBuilders
+                        .get("/mail-merge-jobs/unknown")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .accept(MediaType.APPLICATION_JSON)
+        )
+                .andExpect(MockMvcResultMatchers.status().isNotFound())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        BusinessLogicError businessLogicError = objectMapper.readValue(jsonResponse, BusinessLogicError.class);
+        Assert.assertEquals("FMR12", businessLogicError.getErrorCode());
+        Assert.assertEquals("The mail merge job does not exist", businessLogicError.getMessage());
+    }
+
+    @Test
+    public void test03() throws Exception {
+        // Start a mail merge job with a subject that can not be parsed
+        String inputCsv = "email,firstName,surname\nalbert@example.com,Albert,Einstein\n";
+        String jsonResponse = mvc.perform(
+                MockMvcRequestBuilders
+                        .post("/mail-merge-jobs/BasicJSON.txt")
+                        .param("email_subject", "Hello ${data.firstName")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MailMergeJobController.TEXT_CSV_VALUE)
+                        .accept(MediaType.APPLICATION_JSON)
+                        .content(inputCsv)
+        )
+                .andExpect(MockMvcResultMatchers.status().isBadRequest())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        BusinessLogicError businessLogicError = objectMapper.readValue(jsonResponse, BusinessLogicError.class);
+        Assert.assertEquals("FMR2", businessLogicError.getErrorCode());
+    }
+
+    @Test
+    public void test04() throws Exception {
+        // Start a mail merge job with CSV recipients, one without an email address
+        String inputCsv = "email,firstName,surname\n"
+                + "albert@example.com,Albert,Einstein\n"
+                + ",Isaac,Newton\n"
+                + "marie@example.com,Marie,Curie\n";
+        String location = mvc.perform(
+                MockMvcRequestBuilders
+                        .post("/mail-merge-jobs/BasicJSON.txt")
+                        .param("email_subject", "Hello ${data.firstName}")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MailMergeJobController.TEXT_CSV_VALUE)
+                        .accept(MediaType.APPLICATION_JSON)
+                        .content(inputCsv)
+        )
+                .andExpect(MockMvcResultMatchers.status().isAccepted())
+                .andReturn()
+                .getResponse()
+                .getHeader("Location");
+        Assert.assertNotNull(location);
+        // Wait for max 5s for the job to complete
+        MailMergeJob.Status status = null;
+        String jsonResponse = null;
+        for (int i = 0; (i < 50) && (status != MailMergeJob.Status.COMPLETED); i++) {
+            Thread.sleep(100);
+            jsonResponse = mvc.perform(
+                    MockMvcRequestBuilders
+                            .get(location)
+                            .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                            .accept(MediaType.APPLICATION_JSON)
+            )
+                    .andExpect(MockMvcResultMatchers.status().isOk())
+                    .andReturn()
+                    .getResponse()
+                    .getContentAsString();
+            status = MailMergeJob.Status.valueOf(objectMapper.readTree(jsonResponse).get("status").asText());
+        }
+        Assert.assertEquals(MailMergeJob.Status.COMPLETED, status);
+        Assert.assertEquals(3, objectMapper.readTree(jsonResponse).get("recipients").asInt());
+        Assert.assertEquals(2, objectMapper.readTree(jsonResponse).get("sent").asInt());
+        Assert.assertEquals(1, objectMapper.readTree(jsonResponse).get("failed").asInt());
+        Assert.assertEquals("FMR11", objectMapper.readTree(jsonResponse).get("errors").get(0).get("error_code").asText());
+        // Wait for max 5s for 2 emails to arrive
+        Assert.assertTrue(greenMail.waitForIncomingEmail(5000, 2));
+        MimeMessage[] emails = greenMail.getReceivedMessages();
+        Assert.assertEquals(2, emails.length);
+        for (MimeMessage email : emails) {
+            Assert.assertTrue(email.getSubject().equals("Hello Albert") || email.getSubject().equals("Hello Marie"));
+            Assert.assertTrue(GreenMailUtil.getBody(email).contains("Hello "));
+        }
+    }
+
+    @Test
+    public void test05() throws Exception {
+        // Start a mail merge job with CSV recipients, the second with an invalid quote
+        String inputCsv = "email,firstName,surname\n"
+                + "albert@example.com,Albert,Einstein\n"
+                + "isaac@example.com,\"Isaac\"x,Newton\n"
+                + "marie@example.com,Marie,Curie\n";
+        String jsonResponse = waitForFailedJob(MailMergeJobController.TEXT_CSV_VALUE, inputCsv);
+        // The job fails before any recipient is emailed
+        Assert.assertEquals(0, objectMapper.readTree(jsonResponse).get("sent").asInt());
+        Assert.assertEquals("FMR13", objectMapper.readTree(jsonResponse).get("errors").get(0).get("error_code").asText());
+        Assert.assertEquals(1, objectMapper.readTree(jsonResponse).get("errors").get(0).get("item_index").asInt());
+        Assert.assertFalse(greenMail.waitForIncomingEmail(1000, 1));
+    }
+
+    @Test
+    public void test06() throws Exception {
+        // Start a mail merge job with NDJSON recipients, the second line is not valid JSON
+        String inputNdjson = "{\"email\":\"albert@example.com\",\"firstName\":\"Albert\"}\n"
+                + "{\"email\":\"isaac@example.com\",\"firstName\":\n"
+                + "{\"email\":\"marie@example.com\",\"firstName\":\"Marie\"}\n";
+        String jsonResponse = waitForFailedJob(RenderNotificationController.APPLICATION_NDJSON_VALUE, inputNdjson);
+        // The job fails before any recipient is emailed
+        Assert.assertEquals(0, objectMapper.readTree(jsonResponse).get("sent").asInt());
+        Assert.assertEquals("FMR10", objectMapper.readTree(jsonResponse).get("errors").get(0).get("error_code").asText());
+        Assert.assertEquals(1, objectMapper.readTree(jsonResponse).get("errors").get(0).get("item_index").asInt());
+        Assert.assertFalse(greenMail.waitForIncomingEmail(1000, 1));
+    }
+
+    private String waitForFailedJob(String contentType, String recipientData) throws Exception {
+        String location = mvc.perform(
+                MockMvcRequestBuilders
+                        .post("/mail-merge-jobs/BasicJSON.txt")
+                        .param("email_subject", "Hello ${data.firstName}")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(contentType)
+                        .accept(MediaType.APPLICATION_JSON)
+                        .content(recipientData)
+        )
+                .andExpect(MockMvcResultMatchers.status().isAccepted())
+                .andReturn()
+                .getResponse()
+                .getHeader("Location");
+        Assert.assertNotNull(location);
+        // Wait for max 5s for the job to fail
+        MailMergeJob.Status status = null;
+        String jsonResponse = null;
+        for (int i = 0; (i < 50) && (status != MailMergeJob.Status.FAILED); i++) {
+            Thread.sleep(100);
+            jsonResponse = mvc.perform(
+                    MockMvcRequestBuilders
+                            .get(location)
+                            .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                            .accept(MediaType.APPLICATION_JSON)
+            )
+                    .andExpect(MockMvcResultMatchers.status().isOk())
+                    .andReturn()
+                    .getResponse()
+                    .getContentAsString();
+            status = MailMergeJob.Status.valueOf(objectMapper.readTree(jsonResponse).get("status").asText());
+        }
+        Assert.assertEquals(MailMergeJob.Status.FAILED, status);
+        return jsonResponse;
+    }
+
+}
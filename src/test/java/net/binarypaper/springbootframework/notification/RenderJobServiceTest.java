@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.notification;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import freemarker.cache.StringTemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.SimpleNumber;
+import freemarker.template.TemplateMethodModelEx;
+import freemarker.template.TemplateModelException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
+import net.binarypaper.springbootframework.exception.BusinessLogicException;
+import net.binarypaper.springbootframework.render.FreeMarkerRenderService;
+import net.binarypaper.springbootframework.render.RenderBudget;
+
+/**
+ * Unit tests for the RenderJobService class.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public class RenderJobServiceTest {
+
+    private RenderJobService renderJobService;
+
+    private Map<String, RenderJob> jobs;
+
+    //<editor-fold defaultstate="collapsed" desc="Test Setup">
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        renderJobService = new RenderJobService();
+        ReflectionTestUtils.setField(renderJobService, "poolSize", 1);
+        ReflectionTestUtils.setField(renderJobService, "queueCapacity", 1);
+        ReflectionTestUtils.setField(renderJobService, "maxJobs", 10);
+        ReflectionTestUtils.setField(renderJobService, "retention", 0L);
+        ReflectionTestUtils.setField(renderJobService, "maxTime", 5000L);
+        ReflectionTestUtils.setField(renderJobService, "maxOutputChars", 0L);
+        ReflectionTestUtils.setField(renderJobService, "meterRegistry", new SimpleMeterRegistry());
+        renderJobService.init();
+        jobs = (Map<String, RenderJob>) ReflectionTestUtils.getField(renderJobService, "jobs");
+    }
+
+    @After
+    public void tearDown() {
+        renderJobService.shutdown();
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Purge Tests">
+    @Test
+    public void documentFileIsKeptWhileRead() throws Exception {
+        RenderJob job = completedJob();
+        Path documentFile = job.getDocumentFile();
+        try (InputStream document = renderJobService.openDocument(job)) {
+            renderJobService.purgeJobs();
+            Assert.assertTrue(jobs.isEmpty());
+            Assert.assertTrue(Files.exists(documentFile));
+            Assert.assertEquals("Hello", StreamUtils.copyToString(document, StandardCharsets.UTF_8));
+        }
+        Assert.assertFalse(Files.exists(documentFile));
+    }
+
+    @Test
+    public void purgedDocumentCanNotBeOpened() throws Exception {
+        RenderJob job = completedJob();
+        renderJobService.purgeJobs();
+        Assert.assertFalse(Files.exists(job.getDocumentFile()));
+        try {
+            renderJobService.openDocument(job);
+            Assert.fail("The purged document was opened");
+        } catch (BusinessLogicException ex) {
+            Assert.assertEquals("FMR14", ex.getErrorCode());
+            Assert.assertEquals(HttpStatus.NOT_FOUND, ex.getHttpStatus());
+        }
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Job Tests">
+    @Test
+    public void jobOfAnotherUserIsNotFound() throws Exception {
+        RenderJob job = completedJob();
+        Assert.assertSame(job, renderJobService.getJob(job.getId(), "alice"));
+        try {
+            renderJobService.getJob(job.getId(), "bob");
+            Assert.fail("The job of another user was found");
+        } catch (BusinessLogicException ex) {
+            Assert.assertEquals("FMR14", ex.getErrorCode());
+            Assert.assertEquals(HttpStatus.NOT_FOUND, ex.getHttpStatus());
+        }
+    }
+
+    @Test
+    public void internalErrorFailsWithServerError() throws Exception {
+        FreeMarkerRenderService freeMarkerRenderService = Mockito.mock(FreeMarkerRenderService.class);
+        Mockito.doThrow(new IllegalStateException("The disk is full"))
+                .when(freeMarkerRenderService).render(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(), Mockito.any(Writer.class),
+                        Mockito.any(RenderBudget.Limits.class));
+        ReflectionTestUtils.setField(renderJobService, "freeMarkerRenderService", freeMarkerRenderService);
+        RenderJob job = renderJobService.start("BasicJSON.txt", "application/json", "{}", "text/plain", null, null, "alice");
+        // Wait for max 5s for the job to fail
+        for (int i = 0; (i < 50) && (job.getStatus() != RenderJob.Status.FAILED); i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(RenderJob.Status.FAILED, job.getStatus());
+        Assert.assertEquals("FMR22", job.getError().getErrorCode());
+        Assert.assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, job.getErrorStatus());
+    }
+
+    @Test
+    public void jobLongerThanSyncLimitCompletes() throws Exception {
+        RenderBudget renderBudget = new RenderBudget();
+        ReflectionTestUtils.setField(renderBudget, "maxTime", 100L);
+        ReflectionTestUtils.setField(renderBudget, "meterRegistry", new SimpleMeterRegistry());
+        renderBudget.init();
+        try {
+            StringTemplateLoader templateLoader = new StringTemplateLoader();
+            templateLoader.putTemplate("Slow.txt", "${sleep(300)}Hello ${data.name}");
+            Configuration configuration = new Configuration(Configuration.VERSION_2_3_23);
+            configuration.setTemplateLoader(templateLoader);
+            configuration.setSharedVariable("sleep", (TemplateMethodModelEx) arguments -> {
+                try {
+                    Thread.sleep(((SimpleNumber) arguments.get(0)).getAsNumber().longValue());
+                } catch (InterruptedException ex) {
+                    throw new TemplateModelException("The render was interrupted", ex);
+                }
+                return "";
+            });
+            FreeMarkerRenderService freeMarkerRenderService = new FreeMarkerRenderService();
+            ReflectionTestUtils.setField(freeMarkerRenderService, "configuration", configuration);
+            ReflectionTestUtils.setField(freeMarkerRenderService, "objectMapper", new ObjectMapper());
+            ReflectionTestUtils.setField(freeMarkerRenderService, "renderBudget", renderBudget);
+            ReflectionTestUtils.setField(renderJobService, "freeMarkerRenderService", freeMarkerRenderService);
+            // The render takes longer than the render time of synchronous renders
+            try {
+                freeMarkerRenderService.render("Slow.txt", "application/json", "{'name': 'Alice'}", new StringWriter());
+                Assert.fail("The render should have run out of time");
+            } catch (BusinessLogicException ex) {
+                Assert.assertEquals("FMR17", ex.getErrorCode());
+            }
+            RenderJob job = renderJobService.start("Slow.txt", "application/json", "{'name': 'Alice'}", "text/plain", null, null, "alice");
+            // Wait for max 5s for the job to complete
+            for (int i = 0; (i < 50) && (job.getStatus() == RenderJob.Status.QUEUED || job.getStatus() == RenderJob.Status.RUNNING); i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertEquals(RenderJob.Status.COMPLETED, job.getStatus());
+            try (InputStream document = renderJobService.openDocument(job)) {
+                Assert.assertEquals("Hello Alice", StreamUtils.copyToString(document, StandardCharsets.UTF_8));
+            }
+        } finally {
+            renderBudget.shutdown();
+        }
+    }
+    //</editor-fold>
+
+    private RenderJob completedJob() throws Exception {
+        Path documentFile = Files.write(Files.createTempFile("render-", ".tmp"), "Hello".getBytes(StandardCharsets.UTF_8));
+        RenderJob job = new RenderJob("id", "BasicJSON.txt", "text/plain", "alice");
+        job.complete(null, documentFile, 5);
+        jobs.put(job.getId(), job);
+        // Let the job expire with a retention of 0 minutes
+        Thread.sleep(5);
+        return job;
+    }
+}
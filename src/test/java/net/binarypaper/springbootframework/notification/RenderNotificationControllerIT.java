@@ -19,8 +19,16 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.icegreen.greenmail.junit.GreenMailRule;
 import com.icegreen.greenmail.util.GreenMailUtil;
 import com.icegreen.greenmail.util.ServerSetupTest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 import javax.mail.internet.MimeMessage;
 import net.binarypaper.springbootframework.exception.BusinessLogicError;
+import net.binarypaper.springbootframework.exception.BusinessLogicException;
+import net.binarypaper.springbootframework.render.RenderCache;
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -35,11 +43,16 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+import org.springframework.web.util.NestedServletException;
 
 /**
  * Integration test for the RenderNotificationController.
@@ -60,6 +73,12 @@ public class RenderNotificationControllerIT {
     @Autowired
     private ObjectMapper objectMapper;
 
+    @Autowired
+    private RenderNotificationController renderNotificationController;
+
+    @Autowired
+    private RenderCache renderCache;
+
     private static final String KEYCLOAK_SERVER_URL = "http://localhost:8180/auth";
     private static final String REALM = "demo";
     private static final String CLIENT_ID = "swagger-ui";
@@ -256,7 +275,7 @@ public class RenderNotificationControllerIT {
 
     @Test
     public void test10() throws Exception {
-        // Render with invalid JSON will cause FreeMarker runtime error
+        // Render with invalid JSON will cause a JSON parse error
         String inputJson = "Invalid JSON";
         String jsonResponse = mvc.perform(
                 MockMvcRequestBuilders
@@ -271,8 +290,8 @@ public class RenderNotificationControllerIT {
                 .getResponse()
                 .getContentAsString();
         BusinessLogicError businessLogicError = objectMapper.readValue(jsonResponse, BusinessLogicError.class);
-        Assert.assertEquals("FMR5", businessLogicError.getErrorCode());
-        Assert.assertTrue(businessLogicError.getMessage().startsWith("A FreeMarker runtime error occurred."));
+        Assert.assertEquals("FMR10", businessLogicError.getErrorCode());
+        Assert.assertEquals("The input JSON data is invalid", businessLogicError.getMessage());
     }
 
     @Test
@@ -408,4 +427,246 @@ public class RenderNotificationControllerIT {
         Assert.assertTrue(GreenMailUtil.getBody(emails[0]).contains("Hello Marie Curie,"));
     }
 
+    @Test
+    public void test16() throws Exception {
+        // Render a batch of JSON payloads to Plain Text as NDJSON
+        String inputJson = "[{'firstName': 'Ada', 'surname': 'Lovelace'}, {'firstName': 'Alan'}, {'firstName': 'Grace', 'surname': 'Hopper'}]";
+        String outputNdjson = mvc.perform(
+                MockMvcRequestBuilders
+                        .post("/render-notification/BasicJSON.txt/batch")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .accept(RenderNotificationController.APPLICATION_NDJSON_VALUE)
+                        .content(inputJson)
+        )
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        String[] lines = outputNdjson.split("\n");
+        Assert.assertEquals(3, lines.length);
+        BatchRenderResult batchRenderResult = objectMapper.readValue(lines[0], BatchRenderResult.class);
+        Assert.assertEquals(0, batchRenderResult.getIndex());
+        Assert.assertTrue(batchRenderResult.getDocument().contains("Hello Ada Lovelace,"));
+        batchRenderResult = objectMapper.readValue(lines[1], BatchRenderResult.class);
+        Assert.assertEquals(1, batchRenderResult.getIndex());
+        Assert.assertEquals("FMR3", batchRenderResult.getError().getErrorCode());
+        batchRenderResult = objectMapper.readValue(lines[2], BatchRenderResult.class);
+        Assert.assertEquals(2, batchRenderResult.getIndex());
+        Assert.assertTrue(batchRenderResult.getDocument().contains("Hello Grace Hopper,"));
+    }
+
+    @Test
+    public void test17() throws Exception {
+        // Render a JSON payload to HTML asynchronously
+        String inputJson = "{'firstName': 'Ada', 'surname': 'Lovelace'}";
+        String jsonResponse = mvc.perform(
+                MockMvcRequestBuilders
+                        .post("/render-notification/BasicJSON.html")
+                        .param("async", "true")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .accept(MediaType.TEXT_HTML)
+                        .content(inputJson)
+        )
+                .andExpect(MockMvcResultMatchers.status().isAccepted())
+                .andExpect(MockMvcResultMatchers.header().exists("Location"))
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        String id = objectMapper.readTree(jsonResponse).get("id").asText();
+        // Poll the render job until the document has been rendered
+        int status = 202;
+        String outputHtml = null;
+        for (int i = 0; (status == 202) && (i < 50); i++) {
+            Thread.sleep(100);
+            MockHttpServletResponse response = mvc.perform(
+                    MockMvcRequestBuilders
+                            .get("/render-notification/jobs/" + id)
+                            .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+            )
+                    .andReturn()
+                    .getResponse();
+            status = response.getStatus();
+            outputHtml = response.getContentAsString();
+        }
+        Assert.assertEquals(200, status);
+        Assert.assertTrue(outputHtml.contains("Hello Ada Lovelace,"));
+    }
+
+    @Test
+    public void test18() throws Exception {
+        // Get a render job that does not exist
+        String jsonResponse = mvc.perform(
+                MockMvcRequestBuilders
+                        .get("/render-notification/jobs/unknown")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .accept(MediaType.APPLICATION_JSON)
+        )
+                .andExpect(MockMvcResultMatchers.status().isNotFound())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        BusinessLogicError businessLogicError = objectMapper.readValue(jsonResponse, BusinessLogicError.class);
+        Assert.assertEquals("FMR14", businessLogicError.getErrorCode());
+        Assert.assertEquals("The render job does not exist or has expired", businessLogicError.getMessage());
+    }
+
+    @Test
+    public void test19() throws Exception {
+        // Render the HTML and Plain Text variants of a template family and Email
+        String inputJson = "{'firstName': 'Marie', 'surname': 'Curie'}";
+        MockHttpServletResponse response = mvc.perform(
+                MockMvcRequestBuilders
+                        .post("/render-notification/BasicJSON/multipart")
+                        .param("email_to", "test@example.com")
+                        .param("email_subject", "Test JSON to Multipart Email")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(inputJson)
+        )
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn()
+                .getResponse();
+        Assert.assertTrue(response.getContentType().startsWith(RenderNotificationController.MULTIPART_MIXED_VALUE));
+        String outputMultipart = response.getContentAsString();
+        Assert.assertTrue(outputMultipart.contains("filename=\"BasicJSON.html\""));
+        Assert.assertTrue(outputMultipart.contains("Hi Marie Curie,"));
+        Assert.assertTrue(outputMultipart.contains("filename=\"BasicJSON.txt\""));
+        Assert.assertTrue(outputMultipart.contains("Hello Marie Curie,"));
+        // Wait for max 5s for 1 email to arrive
+        Assert.assertTrue(greenMail.waitForIncomingEmail(5000, 1));
+        MimeMessage[] emails = greenMail.getReceivedMessages();
+        Assert.assertEquals(1, emails.length);
+        Assert.assertEquals("Test JSON to Multipart Email", emails[0].getSubject());
+        String emailBody = GreenMailUtil.getBody(emails[0]);
+        Assert.assertTrue(emailBody.contains("multipart/alternative"));
+        Assert.assertTrue(emailBody.contains("Hi Marie Curie,"));
+        Assert.assertTrue(emailBody.contains("Hello Marie Curie,"));
+    }
+
+    @Test
+    public void test20() throws Exception {
+        // Render a HTML document that fails with a runtime template error
+        // before the response buffer is flushed
+        String inputJson = "{'firstName': 'Albert'}";
+        MockHttpServletResponse response = mvc.perform(
+                MockMvcRequestBuilders
+                        .post("/render-notification/BasicJSON.html")
+                        .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .accept(MediaType.TEXT_HTML, MediaType.APPLICATION_JSON)
+                        .content(inputJson)
+        )
+                .andExpect(MockMvcResultMatchers.status().isBadRequest())
+                .andReturn()
+                .getResponse();
+        // The partial document is discarded and replaced by the error
+        Assert.assertTrue(response.getContentType().startsWith(MediaType.APPLICATION_JSON_VALUE));
+        String jsonResponse = response.getContentAsString();
+        Assert.assertFalse(jsonResponse.contains("<html"));
+        BusinessLogicError businessLogicError = objectMapper.readValue(jsonResponse, BusinessLogicError.class);
+        Assert.assertEquals("FMR3", businessLogicError.getErrorCode());
+    }
+
+    @Test
+    public void test21() throws Exception {
+        // Render a HTML document that fails with a runtime template error
+        // after the response buffer has been flushed
+        Object controller = AopTestUtils.getTargetObject(renderNotificationController);
+        Object responseBufferSize = ReflectionTestUtils.getField(controller, "responseBufferSize");
+        ReflectionTestUtils.setField(controller, "responseBufferSize", 1024);
+        List<LogRecord> logRecords = new ArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord logRecord) {
+                logRecords.add(logRecord);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(RenderNotificationController.class.getName());
+        logger.addHandler(handler);
+        String inputJson = "{'firstName': 'Albert'}";
+        try {
+            mvc.perform(
+                    MockMvcRequestBuilders
+                            .post("/render-notification/BasicJSON.html")
+                            .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .accept(MediaType.TEXT_HTML)
+                            .content(inputJson)
+            );
+            Assert.fail("The response was not aborted");
+        } catch (NestedServletException ex) {
+            // The response is aborted instead of completing a truncated
+            // document
+            Assert.assertTrue(ex.getCause() instanceof IllegalStateException);
+            Assert.assertEquals("FMR3", ((BusinessLogicException) ex.getCause().getCause()).getErrorCode());
+        } finally {
+            logger.removeHandler(handler);
+            ReflectionTestUtils.setField(controller, "responseBufferSize", responseBufferSize);
+        }
+        Assert.assertTrue(logRecords.stream().anyMatch(logRecord -> (logRecord.getLevel() == Level.SEVERE)
+                && logRecord.getMessage().contains("after the response was committed")));
+    }
+
+    @Test
+    public void test22() throws Exception {
+        // Render the same document with and without the Cache-Control no-cache
+        // and no-store headers while the render cache is enabled
+        ReflectionTestUtils.setField(renderCache, "enabled", true);
+        renderCache.clear();
+        try {
+            String inputJson = "{'firstName': 'Albert', 'surname': 'Einstein'}";
+            String document = renderCached(inputJson, null);
+            Assert.assertEquals(1, renderCache.getSize());
+            long hits = (Long) renderCache.getStatistics().get("hits");
+            long misses = (Long) renderCache.getStatistics().get("misses");
+            // The second render is served from the render cache
+            Assert.assertEquals(document, renderCached(inputJson, null));
+            Assert.assertEquals(hits + 1, renderCache.getStatistics().get("hits"));
+            // no-cache renders the document again without a lookup and stores
+            // the rendered document
+            renderCache.clear();
+            Assert.assertEquals(document, renderCached(inputJson, "no-cache"));
+            Assert.assertEquals(hits + 1, renderCache.getStatistics().get("hits"));
+            Assert.assertEquals(misses, renderCache.getStatistics().get("misses"));
+            Assert.assertEquals(1, renderCache.getSize());
+            // no-store renders the document without storing it
+            String otherInputJson = "{'firstName': 'Marie', 'surname': 'Curie'}";
+            Assert.assertTrue(renderCached(otherInputJson, "no-store").contains("Hi Marie Curie,"));
+            Assert.assertEquals(1, renderCache.getSize());
+            renderCached(otherInputJson, null);
+            Assert.assertEquals(misses + 2, renderCache.getStatistics().get("misses"));
+            Assert.assertEquals(2, renderCache.getSize());
+        } finally {
+            ReflectionTestUtils.setField(renderCache, "enabled", false);
+            renderCache.clear();
+        }
+    }
+
+    private String renderCached(String inputJson, String cacheControl) throws Exception {
+        MockHttpServletRequestBuilder request = MockMvcRequestBuilders
+                .post("/render-notification/BasicJSON.html")
+                .header("Authorization", "Bearer " + ACCESS_TOKEN.getToken())
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.TEXT_HTML)
+                .content(inputJson);
+        if (cacheControl != null) {
+            request.header("Cache-Control", cacheControl);
+        }
+        return mvc.perform(request)
+                .andExpect(MockMvcResultMatchers.status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+    }
+
 }
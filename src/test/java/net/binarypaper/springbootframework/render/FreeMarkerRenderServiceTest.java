@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateExceptionHandler;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.StringWriter;
+import net.binarypaper.springbootframework.exception.BusinessLogicException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Unit tests for the render budget of the FreeMarkerRenderService class.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public class FreeMarkerRenderServiceTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private RenderBudget renderBudget;
+
+    private FreeMarkerRenderService freeMarkerRenderService;
+
+    //<editor-fold defaultstate="collapsed" desc="Test Setup">
+    @Before
+    public void setUp() {
+        renderBudget = new RenderBudget();
+        ReflectionTestUtils.setField(renderBudget, "maxTime", 100L);
+        ReflectionTestUtils.setField(renderBudget, "maxOutputChars", 0L);
+        ReflectionTestUtils.setField(renderBudget, "maxLoopIterations", 0L);
+        ReflectionTestUtils.setField(renderBudget, "meterRegistry", meterRegistry);
+        renderBudget.init();
+        Configuration configuration = new Configuration(Configuration.VERSION_2_3_23);
+        configuration.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
+        freeMarkerRenderService = new FreeMarkerRenderService();
+        ReflectionTestUtils.setField(freeMarkerRenderService, "configuration", configuration);
+        ReflectionTestUtils.setField(freeMarkerRenderService, "objectMapper", objectMapper);
+        ReflectionTestUtils.setField(freeMarkerRenderService, "renderBudget", renderBudget);
+    }
+
+    @After
+    public void tearDown() {
+        renderBudget.shutdown();
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Render Budget Tests">
+    @Test
+    public void endlessListRunsOutOfTime() {
+        Template template = freeMarkerRenderService.createTemplate("endless",
+                "<#list 1..2147483647 as i><#assign last = i></#list>${last}");
+        long start = System.currentTimeMillis();
+        try {
+            freeMarkerRenderService.render(template, objectMapper.createObjectNode(), new StringWriter());
+            Assert.fail("The render should have run out of time");
+        } catch (BusinessLogicException ex) {
+            Assert.assertEquals("FMR17", ex.getErrorCode());
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        Assert.assertFalse(Thread.currentThread().isInterrupted());
+        Assert.assertEquals(1, meterRegistry.get("render.budget.exceeded").tag("limit", "time").counter().count(), 0);
+    }
+
+    @Test
+    public void listWithinTimeIsRendered() {
+        Template template = freeMarkerRenderService.createTemplate("short",
+                "<#list 1..3 as i>${i}</#list>");
+        StringWriter writer = new StringWriter();
+        freeMarkerRenderService.render(template, objectMapper.createObjectNode(), writer);
+        Assert.assertEquals("123", writer.toString());
+    }
+    //</editor-fold>
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import net.binarypaper.springbootframework.exception.TooManyRequestsException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Unit tests for the RenderAdmission class.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public class RenderAdmissionTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private RenderAdmission renderAdmission;
+
+    //<editor-fold defaultstate="collapsed" desc="Test Setup">
+    @Before
+    public void setUp() {
+        renderAdmission = new RenderAdmission();
+        ReflectionTestUtils.setField(renderAdmission, "enabled", true);
+        ReflectionTestUtils.setField(renderAdmission, "maxConcurrent", 1);
+        ReflectionTestUtils.setField(renderAdmission, "maxQueued", 1);
+        ReflectionTestUtils.setField(renderAdmission, "queueTimeout", 5000L);
+        ReflectionTestUtils.setField(renderAdmission, "retryAfter", 2L);
+        ReflectionTestUtils.setField(renderAdmission, "meterRegistry", meterRegistry);
+        renderAdmission.init();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Admission Tests">
+    @Test
+    public void queuedRenderStartsWhenReleased() throws Exception {
+        renderAdmission.acquire();
+        Future<?> queued = executor.submit(() -> {
+            renderAdmission.acquire();
+            renderAdmission.release();
+        });
+        waitForQueued(1);
+        renderAdmission.release();
+        queued.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(0, meterRegistry.get("render.admission.rejections").counter().count(), 0);
+        Assert.assertEquals(0, meterRegistry.get("render.admission.active").gauge().value(), 0);
+    }
+
+    @Test
+    public void fullQueueIsRejected() throws Exception {
+        renderAdmission.acquire();
+        Future<?> queued = executor.submit(() -> {
+            renderAdmission.acquire();
+            renderAdmission.release();
+        });
+        waitForQueued(1);
+        try {
+            renderAdmission.acquire();
+            Assert.fail("The render should have been rejected");
+        } catch (TooManyRequestsException ex) {
+            Assert.assertEquals("FMR16", ex.getErrorCode());
+            Assert.assertEquals(HttpStatus.TOO_MANY_REQUESTS, ex.getHttpStatus());
+            Assert.assertEquals(2L, ex.getRetryAfter());
+        }
+        Assert.assertEquals(1, meterRegistry.get("render.admission.rejections").counter().count(), 0);
+        renderAdmission.release();
+        queued.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void releasedSlotGoesToQueuedRender() throws Exception {
+        // The new render is rejected by the full queue or by the queue timeout
+        ReflectionTestUtils.setField(renderAdmission, "queueTimeout", 1000L);
+        renderAdmission.acquire();
+        CountDownLatch rendered = new CountDownLatch(1);
+        Future<?> queued = executor.submit(() -> {
+            renderAdmission.acquire();
+            try {
+                // Hold the slot until the new render has been rejected
+                rendered.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                renderAdmission.release();
+            }
+        });
+        waitForQueued(1);
+        Semaphore permits = (Semaphore) ReflectionTestUtils.getField(renderAdmission, "permits");
+        for (int i = 0; (i < 500) && !permits.hasQueuedThreads(); i++) {
+            Thread.sleep(10);
+        }
+        // A new render may not take the released slot from the queued render
+        renderAdmission.release();
+        try {
+            renderAdmission.acquire();
+            Assert.fail("The render should have been rejected");
+        } catch (TooManyRequestsException ex) {
+            Assert.assertEquals("FMR16", ex.getErrorCode());
+        } finally {
+            rendered.countDown();
+        }
+        queued.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void admittedRenderWaitsLongerThanQueueTimeout() throws Exception {
+        ReflectionTestUtils.setField(renderAdmission, "queueTimeout", 10L);
+        ReflectionTestUtils.setField(renderAdmission, "maxQueued", 0);
+        renderAdmission.acquire();
+        Future<?> queued = executor.submit(() -> {
+            renderAdmission.acquireAdmitted();
+            renderAdmission.release();
+        });
+        waitForQueued(1);
+        Thread.sleep(50);
+        Assert.assertFalse(queued.isDone());
+        renderAdmission.release();
+        queued.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(0, meterRegistry.get("render.admission.rejections").counter().count(), 0);
+    }
+
+    @Test
+    public void queueTimeoutIsRejected() {
+        ReflectionTestUtils.setField(renderAdmission, "queueTimeout", 10L);
+        renderAdmission.acquire();
+        try {
+            renderAdmission.acquire();
+            Assert.fail("The render should have been rejected");
+        } catch (TooManyRequestsException ex) {
+            Assert.assertEquals("FMR16", ex.getErrorCode());
+        }
+        Assert.assertEquals(0, meterRegistry.get("render.admission.queued").gauge().value(), 0);
+        renderAdmission.release();
+    }
+    //</editor-fold>
+
+    private void waitForQueued(int expected) throws InterruptedException {
+        for (int i = 0; (i < 500) && (meterRegistry.get("render.admission.queued").gauge().value() < expected); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(expected, meterRegistry.get("render.admission.queued").gauge().value(), 0);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.StringWriter;
+import java.io.Writer;
+import net.binarypaper.springbootframework.exception.BusinessLogicException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Unit tests for the RenderBudget class.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public class RenderBudgetTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private RenderBudget renderBudget;
+
+    //<editor-fold defaultstate="collapsed" desc="Test Setup">
+    @Before
+    public void setUp() {
+        renderBudget = new RenderBudget();
+        ReflectionTestUtils.setField(renderBudget, "maxTime", 100L);
+        ReflectionTestUtils.setField(renderBudget, "maxOutputChars", 10L);
+        ReflectionTestUtils.setField(renderBudget, "maxLoopIterations", 3L);
+        ReflectionTestUtils.setField(renderBudget, "meterRegistry", meterRegistry);
+        renderBudget.init();
+    }
+
+    @After
+    public void tearDown() {
+        renderBudget.shutdown();
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Budget Tests">
+    @Test
+    public void withinBudget() throws Exception {
+        StringWriter writer = new StringWriter();
+        RenderBudget.Execution execution = renderBudget.start(writer);
+        execution.getWriter().write("0123456789");
+        RenderBudget.countIteration();
+        RenderBudget.countIteration();
+        RenderBudget.countIteration();
+        execution.finish();
+        Assert.assertEquals("0123456789", writer.toString());
+        // Outside a render the iterations are not counted
+        RenderBudget.countIteration();
+        Assert.assertEquals(0, meterRegistry.get("render.budget.exceeded").counters().stream()
+                .mapToDouble(counter -> counter.count()).sum(), 0);
+    }
+
+    @Test
+    public void callerLimits() throws Exception {
+        StringWriter writer = new StringWriter();
+        RenderBudget.Execution execution = renderBudget.start(writer, new RenderBudget.Limits(5000, 20));
+        // Longer and larger than the default limits
+        Thread.sleep(300);
+        execution.getWriter().write("01234567890123456789");
+        execution.finish();
+        Assert.assertEquals("01234567890123456789", writer.toString());
+    }
+
+    @Test
+    public void timeExceeded() throws Exception {
+        RenderBudget.Execution execution = renderBudget.start(new StringWriter());
+        try {
+            Thread.sleep(5000);
+            Assert.fail("The render should have been interrupted");
+        } catch (InterruptedException ex) {
+            // The watchdog interrupted the render
+        }
+        try {
+            execution.finish();
+            Assert.fail("The render should have run out of time");
+        } catch (BusinessLogicException ex) {
+            Assert.assertEquals("FMR17", ex.getErrorCode());
+        }
+        Assert.assertFalse(Thread.currentThread().isInterrupted());
+        Assert.assertEquals(1, meterRegistry.get("render.budget.exceeded").tag("limit", "time").counter().count(), 0);
+    }
+
+    @Test
+    public void writeIsNotInterrupted() throws Exception {
+        // A writer blocked longer than the render time, like a slow client
+        Writer slowWriter = new StringWriter() {
+            @Override
+            public void write(String str, int off, int len) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException ex) {
+                    Assert.fail("The write should not have been interrupted");
+                }
+                super.write(str, off, len);
+            }
+        };
+        RenderBudget.Execution execution = renderBudget.start(slowWriter);
+        execution.getWriter().write("0123456789");
+        // The render is interrupted when the write returns
+        Assert.assertTrue(Thread.currentThread().isInterrupted());
+        try {
+            execution.finish();
+            Assert.fail("The render should have run out of time");
+        } catch (BusinessLogicException ex) {
+            Assert.assertEquals("FMR17", ex.getErrorCode());
+        }
+        Assert.assertFalse(Thread.currentThread().isInterrupted());
+        Assert.assertEquals("0123456789", slowWriter.toString());
+    }
+
+    @Test
+    public void outputExceeded() throws Exception {
+        RenderBudget.Execution execution = renderBudget.start(new StringWriter());
+        Writer writer = execution.getWriter();
+        writer.write("0123456789");
+        try {
+            writer.write('X');
+            Assert.fail("The render should have written too much");
+        } catch (BusinessLogicException ex) {
+            Assert.assertEquals("FMR18", ex.getErrorCode());
+        } finally {
+            execution.finish();
+        }
+        Assert.assertEquals(1, meterRegistry.get("render.budget.exceeded").tag("limit", "output").counter().count(), 0);
+    }
+
+    @Test
+    public void iterationsExceeded() {
+        RenderBudget.Execution execution = renderBudget.start(new StringWriter());
+        try {
+            for (int i = 0; i < 4; i++) {
+                RenderBudget.countIteration();
+            }
+            Assert.fail("The render should have read too many items");
+        } catch (BusinessLogicException ex) {
+            Assert.assertEquals("FMR19", ex.getErrorCode());
+        } finally {
+            execution.finish();
+        }
+        Assert.assertEquals(1, meterRegistry.get("render.budget.exceeded").tag("limit", "iterations").counter().count(), 0);
+    }
+    //</editor-fold>
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Unit tests for the RenderCache class.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+public class RenderCacheTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private RenderCache renderCache;
+
+    //<editor-fold defaultstate="collapsed" desc="Test Setup">
+    @Before
+    public void setUp() {
+        renderCache = new RenderCache();
+        ReflectionTestUtils.setField(renderCache, "enabled", true);
+        ReflectionTestUtils.setField(renderCache, "maxBytes", 1000L);
+        ReflectionTestUtils.setField(renderCache, "maxEntries", 10);
+        ReflectionTestUtils.setField(renderCache, "maxEntryBytes", 500);
+        ReflectionTestUtils.setField(renderCache, "ttl", 300L);
+        ReflectionTestUtils.setField(renderCache, "meterRegistry", meterRegistry);
+        renderCache.registerMetrics();
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Lookup Tests">
+    @Test
+    public void cachedDocumentIsHit() {
+        String key = renderCache.getKey("BasicJSON.html", 1L, "application/json", "{}");
+        Assert.assertNull(renderCache.get(key));
+        renderCache.put(key, new byte[]{1, 2, 3});
+        Assert.assertArrayEquals(new byte[]{1, 2, 3}, renderCache.get(key));
+        Assert.assertEquals(1, meterRegistry.get("render.cache.hits").counter().count(), 0);
+        Assert.assertEquals(1, meterRegistry.get("render.cache.misses").counter().count(), 0);
+        Assert.assertEquals(3, meterRegistry.get("render.cache.bytes").gauge().value(), 0);
+    }
+
+    @Test
+    public void keyChangesWithTemplateAndData() {
+        String key = renderCache.getKey("BasicJSON.html", 1L, "application/json", "{}");
+        Assert.assertEquals(key, renderCache.getKey("BasicJSON.html", 1L, "APPLICATION/JSON", "{}"));
+        Assert.assertNotEquals(key, renderCache.getKey("BasicJSON.txt", 1L, "application/json", "{}"));
+        Assert.assertNotEquals(key, renderCache.getKey("BasicJSON.html", 2L, "application/json", "{}"));
+        Assert.assertNotEquals(key, renderCache.getKey("BasicJSON.html", 1L, "application/xml", "{}"));
+        Assert.assertNotEquals(key, renderCache.getKey("BasicJSON.html", 1L, "application/json", "{'a': 1}"));
+    }
+
+    @Test
+    public void expiredDocumentIsMissed() throws Exception {
+        ReflectionTestUtils.setField(renderCache, "ttl", 0L);
+        renderCache.put("key", new byte[]{1});
+        Thread.sleep(5);
+        Assert.assertNull(renderCache.get("key"));
+        Assert.assertEquals(0, renderCache.getSize());
+        Assert.assertEquals(0, renderCache.getBytes());
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Cache-Control Tests">
+    @Test
+    public void noCacheAndNoStoreAreDetected() {
+        Assert.assertFalse(RenderCache.isNoCache(null));
+        Assert.assertFalse(RenderCache.isNoStore(null));
+        Assert.assertTrue(RenderCache.isNoCache("No-Cache"));
+        Assert.assertFalse(RenderCache.isNoStore("no-cache"));
+        Assert.assertTrue(RenderCache.isNoStore("max-age=0, no-store"));
+        Assert.assertFalse(RenderCache.isNoCache("no-store"));
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Eviction Tests">
+    @Test
+    public void leastRecentlyUsedDocumentIsEvictedByBytes() {
+        renderCache.put("a", new byte[400]);
+        renderCache.put("b", new byte[400]);
+        // Use a, so that b is the least recently used document
+        Assert.assertNotNull(renderCache.get("a"));
+        renderCache.put("c", new byte[400]);
+        Assert.assertNotNull(renderCache.get("a"));
+        Assert.assertNull(renderCache.get("b"));
+        Assert.assertNotNull(renderCache.get("c"));
+        Assert.assertEquals(800, renderCache.getBytes());
+        Assert.assertEquals(1, meterRegistry.get("render.cache.evictions").counter().count(), 0);
+    }
+
+    @Test
+    public void leastRecentlyUsedDocumentIsEvictedByEntries() {
+        ReflectionTestUtils.setField(renderCache, "maxEntries", 2);
+        renderCache.put("a", new byte[1]);
+        renderCache.put("b", new byte[1]);
+        renderCache.put("c", new byte[1]);
+        Assert.assertEquals(2, renderCache.getSize());
+        Assert.assertNull(renderCache.get("a"));
+        Assert.assertEquals(2, renderCache.getBytes());
+    }
+
+    @Test
+    public void largeDocumentIsNotCached() {
+        renderCache.put("a", new byte[501]);
+        Assert.assertEquals(0, renderCache.getSize());
+        Assert.assertEquals(0, renderCache.getBytes());
+    }
+
+    @Test
+    public void replacedDocumentIsCountedOnce() {
+        renderCache.put("a", new byte[100]);
+        renderCache.put("a", new byte[200]);
+        Assert.assertEquals(1, renderCache.getSize());
+        Assert.assertEquals(200, renderCache.getBytes());
+    }
+    //</editor-fold>
+}
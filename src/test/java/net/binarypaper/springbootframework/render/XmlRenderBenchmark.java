@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.binarypaper.springbootframework.render;
+
+import freemarker.ext.dom.NodeModel;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateExceptionHandler;
+import freemarker.template.Version;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.ParserConfigurationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Microbenchmark of rendering XML data with the BasicXML.html template.
+ * <p>
+ * Compares parsing the XML data with NodeModel.parse, which creates a new
+ * DocumentBuilderFactory for every document, to the XmlDocumentBuilderPool.
+ * The items parameter adds repeated elements to the XML data to measure
+ * larger documents. Run the main method from the project directory with the
+ * test classpath.
+ *
+ * @author <a href="mailto:willy.gadney@binarypaper.net">Willy Gadney</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmlRenderBenchmark {
+
+    @Param({"0", "1000"})
+    private int items;
+
+    private String data;
+    private Template template;
+    private XmlDocumentBuilderPool xmlDocumentBuilderPool;
+
+    @Setup
+    public void setUp() throws IOException, ParserConfigurationException {
+        Configuration configuration = new Configuration(new Version(2, 3, 23));
+        configuration.setDefaultEncoding("UTF-8");
+        configuration.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
+        configuration.setDirectoryForTemplateLoading(new File("src/main/webapp" + FreeMarkerConfig.TEMPLATE_FOLDER));
+        template = configuration.getTemplate("BasicXML.html");
+        xmlDocumentBuilderPool = new XmlDocumentBuilderPool(1);
+        StringBuilder xml = new StringBuilder("<root><firstName>Isaac</firstName><surname>Newton</surname>");
+        for (int i = 0; i < items; i++) {
+            xml.append("<item><id>").append(i).append("</id><name>Item ").append(i).append("</name></item>");
+        }
+        data = xml.append("</root>").toString();
+    }
+
+    @Benchmark
+    public String renderNodeModelParse() throws SAXException, IOException, ParserConfigurationException, TemplateException {
+        return render(NodeModel.parse(new InputSource(new StringReader(data))));
+    }
+
+    @Benchmark
+    public String renderPooledParse() throws SAXException, IOException, ParserConfigurationException, TemplateException {
+        return render(xmlDocumentBuilderPool.parse(data));
+    }
+
+    private String render(NodeModel nodeModel) throws IOException, TemplateException {
+        StringWriter writer = new StringWriter();
+        template.process(Collections.singletonMap("data", nodeModel), writer);
+        return writer.toString();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(XmlRenderBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}